@@ -76,7 +76,7 @@ public class TransportWebsocketInfoAction extends TransportNodesOperationAction<
 
     @Override
     protected WebsocketInfo nodeOperation(TransportWebsocketInfoRequest nodeRequest) throws ElasticsearchException {
-        return new WebsocketInfo(discovery.localNode(), (InetSocketTransportAddress)httpServer.address());
+        return new WebsocketInfo(discovery.localNode(), (InetSocketTransportAddress)httpServer.address(), httpServer.stats());
     }
 
     @Override
@@ -3,7 +3,9 @@ package org.xbib.elasticsearch.action.cluster.admin.websocket;
 import org.elasticsearch.action.support.nodes.NodeOperationResponse;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.xbib.elasticsearch.http.HttpStats;
 
 import java.io.IOException;
 
@@ -11,28 +13,48 @@ public class WebsocketInfo extends NodeOperationResponse {
 
     private InetSocketTransportAddress address;
 
+    private HttpStats stats;
+
     WebsocketInfo() {
     }
 
-    public WebsocketInfo(DiscoveryNode node, InetSocketTransportAddress address) {
+    public WebsocketInfo(DiscoveryNode node, InetSocketTransportAddress address, HttpStats stats) {
         super(node);
         this.address = address;
+        this.stats = stats;
     }
 
     public InetSocketTransportAddress getAddress() {
         return address;
     }
 
+    public HttpStats getStats() {
+        return stats;
+    }
+
     public static WebsocketInfo readInfo(StreamInput in) throws IOException {
         WebsocketInfo info = new WebsocketInfo();
         info.readFrom(in);
         return info;
     }
 
+    /**
+     * The stats are always in the stream. The stream version is the Elasticsearch version,
+     * it does not tell plugin versions apart, so nodes with an older plugin version can not
+     * be mixed in, see the upgrade note in the README.
+     */
     @Override
     public void readFrom(StreamInput in) throws IOException {
         super.readFrom(in);
         address = InetSocketTransportAddress.readInetSocketTransportAddress(in);
+        stats = HttpStats.readHttpStats(in);
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        address.writeTo(out);
+        stats.writeTo(out);
     }
 
 }
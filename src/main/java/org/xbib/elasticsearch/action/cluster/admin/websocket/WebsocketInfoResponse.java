@@ -50,6 +50,11 @@ public class WebsocketInfoResponse extends NodesOperationResponse<WebsocketInfo>
             builder.field("host", nodeInfo.getNode().getHostName(), XContentBuilder.FieldCaseConversion.NONE);
             builder.field("ip", nodeInfo.getNode().getHostAddress(), XContentBuilder.FieldCaseConversion.NONE);
             builder.field("websocket_address", nodeInfo.getAddress(), XContentBuilder.FieldCaseConversion.NONE);
+            if (nodeInfo.getStats() != null) {
+                builder.startObject("stats");
+                nodeInfo.getStats().toXContent(builder, params);
+                builder.endObject();
+            }
             builder.endObject();
         }
         builder.endObject();
@@ -0,0 +1,61 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The acknowledgement state of the client sequence numbers of a bulk session.
+ *
+ * Sequence numbers are tracked in the order the requests were received. Bulks may
+ * complete out of order, so completed numbers are kept until all earlier numbers
+ * are completed too. The acknowledged position is the last sequence number up to
+ * which all requests are completed, successful or not. A sequence number received again
+ * while it is outstanding is only tracked once.
+ */
+class BulkAcks {
+
+    private final Deque<Long> outstanding = new ArrayDeque<Long>();
+
+    private final Set<Long> pending = new HashSet<Long>();
+
+    private final Set<Long> completed = new HashSet<Long>();
+
+    private long acked = -1L;
+
+    /**
+     * Register a sequence number of a received request.
+     *
+     * @param seq the sequence number
+     * @return false if the sequence number is outstanding already
+     */
+    synchronized boolean add(long seq) {
+        if (!pending.add(seq)) {
+            return false;
+        }
+        outstanding.add(seq);
+        return true;
+    }
+
+    /**
+     * Mark sequence numbers as completed.
+     *
+     * @param seqs the sequence numbers of a completed bulk
+     * @return the last sequence number up to which all requests are completed, or -1
+     */
+    synchronized long complete(Collection<Long> seqs) {
+        for (Long seq : seqs) {
+            // a duplicate completing after its sequence number was acknowledged is ignored
+            if (pending.contains(seq)) {
+                completed.add(seq);
+            }
+        }
+        while (!outstanding.isEmpty() && completed.remove(outstanding.peek())) {
+            acked = outstanding.poll();
+            pending.remove(acked);
+        }
+        return acked;
+    }
+}
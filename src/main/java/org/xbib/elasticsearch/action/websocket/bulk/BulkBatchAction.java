@@ -0,0 +1,65 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.ImmutableSet;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveChannel;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveRequest;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveRequestParser;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Bulk batch action. A multi-document frame carries an array of <code>index</code>,
+ * <code>create</code>, <code>update</code> and <code>delete</code> requests, which are
+ * added to the bulk session of the connection in their order, as if they had been sent
+ * in frames of their own.
+ */
+public class BulkBatchAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "bulk";
+
+    private final static Set<String> TYPES = ImmutableSet.of("index", "create", "update", "delete");
+
+    private final InteractiveController controller;
+
+    @Inject
+    public BulkBatchAction(Settings settings, Client client, InteractiveController controller) {
+        super(settings, client);
+        this.controller = controller;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        try {
+            BytesReference requests = request.paramAsBytes("requests");
+            if (requests == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("requests is null"));
+                return;
+            }
+            for (NettyInteractiveRequest action : NettyInteractiveRequestParser.parseArray(
+                    NettyInteractiveChannel.contentType(channel.getChannel()), requests)) {
+                if (!TYPES.contains(action.type())) {
+                    channel.sendResponse(TYPE, new IllegalArgumentException("not a bulk request type: " + action.type()));
+                    continue;
+                }
+                // the bulk handlers run on the calling thread
+                controller.handler(action.type()).handleRequest(action, channel);
+            }
+        } catch (IOException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.VersionType;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+
+/**
+ * Bulk create action. The document is only indexed if it does not exist yet.
+ * If the id is missing, an id is generated.
+ */
+public class BulkCreateAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "create";
+
+    private final BulkSessions sessions;
+
+    @Inject
+    public BulkCreateAction(Settings settings, Client client, InteractiveController controller,
+                            BulkSessions sessions) {
+        super(settings, client);
+        this.sessions = sessions;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        String index = request.paramAsString("index");
+        String type = request.paramAsString("type");
+        String id = request.paramAsString("id");
+        try {
+            if (index == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("index is null"));
+                return;
+            }
+            if (type == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("type is null"));
+                return;
+            }
+            BytesReference source = request.paramAsBytes("data");
+            if (source == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("data is null"));
+                return;
+            }
+            // the source is a slice of the request frame, no map is built
+            IndexRequest indexRequest = Requests.indexRequest(index).type(type).id(id)
+                    .source(source, false)
+                    .create(true);
+            if (request.hasParam("version")) {
+                indexRequest.version(request.paramAsLong("version"));
+            }
+            String versionType = request.paramAsString("version_type");
+            if (versionType != null) {
+                indexRequest.versionType(VersionType.fromString(versionType));
+            }
+            sessions.add(channel, request, indexRequest);
+        } catch (IOException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
+        } catch (ElasticsearchIllegalArgumentException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
+        }
+    }
+}
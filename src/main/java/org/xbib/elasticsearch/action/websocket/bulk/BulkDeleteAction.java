@@ -1,10 +1,13 @@
 package org.xbib.elasticsearch.action.websocket.bulk;
 
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.VersionType;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveController;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
@@ -14,13 +17,17 @@ import java.io.IOException;
 /**
  * Bulk delete action
  */
-public class BulkDeleteAction extends BulkHandler {
+public class BulkDeleteAction extends BaseInteractiveHandler {
 
     private final static String TYPE = "delete";
 
+    private final BulkSessions sessions;
+
     @Inject
-    public BulkDeleteAction(Settings settings, Client client, InteractiveController controller) {
+    public BulkDeleteAction(Settings settings, Client client, InteractiveController controller,
+                            BulkSessions sessions) {
         super(settings, client);
+        this.sessions = sessions;
         controller.registerHandler(TYPE, this);
     }
 
@@ -43,13 +50,26 @@ public class BulkDeleteAction extends BulkHandler {
                 return;
             }
             DeleteRequest deleteRequest = Requests.deleteRequest(index).type(type).id(id);
-            add(deleteRequest, channel);
+            if (request.hasParam("version")) {
+                deleteRequest.version(request.paramAsLong("version"));
+            }
+            String versionType = request.paramAsString("version_type");
+            if (versionType != null) {
+                deleteRequest.versionType(VersionType.fromString(versionType));
+            }
+            sessions.add(channel, request, deleteRequest);
         } catch (IOException ex) {
             try {
                 channel.sendResponse(TYPE, ex);
             } catch (IOException ex1) {
                 logger.error("error while sending exception");
             }
+        } catch (ElasticsearchIllegalArgumentException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
         }
     }
 }
@@ -3,26 +3,34 @@ package org.xbib.elasticsearch.action.websocket.bulk;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveController;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 
 /**
- * Bulk flush action. This action forces bulk requests to get
+ * Bulk flush action. This action forces the bulk requests of the channel to get
  * sent to the cluster.
  */
-public class BulkFlushAction extends BulkHandler {
+public class BulkFlushAction extends BaseInteractiveHandler {
 
     private final static String TYPE = "flush";
 
+    private final BulkSessions sessions;
+
     @Inject
-    public BulkFlushAction(Settings settings, Client client, InteractiveController controller) {
+    public BulkFlushAction(Settings settings, Client client, InteractiveController controller,
+                            BulkSessions sessions) {
         super(settings, client);
+        this.sessions = sessions;
         controller.registerHandler(TYPE, this);
     }
 
     @Override
     public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
-        this.flush(channel);
+        BulkHandler session = sessions.get(channel.getChannel());
+        if (session != null) {
+            session.flush();
+        }
     }
 }
@@ -1,6 +1,7 @@
 package org.xbib.elasticsearch.action.websocket.bulk;
 
 import org.elasticsearch.ElasticsearchIllegalStateException;
+import org.elasticsearch.ExceptionsHelper;
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
@@ -11,17 +12,24 @@ import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.Nullable;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
+import org.elasticsearch.rest.RestStatus;
+import org.jboss.netty.channel.Channel;
 import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 
 import java.io.IOException;
-import java.util.Queue;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
@@ -29,16 +37,42 @@ import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 /**
  * The bulk handler is derived from the BulkProcessor, but
  * offers explicit flushing and can receive requests from multiple threads
- * into a global action queue.
+ * into its own action queue.
  * It supports websocket bulk actions and can write back response to an
- * interactive channel.
- * The bulk volume is not controlled.
- * The default concurrency is 32, the number of actions in a bulk is 100.
+ * interactive channel. A handler which is created for a channel is a bulk session,
+ * the responses of all bulks of the session are written to that channel.
+ * A bulk is executed when it reaches the number of actions or the estimated size
+ * in bytes, whichever comes first.
+ * The default concurrency is 32, the number of actions in a bulk is 100, the
+ * size of a bulk is 5mb. These defaults can be changed by the settings
+ * <code>websocket.bulk.concurrent_requests</code>, <code>websocket.bulk.actions</code>
+ * and <code>websocket.bulk.size</code>.
+ *
+ * A bulk session never blocks the calling thread, which is a network I/O thread.
+ * When the bulks in flight reach the concurrency limit of the session, reading from
+ * the channel is suspended until a bulk completes. The limit adapts to the cluster:
+ * it is halved when a bulk is rejected or takes longer than
+ * <code>websocket.bulk.target_latency</code>, and grows by one for each bulk that
+ * completes in time, up to the configured concurrency.
+ *
+ * A handler without a session channel shares its permits for bulks in flight among
+ * the channels it receives requests from. When no permit is left, the bulk waits
+ * for one without blocking the calling thread, and reading from the channel of the
+ * request is suspended until the waiting bulks are executed. Only bulks without
+ * any channel, which are not added from a network I/O thread, wait for a permit in
+ * the calling thread.
+ *
+ * Requests may carry a client sequence number. The responses of bulks with sequence
+ * numbers are compact acknowledgements instead of the full item list: the last
+ * sequence number up to which all requests of the session are completed, and the
+ * sequence numbers of the failed requests of the bulk.
  */
 public class BulkHandler extends BaseInteractiveHandler {
 
@@ -48,17 +82,40 @@ public class BulkHandler extends BaseInteractiveHandler {
 
     private final int bulkActions;
 
+    private final long bulkSize;
+
     private final TimeValue flushInterval;
 
     private final Semaphore semaphore;
 
+    private final long targetLatency;
+
+    // the adaptive concurrency of a bulk session, guarded by this
+    private int concurrencyLimit;
+
+    private int inFlight;
+
+    private boolean suspended;
+
+    // the bulks waiting for a permit and the channels suspended for them, guarded by waiting
+    private final Deque<Runnable> waiting = new ArrayDeque<Runnable>();
+
+    private final Set<Channel> suspendedChannels = newHashSet();
+
     private final ScheduledThreadPoolExecutor scheduler;
 
     private final ScheduledFuture scheduledFuture;
 
     private final AtomicLong executionIdGen = new AtomicLong();
 
-    private final static Queue<ActionRequest> bulk = ConcurrentCollections.newQueue();
+    private BulkRequest bulkRequest = new BulkRequest();
+
+    // the client sequence numbers of the actions in the pending bulk by position
+    private Map<Integer, Long> seqs = newHashMap();
+
+    private final BulkAcks acks = new BulkAcks();
+
+    private final InteractiveChannel channel;
 
     private volatile boolean closed = false;
 
@@ -124,6 +181,7 @@ public class BulkHandler extends BaseInteractiveHandler {
         private BulkHandler.Listener listener;
         private int concurrentRequests = 1;
         private int bulkActions = 100;
+        private ByteSizeValue bulkSize = new ByteSizeValue(5, ByteSizeUnit.MB);
         private TimeValue flushInterval = null;
 
         /**
@@ -140,9 +198,9 @@ public class BulkHandler extends BaseInteractiveHandler {
 
         /**
          * Sets the number of concurrent requests allowed to be executed. A
-         * value of 0 means that only a single request will be allowed to be
-         * executed. A value of 1 means 1 concurrent request is allowed to be
-         * executed while accumulating new bulk requests. Defaults to
+         * value of 1 means 1 concurrent request is allowed to be executed
+         * while accumulating new bulk requests. Bulks are always executed
+         * asynchronously, so a value of 0 is the same as 1. Defaults to
          * <tt>1</tt>.
          * @param concurrentRequests concurrent requests
          * @return this builder
@@ -164,6 +222,18 @@ public class BulkHandler extends BaseInteractiveHandler {
             return this;
         }
 
+        /**
+         * Sets when to flush a new bulk request based on the size of actions
+         * currently added. Defaults to <tt>5mb</tt>. Can be set to <tt>-1</tt>
+         * to disable it.
+         * @param bulkSize bulk size
+         * @return this builder
+         */
+        public BulkHandler.Builder setBulkSize(ByteSizeValue bulkSize) {
+            this.bulkSize = bulkSize;
+            return this;
+        }
+
         /**
          * Sets a flush interval flushing *any* bulk actions pending if the
          * interval passes. Defaults to not set.
@@ -183,7 +253,8 @@ public class BulkHandler extends BaseInteractiveHandler {
          * @return bulk handler
          */
         public BulkHandler build() {
-            return new BulkHandler(settings, client, listener, concurrentRequests, bulkActions, flushInterval);
+            return new BulkHandler(settings != null ? settings : client.settings(), client, listener,
+                    concurrentRequests, bulkActions, bulkSize, flushInterval);
         }
     }
 
@@ -192,22 +263,41 @@ public class BulkHandler extends BaseInteractiveHandler {
     }
 
     public BulkHandler(Settings settings, Client client) {
+        this(settings, client, (InteractiveChannel) null);
+    }
+
+    /**
+     * Create a bulk session for a channel.
+     *
+     * @param settings settings
+     * @param client client
+     * @param channel the channel for the bulk responses, or null
+     */
+    public BulkHandler(Settings settings, Client client, @Nullable InteractiveChannel channel) {
         super(settings, client);
+        this.channel = channel;
         this.listener = new ListenerAdapter();
-        this.concurrentRequests = 32;
-        this.bulkActions = 100;
+        this.concurrentRequests = Math.max(1, settings.getAsInt("websocket.bulk.concurrent_requests", 32));
+        this.concurrencyLimit = concurrentRequests;
+        this.targetLatency = settings.getAsTime("websocket.bulk.target_latency", TimeValue.timeValueSeconds(1)).nanos();
+        this.bulkActions = settings.getAsInt("websocket.bulk.actions", 100);
+        this.bulkSize = settings.getAsBytesSize("websocket.bulk.size", new ByteSizeValue(5, ByteSizeUnit.MB)).bytes();
         this.semaphore = new Semaphore(concurrentRequests);
         this.flushInterval = null;
         this.scheduler = null;
         this.scheduledFuture = null;
     }
 
-    BulkHandler(Settings settings, Client client, BulkHandler.Listener listener, int concurrentRequests, int bulkActions, @Nullable TimeValue flushInterval) {
+    BulkHandler(Settings settings, Client client, BulkHandler.Listener listener, int concurrentRequests, int bulkActions, ByteSizeValue bulkSize, @Nullable TimeValue flushInterval) {
         super(settings, client);
+        this.channel = null;
         this.listener = listener;
-        this.concurrentRequests = concurrentRequests;
+        this.concurrentRequests = Math.max(1, concurrentRequests);
+        this.concurrencyLimit = this.concurrentRequests;
+        this.targetLatency = -1L;
         this.bulkActions = bulkActions;
-        this.semaphore = new Semaphore(concurrentRequests);
+        this.bulkSize = bulkSize.bytes();
+        this.semaphore = new Semaphore(this.concurrentRequests);
         this.flushInterval = flushInterval;
         if (flushInterval != null) {
             this.scheduler = (ScheduledThreadPoolExecutor) Executors.newScheduledThreadPool(1, EsExecutors.daemonThreadFactory(client.settings(), "websocket_bulk_processor"));
@@ -224,6 +314,33 @@ public class BulkHandler extends BaseInteractiveHandler {
         return listener;
     }
 
+    /**
+     * The channel of this bulk session.
+     *
+     * @return the channel, or null if the responses are not written back
+     */
+    public InteractiveChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * The current concurrency limit of this bulk session.
+     *
+     * @return the maximum number of bulks in flight before reading is suspended
+     */
+    public synchronized int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * The number of bulks in flight of this bulk session.
+     *
+     * @return the number of bulks
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
     /**
      * Flushes open bulk actions
      */
@@ -231,7 +348,7 @@ public class BulkHandler extends BaseInteractiveHandler {
         if (closed) {
             return;
         }
-        if (bulk.size() > 0) {
+        if (bulkRequest.numberOfActions() > 0) {
             execute(null);
         }
     }
@@ -244,7 +361,7 @@ public class BulkHandler extends BaseInteractiveHandler {
         if (closed) {
             return;
         }
-        if (bulk.size() > 0) {
+        if (bulkRequest.numberOfActions() > 0) {
             execute(channel);
         }
     }
@@ -262,7 +379,7 @@ public class BulkHandler extends BaseInteractiveHandler {
             this.scheduledFuture.cancel(false);
             this.scheduler.shutdown();
         }
-        if (bulk.size() > 0) {
+        if (bulkRequest.numberOfActions() > 0) {
             execute(null);
         }
     }
@@ -292,8 +409,27 @@ public class BulkHandler extends BaseInteractiveHandler {
         return this;
     }
 
+    /**
+     * Adds a request with a client sequence number to the list of actions to execute.
+     * The sequence number is acknowledged when the bulk of the request completes.
+     * @param request the request
+     * @param seq the client sequence number
+     * @return this bulk handler
+     */
+    public BulkHandler add(ActionRequest request, long seq) {
+        internalAdd(request, seq);
+        return this;
+    }
+
+    private synchronized void internalAdd(ActionRequest request, long seq) {
+        seqs.put(bulkRequest.numberOfActions(), seq);
+        acks.add(seq);
+        bulkRequest.add(request);
+        executeIfNeeded();
+    }
+
     private synchronized void internalAdd(ActionRequest request) {
-        bulk.add(request);
+        bulkRequest.add(request);
         executeIfNeeded();
     }
 
@@ -335,7 +471,7 @@ public class BulkHandler extends BaseInteractiveHandler {
     }
 
     private synchronized void internalAdd(ActionRequest request, InteractiveChannel channel) {
-        bulk.add(request);
+        bulkRequest.add(request);
         executeIfNeeded(channel);
     }
 
@@ -350,62 +486,159 @@ public class BulkHandler extends BaseInteractiveHandler {
     }
 
     // (currently) needs to be executed under a lock
-    private void execute(final InteractiveChannel channel) {
-        final BulkRequest bulkRequest = new BulkRequest().add(bulk);
-        bulk.clear();
+    private void execute(InteractiveChannel requestChannel) {
+        // a session writes all responses to its own channel
+        final InteractiveChannel channel = this.channel != null ? this.channel : requestChannel;
+        final BulkRequest bulkRequest = this.bulkRequest;
+        final Map<Integer, Long> seqs = this.seqs;
+        this.bulkRequest = new BulkRequest();
+        this.seqs = newHashMap();
 
         final long executionId = executionIdGen.incrementAndGet();
 
-        if (concurrentRequests == 0) {
-            // execute in a blocking fashion...
-            try {
-                listener.beforeBulk(executionId, bulkRequest);
-                listener.afterBulk(executionId, bulkRequest, client.bulk(bulkRequest).actionGet());
-            } catch (Exception e) {
-                listener.afterBulk(executionId, bulkRequest, e);
+        if (this.channel != null) {
+            begin();
+        } else if (requestChannel != null) {
+            synchronized (waiting) {
+                if (!waiting.isEmpty() || !semaphore.tryAcquire()) {
+                    // wait for a permit without blocking the I/O thread, and stop reading meanwhile
+                    waiting.add(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(executionId, bulkRequest, seqs, channel);
+                        }
+                    });
+                    if (suspendedChannels.add(requestChannel.getChannel())) {
+                        logger.debug("no permit for a bulk, suspend reading from channel {}",
+                                requestChannel.getChannel().getId());
+                        requestChannel.getChannel().setReadable(false);
+                    }
+                    return;
+                }
             }
         } else {
             try {
                 semaphore.acquire();
             } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 listener.afterBulk(executionId, bulkRequest, e);
                 return;
             }
-            listener.beforeBulk(executionId, bulkRequest);
-            client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
-                @Override
-                public void onResponse(BulkResponse response) {
-                    try {
-                        listener.afterBulk(executionId, bulkRequest, response);
-                        if (channel != null) {
-                            channel.sendResponse("bulkresponse", buildResponse(response));
+        }
+        send(executionId, bulkRequest, seqs, channel);
+    }
+
+    private void send(final long executionId, final BulkRequest bulkRequest, final Map<Integer, Long> seqs,
+                      final InteractiveChannel channel) {
+        final long startTime = System.nanoTime();
+        listener.beforeBulk(executionId, bulkRequest);
+        client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                try {
+                    listener.afterBulk(executionId, bulkRequest, response);
+                    if (channel != null) {
+                        if (!seqs.isEmpty()) {
+                            channel.sendResponse("ack", buildAckResponse(response, seqs));
+                        }
+                        // the requests without a sequence number get the item responses
+                        if (seqs.size() < response.getItems().length) {
+                            channel.sendResponse("bulkresponse", buildResponse(response, seqs));
                         }
-                    } catch (IOException e) {
-                        logger.error("error while sending bulk response", e);
-                    } finally {
-                        semaphore.release();
                     }
+                } catch (IOException e) {
+                    logger.error("error while sending bulk response", e);
+                } finally {
+                    end(isRejected(response), System.nanoTime() - startTime);
                 }
+            }
 
-                @Override
-                public void onFailure(Throwable t) {
-                    try {
-                        listener.afterBulk(executionId, bulkRequest, t);
-                        if (channel != null) {
+            @Override
+            public void onFailure(Throwable t) {
+                try {
+                    listener.afterBulk(executionId, bulkRequest, t);
+                    if (channel != null) {
+                        if (!seqs.isEmpty()) {
+                            channel.sendResponse("ack", buildAckResponse(t, seqs));
+                        }
+                        if (seqs.size() < bulkRequest.numberOfActions()) {
                             channel.sendResponse("bulkresponse", t);
                         }
-                    } catch (IOException e) {
-                        logger.error("error while sending bulk response", e);
-                    } finally {
-                        semaphore.release();
                     }
+                } catch (IOException e) {
+                    logger.error("error while sending bulk response", e);
+                } finally {
+                    end(ExceptionsHelper.unwrapCause(t) instanceof EsRejectedExecutionException,
+                            System.nanoTime() - startTime);
+                }
+            }
+        });
+    }
+
+    // needs to be executed under a lock
+    private void begin() {
+        inFlight++;
+        if (inFlight >= concurrencyLimit && !suspended) {
+            suspended = true;
+            logger.debug("{} bulks in flight, suspend reading from channel {}",
+                    inFlight, channel.getChannel().getId());
+            channel.getChannel().setReadable(false);
+        }
+    }
+
+    private void end(boolean rejected, long latency) {
+        if (this.channel == null) {
+            Runnable next;
+            synchronized (waiting) {
+                // the permit passes to the next waiting bulk
+                next = waiting.poll();
+                if (next == null) {
+                    semaphore.release();
+                    for (Channel suspendedChannel : suspendedChannels) {
+                        logger.debug("resume reading from channel {}", suspendedChannel.getId());
+                        suspendedChannel.setReadable(true);
+                    }
+                    suspendedChannels.clear();
                 }
-            });
+            }
+            if (next != null) {
+                next.run();
+            }
+            return;
         }
+        synchronized (this) {
+            inFlight--;
+            if (rejected || (targetLatency > 0 && latency > targetLatency)) {
+                concurrencyLimit = Math.max(1, concurrencyLimit / 2);
+            } else if (concurrencyLimit < concurrentRequests) {
+                concurrencyLimit++;
+            }
+            if (suspended && inFlight < concurrencyLimit) {
+                suspended = false;
+                logger.debug("{} bulks in flight, resume reading from channel {}",
+                        inFlight, channel.getChannel().getId());
+                channel.getChannel().setReadable(true);
+            }
+        }
+    }
+
+    private static boolean isRejected(BulkResponse response) {
+        if (!response.hasFailures()) {
+            return false;
+        }
+        for (BulkItemResponse itemResponse : response) {
+            if (itemResponse.isFailed() && itemResponse.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+                return true;
+            }
+        }
+        return false;
     }
 
     private boolean isOverTheLimit() {
-        if (bulkActions != -1 && bulk.size() > bulkActions) {
+        if (bulkActions != -1 && bulkRequest.numberOfActions() >= bulkActions) {
+            return true;
+        }
+        if (bulkSize != -1 && bulkRequest.estimatedSizeInBytes() >= bulkSize) {
             return true;
         }
         return false;
@@ -419,7 +652,7 @@ public class BulkHandler extends BaseInteractiveHandler {
                 if (closed) {
                     return;
                 }
-                if (bulk.size() > 0) {
+                if (bulkRequest.numberOfActions() > 0) {
                     execute(null);
                 }
             }
@@ -427,18 +660,23 @@ public class BulkHandler extends BaseInteractiveHandler {
     }
 
     /**
-     * Taken from the REST bulk action.
+     * Taken from the REST bulk action. The requests with a sequence number are left out,
+     * they are acknowledged instead.
      *
      * @param response the bulk response
+     * @param seqs the sequence numbers of the bulk by position
      * @return a content builder with the response
      * @throws IOException
      */
-    private XContentBuilder buildResponse(BulkResponse response) throws IOException {
+    private XContentBuilder buildResponse(BulkResponse response, Map<Integer, Long> seqs) throws IOException {
         XContentBuilder builder = jsonBuilder();
         builder.startObject();
         builder.field(Fields.TOOK, response.getTookInMillis());
         builder.startArray(Fields.ITEMS);
         for (BulkItemResponse itemResponse : response) {
+            if (seqs.containsKey(itemResponse.getItemId())) {
+                continue;
+            }
             builder.startObject();
             builder.startObject(itemResponse.getOpType());
             builder.field(Fields._INDEX, itemResponse.getIndex());
@@ -461,6 +699,64 @@ public class BulkHandler extends BaseInteractiveHandler {
         return builder;
     }
 
+    /**
+     * Acknowledge the sequence numbers of a completed bulk.
+     *
+     * @param response the bulk response
+     * @param seqs the sequence numbers of the bulk by position
+     * @return a content builder with the acknowledgement
+     * @throws IOException
+     */
+    private XContentBuilder buildAckResponse(BulkResponse response, Map<Integer, Long> seqs) throws IOException {
+        long acked = acks.complete(seqs.values());
+        XContentBuilder builder = jsonBuilder();
+        builder.startObject();
+        builder.field(Fields.ACKED, acked);
+        builder.startArray(Fields.FAILURES);
+        if (response.hasFailures()) {
+            for (BulkItemResponse itemResponse : response) {
+                Long seq = seqs.get(itemResponse.getItemId());
+                if (seq != null && itemResponse.isFailed()) {
+                    builder.startObject();
+                    builder.field(Fields.SEQ, seq);
+                    builder.field(Fields.STATUS, itemResponse.getFailure().getStatus().getStatus());
+                    builder.field(Fields.ERROR, itemResponse.getFailureMessage());
+                    builder.endObject();
+                }
+            }
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+
+    /**
+     * Acknowledge the sequence numbers of a failed bulk, all requests have failed.
+     *
+     * @param t the failure of the bulk
+     * @param seqs the sequence numbers of the bulk by position
+     * @return a content builder with the acknowledgement
+     * @throws IOException
+     */
+    private XContentBuilder buildAckResponse(Throwable t, Map<Integer, Long> seqs) throws IOException {
+        long acked = acks.complete(seqs.values());
+        RestStatus status = ExceptionsHelper.status(t);
+        XContentBuilder builder = jsonBuilder();
+        builder.startObject();
+        builder.field(Fields.ACKED, acked);
+        builder.startArray(Fields.FAILURES);
+        for (Long seq : seqs.values()) {
+            builder.startObject();
+            builder.field(Fields.SEQ, seq);
+            builder.field(Fields.STATUS, status.getStatus());
+            builder.field(Fields.ERROR, ExceptionsHelper.detailedMessage(t));
+            builder.endObject();
+        }
+        builder.endArray();
+        builder.endObject();
+        return builder;
+    }
+
     static final class Fields {
 
         static final XContentBuilderString ITEMS = new XContentBuilderString("items");
@@ -472,5 +768,9 @@ public class BulkHandler extends BaseInteractiveHandler {
         static final XContentBuilderString TOOK = new XContentBuilderString("took");
         static final XContentBuilderString _VERSION = new XContentBuilderString("_version");
         static final XContentBuilderString MATCHES = new XContentBuilderString("matches");
+        static final XContentBuilderString ACKED = new XContentBuilderString("acked");
+        static final XContentBuilderString FAILURES = new XContentBuilderString("failures");
+        static final XContentBuilderString SEQ = new XContentBuilderString("seq");
+        static final XContentBuilderString STATUS = new XContentBuilderString("status");
     }
 }
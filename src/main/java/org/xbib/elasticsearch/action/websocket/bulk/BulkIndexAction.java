@@ -1,24 +1,31 @@
 package org.xbib.elasticsearch.action.websocket.bulk;
 
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.VersionType;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveController;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 
 import java.io.IOException;
-import java.util.Map;
 
-public class BulkIndexAction extends BulkHandler {
+public class BulkIndexAction extends BaseInteractiveHandler {
 
     private final static String TYPE = "index";
 
+    private final BulkSessions sessions;
+
     @Inject
-    public BulkIndexAction(Settings settings, Client client, InteractiveController controller) {
+    public BulkIndexAction(Settings settings, Client client, InteractiveController controller,
+                            BulkSessions sessions) {
         super(settings, client);
+        this.sessions = sessions;
         controller.registerHandler(TYPE, this);
     }
 
@@ -40,15 +47,34 @@ public class BulkIndexAction extends BulkHandler {
                 channel.sendResponse(TYPE, new IllegalArgumentException("id is null"));
                 return;
             }
+            BytesReference source = request.paramAsBytes("data");
+            if (source == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("data is null"));
+                return;
+            }
+            // the source is a slice of the request frame, no map is built
             IndexRequest indexRequest = Requests.indexRequest(index).type(type).id(id)
-                    .source((Map<String, Object>) request.asMap().get("data"));
-            add(indexRequest, channel);
+                    .source(source, false);
+            if (request.hasParam("version")) {
+                indexRequest.version(request.paramAsLong("version"));
+            }
+            String versionType = request.paramAsString("version_type");
+            if (versionType != null) {
+                indexRequest.versionType(VersionType.fromString(versionType));
+            }
+            sessions.add(channel, request, indexRequest);
         } catch (IOException ex) {
             try {
                 channel.sendResponse(TYPE, ex);
             } catch (IOException ex1) {
                 logger.error("error while sending exception");
             }
+        } catch (ElasticsearchIllegalArgumentException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
         }
     }
 }
@@ -0,0 +1,159 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * The bulk sessions of the websocket connections.
+ *
+ * A session is created by the first index or delete request on a channel. It has its
+ * own action queue, so channels do not wait for each other, and the bulk responses
+ * are written to the channel of the session. When the channel is closed, the remaining
+ * actions are flushed and the session is removed.
+ *
+ * Pending actions of all sessions are flushed every <code>websocket.bulk.flush_interval</code>,
+ * so a slow stream of documents is indexed without waiting for a full bulk.
+ */
+public class BulkSessions extends AbstractLifecycleComponent<BulkSessions> {
+
+    private final Client client;
+
+    private final ThreadPool threadPool;
+
+    private final TimeValue flushInterval;
+
+    private final ConcurrentMap<Integer, BulkHandler> sessions = ConcurrentCollections.newConcurrentMap();
+
+    private volatile ScheduledFuture flushFuture;
+
+    @Inject
+    public BulkSessions(Settings settings, Client client, ThreadPool threadPool) {
+        super(settings);
+        this.client = client;
+        this.threadPool = threadPool;
+        this.flushInterval = settings.getAsTime("websocket.bulk.flush_interval", TimeValue.timeValueSeconds(1));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (flushInterval.millis() > 0) {
+            this.flushFuture = threadPool.schedule(flushInterval, ThreadPool.Names.GENERIC, new Flush());
+        }
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        for (BulkHandler session : sessions.values()) {
+            session.close();
+        }
+        sessions.clear();
+    }
+
+    /**
+     * Get the bulk session of a channel, create the session if it does not exist.
+     *
+     * @param channel the interactive channel
+     * @return the bulk session
+     */
+    public BulkHandler session(InteractiveChannel channel) {
+        final Channel ch = channel.getChannel();
+        BulkHandler session = sessions.get(ch.getId());
+        if (session != null) {
+            return session;
+        }
+        // the session outlives the request, its responses do not carry the request ID
+        final BulkHandler newSession = new BulkHandler(settings, client, new NettyInteractiveChannel(ch));
+        session = sessions.putIfAbsent(ch.getId(), newSession);
+        if (session != null) {
+            return session;
+        }
+        ch.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                sessions.remove(ch.getId(), newSession);
+                newSession.close();
+            }
+        });
+        return newSession;
+    }
+
+    /**
+     * Add an action to the bulk session of a channel. If the request has a <code>seq</code>
+     * parameter, the action is acknowledged by this client sequence number.
+     *
+     * @param channel the interactive channel
+     * @param request the interactive request
+     * @param action  the action
+     */
+    public void add(InteractiveChannel channel, InteractiveRequest request, ActionRequest action) {
+        BulkHandler session = session(channel);
+        if (request.hasParam("seq")) {
+            session.add(action, request.paramAsLong("seq"));
+        } else {
+            session.add(action);
+        }
+    }
+
+    /**
+     * Get the bulk session of a channel.
+     *
+     * @param channel the channel
+     * @return the bulk session, or null if there is no session
+     */
+    public BulkHandler get(Channel channel) {
+        return sessions.get(channel.getId());
+    }
+
+    /**
+     * The number of open bulk sessions.
+     *
+     * @return the number of sessions
+     */
+    public int size() {
+        return sessions.size();
+    }
+
+    class Flush implements Runnable {
+
+        @Override
+        public void run() {
+            if (!lifecycle.started()) {
+                return;
+            }
+            for (BulkHandler session : sessions.values()) {
+                try {
+                    session.flush();
+                } catch (Exception e) {
+                    logger.error("flush of bulk session failed", e);
+                }
+            }
+            if (lifecycle.started()) {
+                flushFuture = threadPool.schedule(flushInterval, ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
+}
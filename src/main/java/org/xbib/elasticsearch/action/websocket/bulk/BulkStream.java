@@ -0,0 +1,179 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.util.CharsetUtil;
+import org.xbib.elasticsearch.common.bytes.ChannelBufferBytesReference;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveStreamHandler;
+
+import java.io.IOException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * A stream of bulk content in the format of the bulk REST API, action lines and source
+ * lines separated by newlines.
+ *
+ * Frames are not aligned to lines. Each chunk is cut after the last complete operation,
+ * the operations are added to the bulk session of the channel, and the rest is kept
+ * until the next chunk arrives. The rest and the next chunk are composed without copying,
+ * and only the bytes of the next chunk are scanned for newlines, so an operation spanning
+ * many frames is not copied and scanned again for each of them. The bulk session decides
+ * when a bulk is executed.
+ */
+class BulkStream implements InteractiveStreamHandler {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(BulkStream.class.getSimpleName());
+
+    private final static String TYPE = "bulkstream";
+
+    private final BulkHandler session;
+
+    private final String defaultIndex;
+
+    private final String defaultType;
+
+    private ChannelBuffer pending;
+
+    // the start of the first line in the pending bytes which is not complete
+    private int line;
+
+    // the action line of the pending operation is parsed, its source line is not complete
+    private boolean source;
+
+    private long actions;
+
+    private boolean failed;
+
+    BulkStream(BulkHandler session, String defaultIndex, String defaultType) {
+        this.session = session;
+        this.defaultIndex = defaultIndex;
+        this.defaultType = defaultType;
+    }
+
+    @Override
+    public void data(BytesReference chunk, InteractiveChannel channel) {
+        if (failed) {
+            return;
+        }
+        ChannelBuffer buffer = chunk.hasArray() ?
+                ChannelBuffers.wrappedBuffer(chunk.array(), chunk.arrayOffset(), chunk.length()) :
+                ChannelBuffers.wrappedBuffer(chunk.toBytes());
+        // the pending bytes have been scanned before, they hold no complete line
+        int scanned = pending != null ? pending.readableBytes() : 0;
+        ChannelBuffer data = pending != null ? ChannelBuffers.wrappedBuffer(pending, buffer) : buffer;
+        try {
+            int end = complete(data, scanned);
+            if (end > 0) {
+                BulkRequest request = new BulkRequest();
+                request.add(new ChannelBufferBytesReference(data.slice(0, end)).toBytesArray(), false,
+                        defaultIndex, defaultType);
+                for (ActionRequest action : request.requests()) {
+                    session.add(action);
+                }
+                actions += request.numberOfActions();
+            }
+            // the rest of the chunk is copied, so the frame buffer is not held longer than its operations
+            if (end == data.readableBytes()) {
+                pending = null;
+            } else if (end > 0) {
+                // the end of an operation is always in the chunk
+                pending = ChannelBuffers.copiedBuffer(data.slice(end, data.readableBytes() - end));
+            } else {
+                pending = pending != null ? ChannelBuffers.wrappedBuffer(pending, ChannelBuffers.copiedBuffer(buffer)) :
+                        ChannelBuffers.copiedBuffer(buffer);
+            }
+            line -= end;
+        } catch (Exception e) {
+            failed = true;
+            pending = null;
+            logger.error("bulk stream failed after {} actions", e, actions);
+            try {
+                channel.sendResponse(TYPE, e);
+            } catch (IOException e1) {
+                logger.error("error while sending exception");
+            }
+        }
+    }
+
+    @Override
+    public void end(InteractiveChannel channel) {
+        session.flush();
+        if (failed) {
+            return;
+        }
+        try {
+            if (pending != null && pending.toString(CharsetUtil.UTF_8).trim().length() > 0) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("incomplete operation at end of stream"));
+            } else {
+                XContentBuilder builder = jsonBuilder().startObject().field("actions", actions).endObject();
+                channel.sendResponse(TYPE, builder);
+            }
+        } catch (IOException e) {
+            logger.error("error while sending bulk stream response", e);
+        }
+        pending = null;
+        line = 0;
+        source = false;
+    }
+
+    /**
+     * Find the end of the last complete operation. An operation is complete with the newline
+     * after its action line if it is a delete, otherwise with the newline after its source line.
+     * The position of the incomplete line and whether a source line is expected are kept for
+     * the next chunk.
+     *
+     * @param data    the content
+     * @param scanned the number of bytes at the start of the content known to hold no newline
+     *                after the incomplete line
+     * @return the position after the last complete operation, 0 if there is none
+     * @throws IOException if an action line is not valid
+     */
+    private int complete(ChannelBuffer data, int scanned) throws IOException {
+        int end = 0;
+        int from = scanned;
+        int length = data.readableBytes();
+        while (from < length) {
+            int next = data.indexOf(from, length, (byte) '\n');
+            if (next < 0) {
+                break;
+            }
+            if (source) {
+                source = false;
+                end = next + 1;
+            } else if (next == line) {
+                end = next + 1;
+            } else {
+                source = !"delete".equals(operation(new ChannelBufferBytesReference(data.slice(line, next - line))));
+                if (!source) {
+                    end = next + 1;
+                }
+            }
+            line = next + 1;
+            from = next + 1;
+        }
+        return end;
+    }
+
+    private static String operation(BytesReference line) throws IOException {
+        XContentParser parser = JsonXContent.jsonXContent.createParser(line);
+        try {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT
+                    || parser.nextToken() != XContentParser.Token.FIELD_NAME) {
+                throw new IOException("malformed action line [" + line.toUtf8() + "]");
+            }
+            return parser.currentName();
+        } finally {
+            parser.close();
+        }
+    }
+}
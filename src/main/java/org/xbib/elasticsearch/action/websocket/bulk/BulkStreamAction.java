@@ -0,0 +1,43 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+/**
+ * Bulk stream action. After this request, the frames of the channel carry bulk content
+ * in the format of the bulk REST API, with optional default <code>index</code> and
+ * <code>type</code> from the request. An empty frame ends the stream, the response
+ * reports the number of actions.
+ *
+ * The action runs on the I/O thread, so the stream is started before the next frame
+ * of the channel is decoded.
+ */
+public class BulkStreamAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "bulkstream";
+
+    private final InteractiveController controller;
+
+    private final BulkSessions sessions;
+
+    @Inject
+    public BulkStreamAction(Settings settings, Client client, InteractiveController controller,
+                            BulkSessions sessions) {
+        super(settings, client);
+        this.controller = controller;
+        this.sessions = sessions;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        BulkStream stream = new BulkStream(sessions.session(channel),
+                request.paramAsString("index"), request.paramAsString("type"));
+        controller.stream(channel.getChannel(), stream);
+    }
+}
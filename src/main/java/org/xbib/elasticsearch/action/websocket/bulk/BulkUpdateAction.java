@@ -0,0 +1,103 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.script.ScriptService;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Bulk update action. A document is updated by a partial document in <code>doc</code>
+ * or by a <code>script</code> with optional <code>lang</code> and <code>params</code>.
+ * If the document does not exist, the <code>upsert</code> document is indexed, or the
+ * partial document itself if <code>doc_as_upsert</code> is true.
+ */
+public class BulkUpdateAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "update";
+
+    private final BulkSessions sessions;
+
+    @Inject
+    public BulkUpdateAction(Settings settings, Client client, InteractiveController controller,
+                            BulkSessions sessions) {
+        super(settings, client);
+        this.sessions = sessions;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        String index = request.paramAsString("index");
+        String type = request.paramAsString("type");
+        String id = request.paramAsString("id");
+        try {
+            if (index == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("index is null"));
+                return;
+            }
+            if (type == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("type is null"));
+                return;
+            }
+            if (id == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("id is null"));
+                return;
+            }
+            BytesReference doc = request.paramAsBytes("doc");
+            String script = request.paramAsString("script");
+            if (doc == null && script == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("doc and script are null"));
+                return;
+            }
+            UpdateRequest updateRequest = new UpdateRequest(index, type, id);
+            if (doc != null) {
+                doc = doc.toBytesArray();
+                updateRequest.doc(doc.array(), doc.arrayOffset(), doc.length());
+            }
+            if (script != null) {
+                Object params = request.param("params");
+                updateRequest.script(script, request.paramAsString("lang"), ScriptService.ScriptType.INLINE,
+                        params instanceof Map ? (Map<String, Object>) params : null);
+            }
+            BytesReference upsert = request.paramAsBytes("upsert");
+            if (upsert != null) {
+                upsert = upsert.toBytesArray();
+                updateRequest.upsert(upsert.array(), upsert.arrayOffset(), upsert.length());
+            }
+            updateRequest.docAsUpsert(request.paramAsBoolean("doc_as_upsert", false));
+            updateRequest.retryOnConflict((int) request.paramAsLong("retry_on_conflict", 0L));
+            if (request.hasParam("version")) {
+                updateRequest.version(request.paramAsLong("version"));
+            }
+            String versionType = request.paramAsString("version_type");
+            if (versionType != null) {
+                updateRequest.versionType(VersionType.fromString(versionType));
+            }
+            sessions.add(channel, request, updateRequest);
+        } catch (IOException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
+        } catch (ElasticsearchIllegalArgumentException ex) {
+            try {
+                channel.sendResponse(TYPE, ex);
+            } catch (IOException ex1) {
+                logger.error("error while sending exception");
+            }
+        }
+    }
+}
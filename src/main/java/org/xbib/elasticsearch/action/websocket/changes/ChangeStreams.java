@@ -0,0 +1,541 @@
+package org.xbib.elasticsearch.action.websocket.changes;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.EsThreadPoolExecutor;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.indexing.IndexingOperationListener;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.service.IndexService;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.service.IndexShard;
+import org.elasticsearch.indices.IndicesLifecycle;
+import org.elasticsearch.indices.IndicesService;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfo;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoAction;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoRequest;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoResponse;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
+import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Change streams push the document changes of indices to websocket channels.
+ *
+ * An indexing operation listener is attached to each shard on this node. After a document
+ * has been indexed, created or deleted, the watches of its index are evaluated. A watch with
+ * a query is matched like a percolator query: the document is indexed into a MemoryIndex
+ * with the analyzers of its mapping and the query is run against it. The MemoryIndex is
+ * built at most once per document. Deletes have no document, so they are sent to all watches
+ * of the index and type.
+ *
+ * Only the node holding the primary of a shard reports its changes, replicas and operations
+ * replayed from the translog are not reported. Watches are announced to the other nodes over
+ * the node links, see {@link RemoteWatchAction}, so the node of the primary matches the watches
+ * of all nodes and forwards the changes for the watches of other nodes to them, see
+ * {@link RemoteChangeAction}. A node joining the cluster gets the watches of the other nodes
+ * announced again.
+ *
+ * Matching does not run on the indexing thread, the operations are handed over to a single
+ * thread with a bounded queue, so the changes of a document arrive in order. Changes are
+ * dropped with a warning when the queue is full.
+ */
+public class ChangeStreams extends AbstractLifecycleComponent<ChangeStreams> implements ClusterStateListener {
+
+    static final String TYPE = "change";
+
+    private final Client client;
+
+    private final ClusterService clusterService;
+
+    private final IndicesService indicesService;
+
+    private final HttpServerTransport transport;
+
+    private final int queueSize;
+
+    private volatile EsThreadPoolExecutor executor;
+
+    // the websocket addresses of the other nodes
+    private volatile Set<String> peers = Collections.emptySet();
+
+    private final ConcurrentMap<String, Watch> watches = ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<String, List<Watch>> indexWatches = ConcurrentCollections.newConcurrentMap();
+
+    private final ConcurrentMap<ShardId, ShardListener> shardListeners = ConcurrentCollections.newConcurrentMap();
+
+    private final IndicesLifecycle.Listener lifecycleListener = new IndicesLifecycle.Listener() {
+        @Override
+        public void afterIndexShardCreated(IndexShard indexShard) {
+            attach(indexShard);
+        }
+
+        @Override
+        public void beforeIndexShardClosed(ShardId shardId, @Nullable IndexShard indexShard) {
+            detach(shardId, indexShard);
+        }
+    };
+
+    @Inject
+    public ChangeStreams(Settings settings, Client client, ClusterService clusterService,
+                         IndicesService indicesService, HttpServerTransport transport) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.indicesService = indicesService;
+        this.transport = transport;
+        this.queueSize = settings.getAsInt("websocket.changes.queue_size", 10000);
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        executor = EsExecutors.newFixed(1, queueSize, EsExecutors.daemonThreadFactory(settings, "websocket_changes"));
+        clusterService.add(this);
+        indicesService.indicesLifecycle().addListener(lifecycleListener);
+        for (IndexService indexService : indicesService) {
+            for (IndexShard indexShard : indexService) {
+                attach(indexShard);
+            }
+        }
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        clusterService.remove(this);
+        indicesService.indicesLifecycle().removeListener(lifecycleListener);
+        for (IndexService indexService : indicesService) {
+            for (IndexShard indexShard : indexService) {
+                detach(indexShard.shardId(), indexShard);
+            }
+        }
+        shardListeners.clear();
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        watches.clear();
+        indexWatches.clear();
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (!event.nodesChanged() || !lifecycle.started()) {
+            return;
+        }
+        peers();
+    }
+
+    /**
+     * Look up the websocket addresses of the other nodes. The local watches are announced
+     * to the nodes which have joined, the watches of the nodes which have left are removed.
+     */
+    private void peers() {
+        client.admin().cluster().execute(WebsocketInfoAction.INSTANCE, new WebsocketInfoRequest(),
+                new ActionListener<WebsocketInfoResponse>() {
+                    @Override
+                    public void onResponse(WebsocketInfoResponse response) {
+                        String localNodeId = clusterService.localNode() != null ? clusterService.localNode().id() : null;
+                        Set<String> addresses = newHashSet();
+                        for (WebsocketInfo info : response.getNodes()) {
+                            if (info.getAddress() == null || info.getNode().id().equals(localNodeId)) {
+                                continue;
+                            }
+                            addresses.add("/" + info.getAddress().address().getAddress().getHostAddress()
+                                    + ":" + info.getAddress().address().getPort());
+                        }
+                        Set<String> joined = newHashSet(addresses);
+                        joined.removeAll(peers);
+                        peers = addresses;
+                        for (Watch watch : watches.values()) {
+                            if (watch.isLocal()) {
+                                if (!joined.isEmpty()) {
+                                    announce(watch, true, joined);
+                                }
+                            } else if (!addresses.contains(watch.getNodeAddress())) {
+                                remove(watch);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        logger.warn("looking up the websocket addresses of the nodes failed", e);
+                    }
+                });
+    }
+
+    /**
+     * Watch the changes of an index. The watch is removed when the channel is closed.
+     *
+     * @param index       the index
+     * @param type        the type, or null for all types
+     * @param querySource the query, or null for all documents
+     * @param channel     the channel for the changes
+     * @return the watch
+     */
+    public Watch watch(String index, @Nullable String type, @Nullable BytesReference querySource, Channel channel) {
+        final Watch watch = new Watch(Strings.randomBase64UUID(), index, type, querySource, channel);
+        IndexService indexService = indicesService.indexService(index);
+        if (indexService != null && querySource != null) {
+            // fail early if the query is not valid, the watch parses it again with the
+            // mappings of the first matching document
+            indexService.queryParserService().parse(querySource);
+        }
+        add(watch);
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                unwatch(watch.getId());
+            }
+        });
+        announce(watch, true, peers);
+        return watch;
+    }
+
+    /**
+     * Apply a watch announced by another node. A removal only removes the watch if it is
+     * still known with the announced channel.
+     *
+     * @param watch   the watch of a channel connected to the other node
+     * @param watched true if the watch was added, false if it is gone
+     */
+    public void announced(Watch watch, boolean watched) {
+        if (watched) {
+            Watch current = watches.get(watch.getId());
+            if (current != null) {
+                remove(current);
+            }
+            add(watch);
+            return;
+        }
+        Watch current = watches.get(watch.getId());
+        if (current != null && !current.isLocal() && current.getChannelId().equals(watch.getChannelId())
+                && current.getNodeAddress().equals(watch.getNodeAddress())) {
+            remove(current);
+        }
+    }
+
+    private void add(Watch watch) {
+        watches.put(watch.getId(), watch);
+        List<Watch> list = indexWatches.get(watch.getIndex());
+        if (list == null) {
+            List<Watch> newList = new CopyOnWriteArrayList<Watch>();
+            list = indexWatches.putIfAbsent(watch.getIndex(), newList);
+            if (list == null) {
+                list = newList;
+            }
+        }
+        list.add(watch);
+    }
+
+    private boolean remove(Watch watch) {
+        if (!watches.remove(watch.getId(), watch)) {
+            return false;
+        }
+        List<Watch> list = indexWatches.get(watch.getIndex());
+        if (list != null) {
+            list.remove(watch);
+        }
+        return true;
+    }
+
+    private void announce(Watch watch, boolean watched, Set<String> nodes) {
+        if (nodes.isEmpty()) {
+            return;
+        }
+        try {
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("id", watch.getId())
+                    .field("index", watch.getIndex())
+                    .field("type", watch.getType())
+                    .field("watched", watched);
+            if (watch.hasQuery()) {
+                builder.field("query", watch.getQuerySource().toUtf8());
+            }
+            builder.startObject("channel")
+                    .field("id", watch.getChannelId())
+                    .field("localAddress", watch.getNodeAddress())
+                    .endObject()
+                    .endObject();
+            for (String node : nodes) {
+                transport.send(node, RemoteWatchAction.TYPE, builder);
+            }
+        } catch (IOException e) {
+            logger.warn("announcing watch {} failed", e, watch.getId());
+        }
+    }
+
+    /**
+     * Remove a watch.
+     *
+     * @param id the ID of the watch
+     * @return true if the watch existed
+     */
+    public boolean unwatch(String id) {
+        Watch watch = watches.get(id);
+        if (watch == null || !watch.isLocal() || !remove(watch)) {
+            return false;
+        }
+        announce(watch, false, peers);
+        return true;
+    }
+
+    public Watch get(String id) {
+        return watches.get(id);
+    }
+
+    private void attach(IndexShard indexShard) {
+        ShardListener listener = new ShardListener(indexShard);
+        if (shardListeners.putIfAbsent(indexShard.shardId(), listener) == null) {
+            indexShard.indexingService().addListener(listener);
+        }
+    }
+
+    private void detach(ShardId shardId, @Nullable IndexShard indexShard) {
+        ShardListener listener = shardListeners.remove(shardId);
+        if (listener != null && indexShard != null) {
+            indexShard.indexingService().removeListener(listener);
+        }
+    }
+
+    private void changed(final String op, final ShardId shardId, final Engine.IndexingOperation operation) {
+        List<Watch> list = indexWatches.get(shardId.index().name());
+        if (list == null || list.isEmpty() || operation.origin() != Engine.Operation.Origin.PRIMARY) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                match(op, shardId, operation);
+            }
+        }, operation.id(), shardId);
+    }
+
+    private void match(String op, ShardId shardId, Engine.IndexingOperation operation) {
+        List<Watch> list = indexWatches.get(shardId.index().name());
+        if (list == null || list.isEmpty()) {
+            return;
+        }
+        try {
+            MemoryIndex memoryIndex = null;
+            IndexService indexService = null;
+            List<Watch> matches = new ArrayList<Watch>();
+            for (Watch watch : list) {
+                if (!watch.matchesType(operation.type())) {
+                    continue;
+                }
+                if (watch.hasQuery()) {
+                    if (memoryIndex == null) {
+                        memoryIndex = memoryIndex(operation.parsedDoc());
+                        indexService = indicesService.indexServiceSafe(shardId.index().name());
+                    }
+                    if (memoryIndex.search(watch.query(indexService)) <= 0.0f) {
+                        continue;
+                    }
+                }
+                matches.add(watch);
+            }
+            if (matches.isEmpty()) {
+                return;
+            }
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("op", op)
+                    .field("_index", shardId.index().name())
+                    .field("_type", operation.type())
+                    .field("_id", operation.id())
+                    .field("_version", operation.version());
+            source(builder, operation.source());
+            builder.endObject();
+            send(builder, shardId.index().name() + "/" + operation.type() + "/" + operation.id(), matches);
+        } catch (Exception e) {
+            logger.error("change of {} in {} not sent", e, operation.id(), shardId);
+        }
+    }
+
+    private void deleted(final ShardId shardId, final Engine.Delete delete) {
+        List<Watch> list = indexWatches.get(shardId.index().name());
+        if (list == null || list.isEmpty() || delete.origin() != Engine.Operation.Origin.PRIMARY || !delete.found()) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                matchDelete(shardId, delete);
+            }
+        }, delete.id(), shardId);
+    }
+
+    private void matchDelete(ShardId shardId, Engine.Delete delete) {
+        List<Watch> list = indexWatches.get(shardId.index().name());
+        if (list == null || list.isEmpty()) {
+            return;
+        }
+        try {
+            List<Watch> matches = new ArrayList<Watch>();
+            for (Watch watch : list) {
+                if (watch.matchesType(delete.type())) {
+                    matches.add(watch);
+                }
+            }
+            if (matches.isEmpty()) {
+                return;
+            }
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("op", "delete")
+                    .field("_index", shardId.index().name())
+                    .field("_type", delete.type())
+                    .field("_id", delete.id())
+                    .field("_version", delete.version())
+                    .endObject();
+            send(builder, shardId.index().name() + "/" + delete.type() + "/" + delete.id(), matches);
+        } catch (Exception e) {
+            logger.error("delete of {} in {} not sent", e, delete.id(), shardId);
+        }
+    }
+
+    private void execute(Runnable runnable, String id, ShardId shardId) {
+        EsThreadPoolExecutor e = executor;
+        if (e == null) {
+            return;
+        }
+        try {
+            e.execute(runnable);
+        } catch (EsRejectedExecutionException ex) {
+            logger.warn("change of {} in {} dropped, {} changes are waiting", id, shardId, queueSize);
+        }
+    }
+
+    /**
+     * Push a change to the watching channels. Changes of the same document waiting for a slow
+     * channel may be coalesced into the latest one. The change is forwarded once to each other
+     * node with watching channels.
+     */
+    private void send(XContentBuilder builder, String key, List<Watch> matches) throws IOException {
+        NettyInteractiveResponse.Shared response = null;
+        Set<Integer> local = newHashSet();
+        Map<String, Set<Integer>> remote = newHashMap();
+        for (Watch watch : matches) {
+            if (watch.isLocal()) {
+                Channel channel = watch.getChannel();
+                if (channel.isConnected() && local.add(channel.getId())) {
+                    if (response == null) {
+                        response = new NettyInteractiveResponse.Shared(TYPE, builder);
+                    }
+                    OutboundBufferHandler.write(channel, response.response(channel), key);
+                }
+            } else {
+                Set<Integer> channelIds = remote.get(watch.getNodeAddress());
+                if (channelIds == null) {
+                    channelIds = newHashSet();
+                    remote.put(watch.getNodeAddress(), channelIds);
+                }
+                channelIds.add(watch.getChannelId());
+            }
+        }
+        for (Map.Entry<String, Set<Integer>> entry : remote.entrySet()) {
+            XContentBuilder forward = jsonBuilder().startObject()
+                    .field("key", key)
+                    .field("channels", entry.getValue())
+                    .rawField("change", builder.bytes())
+                    .endObject();
+            transport.send(entry.getKey(), RemoteChangeAction.TYPE, forward);
+        }
+    }
+
+    private static MemoryIndex memoryIndex(ParsedDocument doc) throws IOException {
+        MemoryIndex memoryIndex = new MemoryIndex();
+        for (IndexableField field : doc.rootDoc().getFields()) {
+            if (!field.fieldType().indexed()) {
+                continue;
+            }
+            TokenStream tokenStream = field.tokenStream(doc.analyzer(), null);
+            if (tokenStream != null) {
+                memoryIndex.addField(field.name(), tokenStream, field.boost());
+            }
+        }
+        return memoryIndex;
+    }
+
+    private static void source(XContentBuilder builder, BytesReference source) throws IOException {
+        if (source == null) {
+            return;
+        }
+        XContentType contentType = XContentFactory.xContentType(source);
+        if (contentType == XContentType.JSON) {
+            builder.rawField("_source", source);
+            return;
+        }
+        XContentParser parser = XContentFactory.xContent(contentType).createParser(source);
+        try {
+            parser.nextToken();
+            builder.field("_source").copyCurrentStructure(parser);
+        } finally {
+            parser.close();
+        }
+    }
+
+    class ShardListener extends IndexingOperationListener {
+
+        private final ShardId shardId;
+
+        ShardListener(IndexShard indexShard) {
+            this.shardId = indexShard.shardId();
+        }
+
+        @Override
+        public void postCreate(Engine.Create create) {
+            changed("create", shardId, create);
+        }
+
+        @Override
+        public void postIndex(Engine.Index index) {
+            changed("index", shardId, index);
+        }
+
+        @Override
+        public void postDelete(Engine.Delete delete) {
+            deleted(shardId, delete);
+        }
+    }
+}
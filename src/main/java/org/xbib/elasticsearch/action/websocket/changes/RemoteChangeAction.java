@@ -0,0 +1,66 @@
+package org.xbib.elasticsearch.action.websocket.changes;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.jboss.netty.channel.Channel;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
+import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * A document change forwarded by the node holding the primary of the document, for the
+ * watches of channels connected to this node. A channel which has closed in the meantime
+ * does not get the change.
+ */
+public class RemoteChangeAction extends BaseInteractiveHandler {
+
+    protected final static String TYPE = "remotechange";
+
+    private final HttpServerTransport transport;
+
+    @Inject
+    public RemoteChangeAction(Settings settings, Client client, InteractiveController controller,
+                              HttpServerTransport transport) {
+        super(settings, client);
+        this.transport = transport;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        Map<String, Object> m = request.asMap();
+        Object ids = m.get("channels");
+        Object change = m.get("change");
+        if (!(ids instanceof List) || !(change instanceof Map)) {
+            logger.warn("invalid change {}", m);
+            return;
+        }
+        try {
+            NettyInteractiveResponse.Shared response = new NettyInteractiveResponse.Shared(ChangeStreams.TYPE,
+                    jsonBuilder().map((Map<String, Object>) change));
+            for (Object id : (List<Object>) ids) {
+                Channel ch = id instanceof Number ? transport.channel(((Number) id).intValue()) : null;
+                if (ch != null && ch.isConnected()) {
+                    // don't send a success message back to the forwarding node
+                    OutboundBufferHandler.write(ch, response.response(ch), m.get("key"));
+                } else {
+                    logger.debug("change for channel {} not sent, the channel is gone", id);
+                }
+            }
+        } catch (IOException e) {
+            logger.error("error while sending change {}", e, m);
+        }
+    }
+}
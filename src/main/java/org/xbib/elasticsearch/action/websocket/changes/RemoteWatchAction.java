@@ -0,0 +1,57 @@
+package org.xbib.elasticsearch.action.websocket.changes;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.util.Map;
+
+/**
+ * Watch announcement from another node. Nodes announce the watches of the channels connected
+ * to them over the node links when they are added or removed, so the node holding the primary
+ * of a changed document can forward the change to them.
+ */
+public class RemoteWatchAction extends BaseInteractiveHandler {
+
+    protected final static String TYPE = "remotewatch";
+
+    private final ChangeStreams changeStreams;
+
+    @Inject
+    public RemoteWatchAction(Settings settings, Client client, InteractiveController controller,
+                             ChangeStreams changeStreams) {
+        super(settings, client);
+        this.changeStreams = changeStreams;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        Map<String, Object> m = request.asMap();
+        Object id = m.get("id");
+        Object index = m.get("index");
+        Object channelMap = m.get("channel");
+        if (id == null || index == null || !(channelMap instanceof Map)) {
+            logger.warn("invalid watch announcement {}", m);
+            return;
+        }
+        Object nodeAddress = ((Map<String, Object>) channelMap).get("localAddress");
+        Object channelId = ((Map<String, Object>) channelMap).get("id");
+        if (nodeAddress == null || !(channelId instanceof Number)) {
+            logger.warn("invalid watch announcement {}", m);
+            return;
+        }
+        Object type = m.get("type");
+        Object query = m.get("query");
+        // don't send a success message back to the announcing node
+        changeStreams.announced(new Watch(id.toString(), index.toString(), type != null ? type.toString() : null,
+                query != null ? new BytesArray(query.toString()) : null, nodeAddress.toString(),
+                ((Number) channelId).intValue()), !Boolean.FALSE.equals(m.get("watched")));
+    }
+}
@@ -0,0 +1,51 @@
+package org.xbib.elasticsearch.action.websocket.changes;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Unwatch action. Removes the watch with the given <code>id</code>.
+ */
+public class UnwatchAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "unwatch";
+
+    private final ChangeStreams changeStreams;
+
+    @Inject
+    public UnwatchAction(Settings settings, Client client, InteractiveController controller,
+                         ChangeStreams changeStreams) {
+        super(settings, client);
+        this.changeStreams = changeStreams;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        String id = request.paramAsString("id");
+        try {
+            if (id == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("id is null"));
+                return;
+            }
+            boolean found = changeStreams.unwatch(id);
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("id", id)
+                    .field("found", found)
+                    .endObject();
+            channel.sendResponse(TYPE, builder);
+        } catch (IOException e) {
+            logger.error("exception while processing unwatch request", e);
+        }
+    }
+}
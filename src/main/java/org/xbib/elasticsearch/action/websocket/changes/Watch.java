@@ -0,0 +1,114 @@
+package org.xbib.elasticsearch.action.websocket.changes;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.index.service.IndexService;
+import org.jboss.netty.channel.Channel;
+
+/**
+ * A subscription to the document changes of an index, optionally restricted to a type
+ * and to the documents matching a query. A watch is either local, with the channel
+ * connected to this node, or remote, with the address of the node and the ID of the
+ * channel on that node.
+ */
+public class Watch {
+
+    private final String id;
+
+    private final String index;
+
+    private final String type;
+
+    private final BytesReference querySource;
+
+    private final String nodeAddress;
+
+    private final Integer channelId;
+
+    private final Channel channel;
+
+    private IndexService indexService;
+
+    private Query query;
+
+    public Watch(String id, String index, @Nullable String type, @Nullable BytesReference querySource, Channel channel) {
+        this(id, index, type, querySource, channel.getLocalAddress().toString(), channel.getId(), channel);
+    }
+
+    public Watch(String id, String index, @Nullable String type, @Nullable BytesReference querySource,
+                 String nodeAddress, Integer channelId) {
+        this(id, index, type, querySource, nodeAddress, channelId, null);
+    }
+
+    private Watch(String id, String index, String type, BytesReference querySource,
+                  String nodeAddress, Integer channelId, Channel channel) {
+        this.id = id;
+        this.index = index;
+        this.type = type;
+        this.querySource = querySource;
+        this.nodeAddress = nodeAddress;
+        this.channelId = channelId;
+        this.channel = channel;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getNodeAddress() {
+        return nodeAddress;
+    }
+
+    public Integer getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * The channel of a local watch.
+     *
+     * @return the channel or null if the watch is on another node
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public boolean isLocal() {
+        return channel != null;
+    }
+
+    public boolean hasQuery() {
+        return querySource != null;
+    }
+
+    public BytesReference getQuerySource() {
+        return querySource;
+    }
+
+    public boolean matchesType(String type) {
+        return this.type == null || this.type.equals(type);
+    }
+
+    /**
+     * The query of this watch. The query is parsed with the mappings of the index service
+     * and parsed again if the index has been created again.
+     *
+     * @param indexService the index service
+     * @return the query
+     */
+    public synchronized Query query(IndexService indexService) {
+        if (this.indexService != indexService) {
+            this.query = indexService.queryParserService().parse(querySource).query();
+            this.indexService = indexService;
+        }
+        return query;
+    }
+}
@@ -0,0 +1,61 @@
+package org.xbib.elasticsearch.action.websocket.changes;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Watch action. Subscribes the channel to the document changes of an <code>index</code>,
+ * with an optional <code>type</code> and an optional <code>query</code>. The response
+ * contains the ID of the watch, the changes are sent as <code>change</code> responses.
+ */
+public class WatchAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "watch";
+
+    private final ChangeStreams changeStreams;
+
+    @Inject
+    public WatchAction(Settings settings, Client client, InteractiveController controller,
+                       ChangeStreams changeStreams) {
+        super(settings, client);
+        this.changeStreams = changeStreams;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        String index = request.paramAsString("index");
+        try {
+            if (index == null) {
+                channel.sendResponse(TYPE, new IllegalArgumentException("index is null"));
+                return;
+            }
+            BytesReference query = request.paramAsBytes("query");
+            Watch watch = changeStreams.watch(index, request.paramAsString("type"), query, channel.getChannel());
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("id", watch.getId())
+                    .field("index", watch.getIndex())
+                    .field("type", watch.getType())
+                    .endObject();
+            channel.sendResponse(TYPE, builder);
+        } catch (Exception e) {
+            logger.error("exception while processing watch request", e);
+            try {
+                channel.sendResponse(TYPE, e);
+            } catch (IOException e1) {
+                logger.error("exception while sending exception response", e1);
+            }
+        }
+    }
+}
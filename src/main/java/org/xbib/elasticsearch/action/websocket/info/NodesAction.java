@@ -0,0 +1,73 @@
+package org.xbib.elasticsearch.action.websocket.info;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfo;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoAction;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoRequest;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoResponse;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.io.IOException;
+import java.net.URI;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * Nodes action. Lists the nodes of the cluster with their websocket URIs, so
+ * clients can discover the nodes to connect to.
+ */
+public class NodesAction extends BaseInteractiveHandler {
+
+    private final static String TYPE = "nodes";
+
+    @Inject
+    public NodesAction(Settings settings, Client client, InteractiveController controller) {
+        super(settings, client);
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        client.admin().cluster().execute(WebsocketInfoAction.INSTANCE, new WebsocketInfoRequest(),
+                new ActionListener<WebsocketInfoResponse>() {
+                    @Override
+                    public void onResponse(WebsocketInfoResponse response) {
+                        try {
+                            XContentBuilder builder = jsonBuilder().startObject().startArray("nodes");
+                            for (WebsocketInfo info : response.getNodes()) {
+                                InetSocketTransportAddress address = info.getAddress();
+                                URI uri = new URI("ws", null, address.address().getAddress().getHostAddress(),
+                                        address.address().getPort(), "/websocket", null, null);
+                                builder.startObject()
+                                        .field("id", info.getNode().id())
+                                        .field("name", info.getNode().name())
+                                        .field("uri", uri.toString())
+                                        .endObject();
+                            }
+                            builder.endArray().endObject();
+                            channel.sendResponse(TYPE, builder);
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        logger.error("error while processing nodes request", e);
+                        try {
+                            channel.sendResponse(TYPE, e);
+                        } catch (IOException ex) {
+                            logger.error("error while sending error response", ex);
+                        }
+                    }
+                });
+    }
+}
@@ -1,117 +1,632 @@
 package org.xbib.elasticsearch.action.websocket.pubsub;
 
 import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteResponse;
 import org.elasticsearch.action.get.GetResponse;
-import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
-import org.elasticsearch.common.logging.ESLogger;
-import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
-import org.xbib.elasticsearch.websocket.InteractiveChannel;
-import org.xbib.elasticsearch.action.websocket.bulk.BulkHandler;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.elasticsearch.common.collect.Maps.newHashMap;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
-/*
+/**
  * Checkpoint management for topics and subscribers.
+ *
+ * Each topic has a sequence log in memory. Messages published on this node get the next
+ * sequence number of their topic, and each subscriber connected to this node has a cursor per
+ * topic and origin node with the sequence number of the last message of that node written to it.
+ * Nothing is written per message. Every checkpoint interval, the topics that changed are written
+ * in a single bulk, one checkpoint document per topic and node with the head sequence and the
+ * cursors of the subscribers.
+ *
+ * Sequence numbers are derived from the clock, so they keep increasing across restarts without
+ * coordination: the next sequence number is the current time in microseconds, or the last one
+ * plus one if that is higher. Clocks of different nodes are not in sync, so sequence numbers
+ * are only ordered within the messages of one node. Cursors are kept by origin node, and are
+ * only compared with sequence numbers of the same node.
+ *
+ * The cursors of a subscriber are dropped when it unsubscribes. When its channel closes, they
+ * are saved in its subscription document and dropped from memory, see {@link SubscriberRegistry}.
+ * A topic without cursors which has not been published to or delivered from for
+ * <code>pubsub.topic_expiry</code> (default 1h) is removed with its checkpoint document and
+ * its replay buffer, see {@link ReplayBuffers}.
  */
 public class Checkpointer extends AbstractLifecycleComponent<Checkpointer> {
 
-    private final ESLogger logger = ESLoggerFactory.getLogger(Checkpointer.class.getSimpleName());
+    private final static String TYPE = "checkpoint";
+
+    private final Client client;
+
+    private final ClusterService clusterService;
+
+    private final ThreadPool threadPool;
+
+    private final ReplayBuffers buffers;
 
     private final String pubSubIndexName;
 
-    private final Client client;
+    private final TimeValue checkpointInterval;
 
-    private final static String TYPE = "checkpoint";
+    private final TimeValue topicExpiry;
+
+    private final ConcurrentMap<String, TopicLog> topics = ConcurrentCollections.newConcurrentMap();
 
-    private final BulkHandler bulkHandler;
+    private volatile ScheduledFuture checkpointFuture;
 
     @Inject
-    public Checkpointer(Settings settings, Client client) {
+    public Checkpointer(Settings settings, Client client, ClusterService clusterService, ThreadPool threadPool,
+                        ReplayBuffers buffers) {
         super(settings);
         this.client = client;
-        this.bulkHandler = new BulkHandler(settings, client);
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.buffers = buffers;
         this.pubSubIndexName = PubSubIndexName.Conf.indexName(settings);
+        this.checkpointInterval = settings.getAsTime("pubsub.checkpoint_interval", TimeValue.timeValueSeconds(1));
+        this.topicExpiry = settings.getAsTime("pubsub.topic_expiry", TimeValue.timeValueHours(1));
     }
 
     @Override
     protected void doStart() throws ElasticsearchException {
+        if (checkpointInterval.millis() > 0) {
+            this.checkpointFuture = threadPool.schedule(checkpointInterval, ThreadPool.Names.GENERIC, new Checkpoint());
+        }
     }
 
     @Override
     protected void doStop() throws ElasticsearchException {
+        if (checkpointFuture != null) {
+            checkpointFuture.cancel(false);
+            checkpointFuture = null;
+        }
+        try {
+            checkpoint(null);
+        } catch (Exception e) {
+            logger.warn("final checkpoint failed", e);
+        }
     }
 
     @Override
     protected void doClose() throws ElasticsearchException {
+        topics.clear();
     }
 
     /**
-     * Checkpointing a topic or a subscriber. The current timestamp is written
-     * to the checkpoint index type. Note that bulk index requests are used by
-     * checkpointing and flushCheckpoint() needs to be called after all is done.
+     * The origin of the messages published on this node, which is the node ID.
      *
-     * @param id topic or subscriber
-     * @throws IOException if this method fails
+     * @return the origin
      */
-    public void checkpoint(String id) throws IOException {
-        indexBulk(Requests.indexRequest(pubSubIndexName).type(TYPE).id(id)
-                .source(jsonBuilder().startObject().field("timestamp", System.currentTimeMillis()).endObject()), null);
+    public String origin() {
+        return clusterService.localNode() != null ? clusterService.localNode().id() : null;
     }
 
-    public void flushCheckpoint() throws IOException {
-        flushBulk(null);
+    /**
+     * Assign the next sequence number of a topic.
+     *
+     * @param topic the topic
+     * @return the sequence number
+     */
+    public long next(String topic) {
+        return log(topic).next();
+    }
+
+    /**
+     * A listener for the write of a message published on this node to a subscriber channel,
+     * which advances the cursor of the subscriber when the message has been written.
+     *
+     * @param topic        the topic of the message
+     * @param subscriberId the subscriber
+     * @param seq          the sequence number of the message
+     * @return the listener
+     */
+    public ChannelFutureListener delivery(String topic, String subscriberId, long seq) {
+        return delivery(topic, origin(), subscriberId, seq);
+    }
+
+    /**
+     * A listener for the write of a message to a subscriber channel, which advances the cursor
+     * of the subscriber for the origin of the message when the message has been written.
+     *
+     * @param topic        the topic of the message
+     * @param origin       the node the message was published on
+     * @param subscriberId the subscriber
+     * @param seq          the sequence number of the message
+     * @return the listener
+     */
+    public ChannelFutureListener delivery(final String topic, final String origin, final String subscriberId,
+                                          final long seq) {
+        return new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                // the log is looked up now, it may have expired since the write was queued
+                if (future.isSuccess() && origin != null) {
+                    log(topic).advance(subscriberId, origin, seq);
+                }
+            }
+        };
     }
 
-    public Long checkpointedAt(String id) throws IOException {
-        GetResponse response = client.prepareGet(pubSubIndexName, TYPE, id)
-                .setFields("timestamp")
-                .execute().actionGet();
-        boolean failed = !response.isExists();
-        if (failed) {
-            logger.warn("can't get checkpoint for {}", id);
-            return null;
-        } else {
-            return (Long) response.getFields().get("timestamp").getValue();
+    /**
+     * The cursors of a subscriber on this node.
+     *
+     * @param subscriberId the subscriber
+     * @return the sequence numbers by topic and origin node
+     */
+    public Map<String, Map<String, Long>> cursors(String subscriberId) {
+        Map<String, Map<String, Long>> cursors = newHashMap();
+        for (Map.Entry<String, TopicLog> entry : topics.entrySet()) {
+            Map<String, Long> origins = entry.getValue().cursors.get(subscriberId);
+            if (origins != null && !origins.isEmpty()) {
+                cursors.put(entry.getKey(), newHashMap(origins));
+            }
         }
+        return cursors;
     }
 
     /**
-     * Perform bulk indexing
+     * Drop the cursors of a subscriber on this node. The next checkpoint no longer holds them.
      *
-     * @param request the index request
-     * @param channel the interactive channel
-     * @throws IOException if this method fails
+     * @param subscriberId the subscriber
      */
-    public void indexBulk(IndexRequest request, InteractiveChannel channel) throws IOException {
-        bulkHandler.add(request, channel);
+    public void remove(String subscriberId) {
+        for (TopicLog log : topics.values()) {
+            if (log.cursors.remove(subscriberId) != null) {
+                log.dirty.set(true);
+            }
+        }
     }
 
     /**
-     * Perform bulk delete
+     * Look up the positions of a subscriber in the topics matching a subscription topic,
+     * from the checkpoints of all nodes, the cursors saved in the subscription document
+     * when the subscriber disconnected, and the cursors on this node. The cursors found
+     * are taken over by this node, which is where the subscriber is connected now. The positions are kept
+     * by topic and origin node. Topics the subscriber has never received a message from are
+     * omitted. In a topic the subscriber has received messages from, an origin node it has
+     * never received a message from gets the highest cursor of the subscriber in the topic,
+     * which is the best guess the clock based sequence numbers allow.
      *
-     * @param request the delete request
-     * @param channel the interactive channel
-     * @throws IOException if this method fails
+     * @param subscriberId the subscriber
+     * @param subscription the subscription topic, may contain wildcards
+     * @param listener     the listener for the positions by topic and origin
      */
-    public void deleteBulk(DeleteRequest request, InteractiveChannel channel) throws IOException {
-        bulkHandler.add(request, channel);
+    public void positions(final String subscriberId, final String subscription,
+                          final ActionListener<Map<String, Map<String, Position>>> listener) {
+        final Map<String, Map<String, Long>> cursors = newHashMap();
+        final Map<String, Map<String, Long>> heads = newHashMap();
+        final String localNodeId = origin();
+        for (Map.Entry<String, TopicLog> entry : topics.entrySet()) {
+            if (!TopicTrie.matches(subscription, entry.getKey())) {
+                continue;
+            }
+            if (localNodeId != null) {
+                merge(heads, entry.getKey(), localNodeId, entry.getValue().head.get());
+            }
+            Map<String, Long> cursor = entry.getValue().cursors.get(subscriberId);
+            if (cursor != null) {
+                for (Map.Entry<String, Long> c : cursor.entrySet()) {
+                    merge(cursors, entry.getKey(), c.getKey(), c.getValue());
+                }
+            }
+        }
+        client.prepareGet(pubSubIndexName, SubscribeAction.TYPE, subscriberId)
+                .execute(new ActionListener<GetResponse>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public void onResponse(GetResponse response) {
+                        Object saved = response.isExists() ? response.getSourceAsMap().get("cursors") : null;
+                        if (saved instanceof List) {
+                            for (Map<String, Object> cursor : (List<Map<String, Object>>) saved) {
+                                Object topic = cursor.get("topic");
+                                if (topic != null && cursor.get("node") != null
+                                        && TopicTrie.matches(subscription, topic.toString())) {
+                                    merge(cursors, topic.toString(), cursor.get("node").toString(),
+                                            ((Number) cursor.get("seq")).longValue());
+                                }
+                            }
+                        }
+                        checkpoints(subscriberId, subscription, cursors, heads, listener);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+                            listener.onResponse(take(subscriberId, cursors, heads));
+                        } else {
+                            listener.onFailure(e);
+                        }
+                    }
+                });
+    }
+
+    private void checkpoints(final String subscriberId, final String subscription,
+                             final Map<String, Map<String, Long>> cursors, final Map<String, Map<String, Long>> heads,
+                             final ActionListener<Map<String, Map<String, Position>>> listener) {
+        // the heads of all nodes are needed, not only of those with a cursor of the subscriber
+        client.prepareSearch()
+                .setIndices(pubSubIndexName)
+                .setTypes(TYPE)
+                .setSearchType(SearchType.SCAN)
+                .setScroll(new TimeValue(60000))
+                .setSize(100)
+                .execute(new ActionListener<SearchResponse>() {
+
+                    private boolean scanned;
+
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public void onResponse(SearchResponse searchResponse) {
+                        // the scan response has no hits, an empty scroll response ends the scroll
+                        if (searchResponse.getHits().getTotalHits() == 0L
+                                || (scanned && searchResponse.getHits().hits().length == 0)) {
+                            listener.onResponse(take(subscriberId, cursors, heads));
+                            return;
+                        }
+                        scanned = true;
+                        for (SearchHit hit : searchResponse.getHits()) {
+                            Map<String, Object> source = hit.sourceAsMap();
+                            String topic = (String) source.get("topic");
+                            String node = (String) source.get("node");
+                            if (topic == null || node == null || !TopicTrie.matches(subscription, topic)) {
+                                continue;
+                            }
+                            merge(heads, topic, node, ((Number) source.get("seq")).longValue());
+                            if (!(source.get("cursors") instanceof List)) {
+                                continue;
+                            }
+                            for (Map<String, Object> cursor : (List<Map<String, Object>>) source.get("cursors")) {
+                                if (subscriberId.equals(cursor.get("id")) && cursor.get("node") != null) {
+                                    merge(cursors, topic, cursor.get("node").toString(),
+                                            ((Number) cursor.get("seq")).longValue());
+                                }
+                            }
+                        }
+                        client.prepareSearchScroll(searchResponse.getScrollId())
+                                .setScroll(new TimeValue(60000))
+                                .execute(this);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+                            listener.onResponse(take(subscriberId, cursors, heads));
+                        } else {
+                            listener.onFailure(e);
+                        }
+                    }
+                });
+    }
+
+    private Map<String, Map<String, Position>> take(String subscriberId, Map<String, Map<String, Long>> cursors,
+                                                    Map<String, Map<String, Long>> heads) {
+        for (Map.Entry<String, Map<String, Long>> entry : cursors.entrySet()) {
+            for (Map.Entry<String, Long> cursor : entry.getValue().entrySet()) {
+                log(entry.getKey()).advance(subscriberId, cursor.getKey(), cursor.getValue());
+            }
+        }
+        return positions(cursors, heads);
+    }
+
+    private static void merge(Map<String, Map<String, Long>> map, String topic, String origin, long seq) {
+        Map<String, Long> origins = map.get(topic);
+        if (origins == null) {
+            origins = newHashMap();
+            map.put(topic, origins);
+        }
+        Long current = origins.get(origin);
+        if (current == null || current < seq) {
+            origins.put(origin, seq);
+        }
+    }
+
+    private static Map<String, Map<String, Position>> positions(Map<String, Map<String, Long>> cursors,
+                                                                Map<String, Map<String, Long>> heads) {
+        Map<String, Map<String, Position>> positions = newHashMap();
+        for (Map.Entry<String, Map<String, Long>> entry : cursors.entrySet()) {
+            String topic = entry.getKey();
+            long highest = 0L;
+            for (Long cursor : entry.getValue().values()) {
+                highest = Math.max(highest, cursor);
+            }
+            Map<String, Position> origins = newHashMap();
+            Map<String, Long> topicHeads = heads.containsKey(topic) ? heads.get(topic) : Collections.<String, Long>emptyMap();
+            for (Map.Entry<String, Long> head : topicHeads.entrySet()) {
+                Long cursor = entry.getValue().get(head.getKey());
+                origins.put(head.getKey(), new Position(topic, head.getKey(),
+                        cursor != null ? cursor : highest, head.getValue()));
+            }
+            for (Map.Entry<String, Long> cursor : entry.getValue().entrySet()) {
+                if (!origins.containsKey(cursor.getKey())) {
+                    // the head of the origin is not checkpointed yet
+                    origins.put(cursor.getKey(), new Position(topic, cursor.getKey(), cursor.getValue(), Long.MAX_VALUE));
+                }
+            }
+            positions.put(topic, origins);
+        }
+        return positions;
     }
 
     /**
-     * Flush bulk
+     * Write the checkpoints of the topics changed since the last checkpoint in one bulk.
      *
-     * @param channel the interactive channel
-     * @throws IOException if this method fails
+     * @param listener the listener for the bulk response, or null
+     * @throws IOException if the checkpoint documents can not be built
+     */
+    public void checkpoint(final ActionListener<BulkResponse> listener) throws IOException {
+        if (topics.isEmpty() || clusterService.localNode() == null) {
+            return;
+        }
+        String nodeId = clusterService.localNode().id();
+        BulkRequest bulkRequest = Requests.bulkRequest();
+        final Map<String, TopicLog> pending = newHashMap();
+        for (Map.Entry<String, TopicLog> entry : topics.entrySet()) {
+            TopicLog log = entry.getValue();
+            if (!log.dirty.getAndSet(false)) {
+                continue;
+            }
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("topic", entry.getKey())
+                    .field("node", nodeId)
+                    .field("seq", log.head.get())
+                    .field("timestamp", System.currentTimeMillis())
+                    .startArray("cursors");
+            for (Map.Entry<String, ConcurrentMap<String, Long>> cursor : log.cursors.entrySet()) {
+                for (Map.Entry<String, Long> origin : cursor.getValue().entrySet()) {
+                    builder.startObject()
+                            .field("id", cursor.getKey())
+                            .field("node", origin.getKey())
+                            .field("seq", origin.getValue())
+                            .endObject();
+                }
+            }
+            builder.endArray().endObject();
+            String id = nodeId + ":" + entry.getKey();
+            bulkRequest.add(Requests.indexRequest(pubSubIndexName).type(TYPE).id(id).source(builder));
+            pending.put(id, log);
+        }
+        if (bulkRequest.numberOfActions() == 0) {
+            return;
+        }
+        client.bulk(bulkRequest, new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                for (BulkItemResponse item : response.getItems()) {
+                    if (item.isFailed()) {
+                        // write it again with the next checkpoint
+                        pending.get(item.getId()).dirty.set(true);
+                        logger.warn("checkpoint {} failed: {}", item.getId(), item.getFailureMessage());
+                    }
+                }
+                if (listener != null) {
+                    listener.onResponse(response);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                for (TopicLog log : pending.values()) {
+                    log.dirty.set(true);
+                }
+                logger.error("checkpoint failed", e);
+                if (listener != null) {
+                    listener.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the topics without cursors which have been idle for the topic expiry, and their
+     * checkpoint documents. Topics whose checkpoint is not written yet are kept until it is.
+     * The idle replay buffers are removed too.
+     */
+    void expire() {
+        if (topicExpiry.millis() <= 0 || clusterService.localNode() == null) {
+            return;
+        }
+        String nodeId = clusterService.localNode().id();
+        long now = System.currentTimeMillis();
+        buffers.expire(now);
+        for (Map.Entry<String, TopicLog> entry : topics.entrySet()) {
+            final String topic = entry.getKey();
+            TopicLog log = entry.getValue();
+            if (!log.cursors.isEmpty() || log.dirty.get() || now - log.touched < topicExpiry.millis()
+                    || !topics.remove(topic, log)) {
+                continue;
+            }
+            if (!log.cursors.isEmpty() || log.dirty.get()) {
+                // a message was published or delivered while the topic was removed
+                log(topic).absorb(log);
+                continue;
+            }
+            client.prepareDelete(pubSubIndexName, TYPE, nodeId + ":" + topic)
+                    .execute(new ActionListener<DeleteResponse>() {
+                        @Override
+                        public void onResponse(DeleteResponse response) {
+                            logger.debug("expired topic {}", topic);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.warn("deleting the checkpoint of expired topic {} failed", e, topic);
+                        }
+                    });
+        }
+    }
+
+    private TopicLog log(String topic) {
+        TopicLog log = topics.get(topic);
+        if (log == null) {
+            TopicLog newLog = new TopicLog();
+            log = topics.putIfAbsent(topic, newLog);
+            if (log == null) {
+                log = newLog;
+            }
+        }
+        return log;
+    }
+
+    /**
+     * The position of a subscriber in the messages of a topic published on an origin node.
      */
-    public void flushBulk(InteractiveChannel channel) throws IOException {
-        bulkHandler.flush();
+    public static class Position {
+
+        private final String topic;
+
+        private final String origin;
+
+        private final long cursor;
+
+        private final long head;
+
+        public Position(String topic, String origin, long cursor, long head) {
+            this.topic = topic;
+            this.origin = origin;
+            this.cursor = cursor;
+            this.head = head;
+        }
+
+        public String getTopic() {
+            return topic;
+        }
+
+        /**
+         * @return the ID of the node the messages are published on
+         */
+        public String getOrigin() {
+            return origin;
+        }
+
+        /**
+         * @return the sequence number of the last message of the origin written to the subscriber
+         */
+        public long getCursor() {
+            return cursor;
+        }
+
+        /**
+         * @return the sequence number of the last message of the topic published on the origin,
+         * or Long.MAX_VALUE if it is not known
+         */
+        public long getHead() {
+            return head;
+        }
+
+        public boolean isBehind() {
+            return cursor < head;
+        }
+    }
+
+    static class TopicLog {
+
+        private final AtomicLong head = new AtomicLong();
+
+        // the cursors by subscriber and origin node
+        private final ConcurrentMap<String, ConcurrentMap<String, Long>> cursors = ConcurrentCollections.newConcurrentMap();
+
+        private final AtomicBoolean dirty = new AtomicBoolean();
+
+        // the time of the last message published or delivered
+        private volatile long touched = System.currentTimeMillis();
+
+        long next() {
+            long now = System.currentTimeMillis() * 1000L;
+            while (true) {
+                long last = head.get();
+                long seq = Math.max(last + 1, now);
+                if (head.compareAndSet(last, seq)) {
+                    touched = System.currentTimeMillis();
+                    dirty.set(true);
+                    return seq;
+                }
+            }
+        }
+
+        void advance(String subscriberId, String origin, long seq) {
+            ConcurrentMap<String, Long> origins = cursors.get(subscriberId);
+            if (origins == null) {
+                ConcurrentMap<String, Long> newOrigins = ConcurrentCollections.newConcurrentMap();
+                origins = cursors.putIfAbsent(subscriberId, newOrigins);
+                if (origins == null) {
+                    origins = newOrigins;
+                }
+            }
+            while (true) {
+                Long cursor = origins.get(origin);
+                if (cursor == null) {
+                    if (origins.putIfAbsent(origin, seq) == null) {
+                        break;
+                    }
+                } else if (cursor >= seq) {
+                    return;
+                } else if (origins.replace(origin, cursor, seq)) {
+                    break;
+                }
+            }
+            touched = System.currentTimeMillis();
+            dirty.set(true);
+        }
+
+        void absorb(TopicLog log) {
+            while (true) {
+                long last = head.get();
+                if (last >= log.head.get() || head.compareAndSet(last, log.head.get())) {
+                    break;
+                }
+            }
+            for (Map.Entry<String, ConcurrentMap<String, Long>> cursor : log.cursors.entrySet()) {
+                for (Map.Entry<String, Long> origin : cursor.getValue().entrySet()) {
+                    advance(cursor.getKey(), origin.getKey(), origin.getValue());
+                }
+            }
+            dirty.set(true);
+        }
+    }
+
+    class Checkpoint implements Runnable {
+
+        @Override
+        public void run() {
+            if (!lifecycle.started()) {
+                return;
+            }
+            try {
+                checkpoint(null);
+                expire();
+            } catch (Exception e) {
+                logger.error("checkpoint failed", e);
+            }
+            if (lifecycle.started()) {
+                checkpointFuture = threadPool.schedule(checkpointInterval, ThreadPool.Names.GENERIC, this);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -9,41 +9,80 @@ import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveController;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
 /**
- * Forwarding a message to a destination.
+ * Forwarding a message to a destination. If the forward frame names the subscribers of
+ * the channels, their cursors advance here when the message has been written, this node
+ * owns the channels and is the only one which knows if the message was delivered. A
+ * subscriber which is no longer connected to the channel does not get the message.
  */
 public class ForwardAction extends BaseInteractiveHandler {
 
     private final String TYPE = "forward";
     private final HttpServerTransport transport;
+    private final Checkpointer service;
+    private final SubscriberRegistry registry;
 
     @Inject
     public ForwardAction(Settings settings,
                          Client client,
                          HttpServerTransport transport,
-                         InteractiveController controller) {
+                         InteractiveController controller,
+                         Checkpointer service,
+                         SubscriberRegistry registry) {
         super(settings, client);
         this.transport = transport;
+        this.service = service;
+        this.registry = registry;
         controller.registerHandler(TYPE, this);
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
         Map<String, Object> m = request.asMap();
-        Integer id = (Integer) m.get("channel");
-        Channel ch = transport.channel(id);
+        // a forward frame carries the message once for a list of channels, or for a single channel
+        List<Integer> ids = m.containsKey("channels") ?
+                (List<Integer>) m.get("channels") : Collections.singletonList((Integer) m.get("channel"));
+        List<String> subscriberIds = (List<String>) m.get("subscribers");
         try {
-            if (ch != null) {
-                ch.write(new NettyInteractiveResponse("message", (Map<String, Object>) m.get("message")).response());
-                // don't send a success message back to the channel
-            } else {
-                // delivery failed, channel not present
-                channel.sendResponse(TYPE, new IOException("channel " + id + " gone"));
+            Map<String, Object> forwarded = (Map<String, Object>) m.get("message");
+            NettyInteractiveResponse.Shared message = new NettyInteractiveResponse.Shared("message",
+                    jsonBuilder().map(forwarded));
+            // the topic of the message is the key for coalescing messages waiting for slow channels
+            Object topic = m.get("topic");
+            if (topic == null) {
+                Object data = forwarded.get("data");
+                topic = data instanceof Map ? ((Map<String, Object>) data).get("topic") : null;
+            }
+            Object seq = forwarded.get("seq");
+            Object origin = forwarded.get("origin");
+            for (int i = 0; i < ids.size(); i++) {
+                Integer id = ids.get(i);
+                Channel ch = transport.channel(id);
+                Subscriber subscriber = subscriberIds != null ? registry.subscriber(subscriberIds.get(i)) : null;
+                if (ch != null && subscriber != null && subscriber.getChannelId().equals(id)
+                        && topic != null && origin != null && seq instanceof Number) {
+                    // the subscriber holds the message back while it catches up
+                    long n = ((Number) seq).longValue();
+                    subscriber.deliver(message.response(ch), topic.toString(), origin.toString(), n,
+                            service.delivery(topic.toString(), origin.toString(), subscriber.getId(), n));
+                } else if (ch != null && subscriberIds == null) {
+                    OutboundBufferHandler.write(ch, message.response(ch), topic);
+                    // don't send a success message back to the channel
+                } else {
+                    // delivery failed, channel not present
+                    channel.sendResponse(TYPE, new IOException("channel " + id + " gone"));
+                }
             }
         } catch (IOException ex) {
             logger.error("error while delivering forward message {}: {}", m, ex);
@@ -0,0 +1,368 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A subscription query compiled into a tree of predicates over the fields of a message.
+ *
+ * Published messages have no mapping, so the query is not run by Lucene. It is compiled once
+ * at subscribe time and evaluated directly against the message map, which costs a few map
+ * lookups per clause and no allocation. The query DSL subset is
+ * <code>match_all</code>, <code>term</code>, <code>terms</code>, <code>range</code>,
+ * <code>prefix</code>, <code>exists</code>, <code>missing</code> and <code>bool</code>
+ * with <code>must</code>, <code>should</code> and <code>must_not</code>.
+ *
+ * Fields are addressed by dotted paths into the message, a field with a list of values
+ * matches if one of the values matches. Numbers are compared as numbers, everything else
+ * as strings.
+ */
+public abstract class MessageFilter {
+
+    public static final MessageFilter MATCH_ALL = new MessageFilter() {
+        @Override
+        public boolean matches(Map<String, Object> message) {
+            return true;
+        }
+    };
+
+    /**
+     * Check if a message matches.
+     *
+     * @param message the message data
+     * @return true if the message matches
+     */
+    public abstract boolean matches(Map<String, Object> message);
+
+    /**
+     * Compile a query.
+     *
+     * @param query the query, a map with a single query type
+     * @return the filter
+     * @throws ElasticsearchIllegalArgumentException if the query is malformed or not supported
+     */
+    @SuppressWarnings("unchecked")
+    public static MessageFilter compile(Map<String, Object> query) {
+        if (query == null || query.size() != 1) {
+            throw new ElasticsearchIllegalArgumentException("query must have exactly one query type: " + query);
+        }
+        Map.Entry<String, Object> entry = query.entrySet().iterator().next();
+        String name = entry.getKey();
+        if ("match_all".equals(name)) {
+            return MATCH_ALL;
+        }
+        if ("bool".equals(name)) {
+            Map<String, Object> bool = map(name, entry.getValue());
+            return new Bool(clauses(bool.get("must")), clauses(bool.get("should")), clauses(bool.get("must_not")));
+        }
+        if ("exists".equals(name) || "missing".equals(name)) {
+            Object field = map(name, entry.getValue()).get("field");
+            if (field == null) {
+                throw new ElasticsearchIllegalArgumentException("no field in " + name + " query");
+            }
+            return new Exists(path(field.toString()), "exists".equals(name));
+        }
+        Map<String, Object> body = map(name, entry.getValue());
+        if (body.size() != 1) {
+            throw new ElasticsearchIllegalArgumentException(name + " query must have exactly one field: " + body);
+        }
+        Map.Entry<String, Object> field = body.entrySet().iterator().next();
+        String[] path = path(field.getKey());
+        Object value = field.getValue();
+        if ("term".equals(name)) {
+            if (value instanceof Map) {
+                value = ((Map<String, Object>) value).get("value");
+            }
+            return new Term(path, value);
+        }
+        if ("terms".equals(name)) {
+            if (!(value instanceof Collection)) {
+                throw new ElasticsearchIllegalArgumentException("terms query needs a list of values");
+            }
+            return new Terms(path, (Collection<Object>) value);
+        }
+        if ("prefix".equals(name)) {
+            if (value instanceof Map) {
+                value = ((Map<String, Object>) value).get("value");
+            }
+            if (value == null) {
+                throw new ElasticsearchIllegalArgumentException("no value in prefix query");
+            }
+            return new Prefix(path, value.toString());
+        }
+        if ("range".equals(name)) {
+            Map<String, Object> range = map(name, value);
+            Object from = range.get("gte") != null ? range.get("gte") : range.get("gt");
+            Object to = range.get("lte") != null ? range.get("lte") : range.get("lt");
+            if (from == null && to == null) {
+                throw new ElasticsearchIllegalArgumentException("range query needs gt, gte, lt or lte");
+            }
+            return new Range(path, from, range.get("gte") != null, to, range.get("lte") != null);
+        }
+        throw new ElasticsearchIllegalArgumentException("query type [" + name + "] is not supported in subscriptions");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> map(String name, Object value) {
+        if (!(value instanceof Map)) {
+            throw new ElasticsearchIllegalArgumentException(name + " query must be an object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static MessageFilter[] clauses(Object value) {
+        if (value == null) {
+            return new MessageFilter[0];
+        }
+        List<MessageFilter> filters = new ArrayList<MessageFilter>();
+        if (value instanceof Collection) {
+            for (Object clause : (Collection<Object>) value) {
+                filters.add(compile(map("bool", clause)));
+            }
+        } else {
+            filters.add(compile(map("bool", value)));
+        }
+        return filters.toArray(new MessageFilter[filters.size()]);
+    }
+
+    private static String[] path(String field) {
+        return field.split("\\.");
+    }
+
+    /**
+     * Resolve a path in a message.
+     *
+     * @param message the message
+     * @param path    the path
+     * @return the value, a collection of values, or null if the path does not exist
+     */
+    @SuppressWarnings("unchecked")
+    static Object value(Map<String, Object> message, String[] path) {
+        Object value = message;
+        for (String name : path) {
+            if (!(value instanceof Map)) {
+                return null;
+            }
+            value = ((Map<String, Object>) value).get(name);
+        }
+        return value;
+    }
+
+    /**
+     * Compare a message value with a query value, numbers as numbers, all else as strings.
+     *
+     * @return the comparison result, or null if the values are not comparable
+     */
+    static Integer compare(Object value, Object other) {
+        if (value instanceof Number && other instanceof Number) {
+            if (isIntegral(value) && isIntegral(other)) {
+                long l1 = ((Number) value).longValue();
+                long l2 = ((Number) other).longValue();
+                return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+            }
+            return Double.compare(((Number) value).doubleValue(), ((Number) other).doubleValue());
+        }
+        if (value instanceof Number || other instanceof Number) {
+            Number number = value instanceof Number ? (Number) value : (Number) other;
+            String string = value instanceof Number ? other.toString() : value.toString();
+            try {
+                int c = Double.compare(number.doubleValue(), Double.parseDouble(string));
+                return value instanceof Number ? c : -c;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return value.toString().compareTo(other.toString());
+    }
+
+    private static boolean isIntegral(Object number) {
+        return number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    /**
+     * A predicate on the values of a field.
+     */
+    abstract static class FieldFilter extends MessageFilter {
+
+        protected final String[] path;
+
+        FieldFilter(String[] path) {
+            this.path = path;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public boolean matches(Map<String, Object> message) {
+            Object value = value(message, path);
+            if (value == null) {
+                return false;
+            }
+            if (value instanceof Collection) {
+                for (Object v : (Collection<Object>) value) {
+                    if (v != null && matches(v)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matches(value);
+        }
+
+        protected abstract boolean matches(Object value);
+    }
+
+    static class Term extends FieldFilter {
+
+        private final Object term;
+
+        Term(String[] path, Object term) {
+            super(path);
+            if (term == null) {
+                throw new ElasticsearchIllegalArgumentException("no value in term query");
+            }
+            this.term = term;
+        }
+
+        @Override
+        protected boolean matches(Object value) {
+            Integer c = compare(value, term);
+            return c != null && c == 0;
+        }
+    }
+
+    static class Terms extends FieldFilter {
+
+        private final Object[] terms;
+
+        Terms(String[] path, Collection<Object> terms) {
+            super(path);
+            this.terms = terms.toArray();
+        }
+
+        @Override
+        protected boolean matches(Object value) {
+            for (Object term : terms) {
+                Integer c = compare(value, term);
+                if (c != null && c == 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static class Prefix extends FieldFilter {
+
+        private final String prefix;
+
+        Prefix(String[] path, String prefix) {
+            super(path);
+            this.prefix = prefix;
+        }
+
+        @Override
+        protected boolean matches(Object value) {
+            return value.toString().startsWith(prefix);
+        }
+    }
+
+    static class Range extends FieldFilter {
+
+        private final Object from;
+
+        private final boolean includeFrom;
+
+        private final Object to;
+
+        private final boolean includeTo;
+
+        Range(String[] path, Object from, boolean includeFrom, Object to, boolean includeTo) {
+            super(path);
+            this.from = from;
+            this.includeFrom = includeFrom;
+            this.to = to;
+            this.includeTo = includeTo;
+        }
+
+        @Override
+        protected boolean matches(Object value) {
+            if (from != null) {
+                Integer c = compare(value, from);
+                if (c == null || c < 0 || (c == 0 && !includeFrom)) {
+                    return false;
+                }
+            }
+            if (to != null) {
+                Integer c = compare(value, to);
+                if (c == null || c > 0 || (c == 0 && !includeTo)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Exists extends MessageFilter {
+
+        private final String[] path;
+
+        private final boolean exists;
+
+        Exists(String[] path, boolean exists) {
+            this.path = path;
+            this.exists = exists;
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> message) {
+            return (value(message, path) != null) == exists;
+        }
+    }
+
+    /**
+     * All <code>must</code> clauses must match, no <code>must_not</code> clause may match, and if
+     * there are <code>should</code> clauses, at least one of them must match.
+     */
+    static class Bool extends MessageFilter {
+
+        private final MessageFilter[] must;
+
+        private final MessageFilter[] should;
+
+        private final MessageFilter[] mustNot;
+
+        Bool(MessageFilter[] must, MessageFilter[] should, MessageFilter[] mustNot) {
+            this.must = must;
+            this.should = should;
+            this.mustNot = mustNot;
+        }
+
+        @Override
+        public boolean matches(Map<String, Object> message) {
+            for (MessageFilter filter : must) {
+                if (!filter.matches(message)) {
+                    return false;
+                }
+            }
+            for (MessageFilter filter : mustNot) {
+                if (filter.matches(message)) {
+                    return false;
+                }
+            }
+            if (should.length == 0) {
+                return true;
+            }
+            for (MessageFilter filter : should) {
+                if (filter.matches(message)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
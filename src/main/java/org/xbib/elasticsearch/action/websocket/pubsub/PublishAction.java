@@ -1,29 +1,28 @@
 package org.xbib.elasticsearch.action.websocket.pubsub;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHitField;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveController;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 
 /**
- * Publish action
+ * Publish action. The message is saved in the pubsub index or, if the topic log store is
+ * enabled, appended to the topic log before it is pushed to the subscribers.
  */
 public class PublishAction extends PublishSubscribe {
 
@@ -34,82 +33,94 @@ public class PublishAction extends PublishSubscribe {
                          Client client,
                          HttpServerTransport transport,
                          InteractiveController controller,
-                         Checkpointer service) {
-        super(settings, client, transport, controller, service);
+                         Checkpointer service,
+                         SubscriberRegistry registry,
+                         ReplayBuffers buffers,
+                         TopicLogStore store) {
+        super(settings, client, transport, controller, service, registry, buffers, store);
         controller.registerHandler(TYPE, this);
     }
 
+    @Override
+    public String executor() {
+        return InteractiveController.EXECUTOR;
+    }
+
     @Override
     public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
-        String topic = request.hasParam("topic") ? request.paramAsString("topic") : "*";
+        final String topic = request.hasParam("topic") ? request.paramAsString("topic") : "*";
         try {
+            final Map<String, Object> data = request.asMap();
+            final long seq = service.next(topic);
+            final XContentBuilder messageBuilder = createPublishMessage(request, seq, data);
+            if (store.isEnabled()) {
+                // advertise phase - append the message to the topic log, push when it is durable
+                store.append(topic, seq, messageBuilder.bytes(), new ActionListener<Long>() {
+                    @Override
+                    public void onResponse(Long committed) {
+                        try {
+                            push(topic, seq, data, Long.toString(seq), messageBuilder, channel);
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        logger.error("error while processing publish request", e);
+                        try {
+                            channel.sendResponse(TYPE, e);
+                        } catch (IOException ex) {
+                            logger.error("error while sending error response", ex);
+                        }
+                    }
+                });
+                if (store.isIndexMessages()) {
+                    // the index is a secondary for searching the message history, nobody waits for it
+                    client.prepareIndex()
+                            .setIndex(pubSubIndexName)
+                            .setType(TYPE)
+                            .setId(Long.toString(seq))
+                            .setSource(messageBuilder)
+                            .execute(new ActionListener<IndexResponse>() {
+                                @Override
+                                public void onResponse(IndexResponse response) {
+                                }
+
+                                @Override
+                                public void onFailure(Throwable e) {
+                                    logger.error("error while indexing message {} of topic {}", e, seq, topic);
+                                }
+                            });
+                }
+                return;
+            }
             // advertise phase - save message in the index (for disconnected subscribers)
-            final XContentBuilder messageBuilder = createPublishMessage(request);
-            final XContentBuilder responseBuilder = jsonBuilder().startObject();
-            IndexResponse indexResponse = client.prepareIndex()
+            client.prepareIndex()
                     .setIndex(pubSubIndexName)
                     .setType(TYPE)
                     .setSource(messageBuilder)
-                    .setRefresh(request.paramAsBoolean("refresh", true))
-                    .execute().actionGet();
-            responseBuilder.field("id", indexResponse.getId());
-            // push phase - scroll over subscribers for this topic currently connected
-            QueryBuilder queryBuilder = termQuery("topic", topic);
-            SearchResponse searchResponse = client.prepareSearch()
-                    .setIndices(pubSubIndexName)
-                    .setTypes("subscribe")
-                    .setSearchType(SearchType.SCAN)
-                    .setScroll(new TimeValue(60000))
-                    .setQuery(queryBuilder)
-                    .addField("subscriber.channel")
-                    .setSize(100)
-                    .execute().actionGet();
-            boolean failed = searchResponse.getFailedShards() > 0 || searchResponse.isTimedOut();
-            if (failed) {
-                logger.error("searching for subscribers for topic {} failed: failed shards={} timeout={}",
-                        topic, searchResponse.getFailedShards(), searchResponse.isTimedOut());
-                responseBuilder.field("subscribers", 0).field("failed", true);
-                channel.sendResponse(TYPE, responseBuilder.endObject());
-                responseBuilder.close();
-                return;
-            }
-            // look for subscribers
-            long totalHits = searchResponse.getHits().getTotalHits();
-            boolean zero = totalHits == 0L;
-            if (zero) {
-                responseBuilder.field("subscribers", 0).field("failed", false);
-                channel.sendResponse(TYPE, responseBuilder.endObject());
-                responseBuilder.close();
-                return;
-            }
-            // report the total number of subscribers online to the publisher
-            responseBuilder.field("subscribers", totalHits);
-            channel.sendResponse(TYPE, responseBuilder.endObject());
-            messageBuilder.close();
-            responseBuilder.close();
-            // checkpoint topic
-            service.checkpoint(topic);
-            // push phase - write the message to the subscribers. We have 60 seconds per 100 subscribers.
-            while (true) {
-                searchResponse = client.prepareSearchScroll(searchResponse.getScrollId())
-                        .setScroll(new TimeValue(60000))
-                        .execute().actionGet();
-                for (SearchHit hit : searchResponse.getHits()) {
-                    // for message sync - update all subscribers with the current timestamp
-                    service.checkpoint(hit.getId());
-                    // find node address and channel ID
-                    SearchHitField channelField = hit.field("subscriber.channel");
-                    Map<String, Object> channelfieldMap = channelField.getValue();
-                    String nodeAddress = (String) channelfieldMap.get("localAddress");
-                    Integer id = (Integer) channelfieldMap.get("id");
-                    // forward to node
-                    transport.forward(nodeAddress, id, messageBuilder);
-                }
-                if (searchResponse.getHits().hits().length == 0) {
-                    break;
-                }
-            }
-            service.flushCheckpoint();
+                    .setRefresh(request.paramAsBoolean("refresh", false))
+                    .execute(new ActionListener<IndexResponse>() {
+                        @Override
+                        public void onResponse(IndexResponse response) {
+                            try {
+                                push(topic, seq, data, response.getId(), messageBuilder, channel);
+                            } catch (Exception e) {
+                                onFailure(e);
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.error("error while processing publish request", e);
+                            try {
+                                channel.sendResponse(TYPE, e);
+                            } catch (IOException ex) {
+                                logger.error("error while sending error response", ex);
+                            }
+                        }
+                    });
         } catch (Exception e) {
             logger.error("exception while processing publish request", e);
             try {
@@ -120,11 +131,67 @@ public class PublishAction extends PublishSubscribe {
         }
     }
 
-    private XContentBuilder createPublishMessage(InteractiveRequest request) {
+    /**
+     * Push phase. Look up the subscribers of the topic in the registry, drop those whose
+     * query does not match the message, and write the message to the subscribers. The message
+     * is added to the replay buffer of the topic. The cursors
+     * of the local subscribers advance in memory when the message is written, the checkpointer
+     * persists them periodically. Remote subscribers get the message forwarded, their cursors
+     * advance on their node. Nothing in here waits for a response.
+     *
+     * @param topic          the topic
+     * @param seq            the sequence number of the message in the topic
+     * @param data           the message data
+     * @param id             the ID of the indexed message, or the sequence number if the topic log is used
+     * @param messageBuilder the message
+     * @param channel        the channel of the publisher
+     * @throws IOException if push fails
+     */
+    private void push(String topic, long seq, Map<String, Object> data, String id, XContentBuilder messageBuilder,
+                      InteractiveChannel channel) throws IOException {
+        // keep the message for subscribers catching up, also when no subscriber is online
+        buffers.append(topic, seq, messageBuilder.bytes());
+        XContentBuilder responseBuilder = jsonBuilder().startObject().field("id", id).field("seq", seq);
+        List<Subscriber> subscribers = new ArrayList<Subscriber>();
+        for (Subscriber subscriber : registry.subscribers(topic)) {
+            if (subscriber.accepts(data)) {
+                subscribers.add(subscriber);
+            }
+        }
+        if (subscribers.isEmpty()) {
+            responseBuilder.field("subscribers", 0).field("failed", false);
+            channel.sendResponse(TYPE, responseBuilder.endObject());
+            responseBuilder.close();
+            return;
+        }
+        // report the total number of subscribers online to the publisher
+        responseBuilder.field("subscribers", subscribers.size());
+        channel.sendResponse(TYPE, responseBuilder.endObject());
+        responseBuilder.close();
+        // encode the message once per format, all local subscribers share the frame content
+        NettyInteractiveResponse.Shared message = new NettyInteractiveResponse.Shared("message", messageBuilder);
+        // remote subscribers are forwarded to their nodes, the cursors advance there
+        List<Subscriber> remote = new ArrayList<Subscriber>();
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.isLocal()) {
+                subscriber.deliver(message.response(subscriber.getChannel()), topic, service.origin(), seq,
+                        service.delivery(topic, subscriber.getId(), seq));
+            } else {
+                remote.add(subscriber);
+            }
+        }
+        if (!remote.isEmpty()) {
+            registry.forward(topic, remote, messageBuilder);
+        }
+    }
+
+    private XContentBuilder createPublishMessage(InteractiveRequest request, long seq, Map<String, Object> data) {
         try {
             return jsonBuilder().startObject()
                     .field("timestamp", request.paramAsLong("timestamp", System.currentTimeMillis()))
-                    .field("data", request.asMap())
+                    .field("seq", seq)
+                    .field("origin", service.origin())
+                    .field("data", data)
                     .endObject();
         } catch (IOException e) {
             return null;
@@ -18,6 +18,12 @@ public abstract class PublishSubscribe extends BaseInteractiveHandler {
 
     protected final Checkpointer service;
 
+    protected final SubscriberRegistry registry;
+
+    protected final ReplayBuffers buffers;
+
+    protected final TopicLogStore store;
+
     protected final TimeValue scrollTimeout = new TimeValue(60000);
 
     protected final int scrollSize = 100;
@@ -26,11 +32,17 @@ public abstract class PublishSubscribe extends BaseInteractiveHandler {
                             Client client,
                             HttpServerTransport transport,
                             InteractiveController controller,
-                            Checkpointer service) {
+                            Checkpointer service,
+                            SubscriberRegistry registry,
+                            ReplayBuffers buffers,
+                            TopicLogStore store) {
         super(settings, client);
         this.pubSubIndexName = PubSubIndexName.Conf.indexName(settings);
         this.transport = transport;
         this.service = service;
+        this.registry = registry;
+        this.buffers = buffers;
+        this.store = store;
     }
 
 }
@@ -0,0 +1,156 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded ring buffer of the recent messages of a topic published on this node, for
+ * serving reconnecting subscribers from memory.
+ *
+ * The buffer keeps the serialized messages in the order they were appended and evicts the
+ * oldest ones when the number of messages or their size in bytes exceeds the limits. The floor
+ * is the highest sequence number evicted, so the buffer holds all messages of this node after
+ * the floor and can serve every cursor at or above it. Concurrent publishes may append slightly
+ * out of sequence order, replays are sorted by sequence number.
+ */
+public class ReplayBuffer {
+
+    private final int maxMessages;
+
+    private final long maxBytes;
+
+    private final Entry[] entries;
+
+    private int first;
+
+    private int count;
+
+    private long bytes;
+
+    private long floor = -1L;
+
+    private volatile long touched = System.currentTimeMillis();
+
+    public ReplayBuffer(int maxMessages, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.entries = new Entry[maxMessages];
+    }
+
+    /**
+     * Append a message.
+     *
+     * @param seq     the sequence number
+     * @param message the serialized message
+     */
+    public synchronized void append(long seq, BytesReference message) {
+        touched = System.currentTimeMillis();
+        if (floor < 0L) {
+            // messages of this topic before the first one on this node are not in the buffer
+            floor = seq - 1;
+        }
+        if (count == maxMessages) {
+            evict();
+        }
+        entries[(first + count) % maxMessages] = new Entry(seq, message);
+        count++;
+        bytes += message.length();
+        while (count > 0 && bytes > maxBytes) {
+            evict();
+        }
+    }
+
+    private void evict() {
+        Entry entry = entries[first];
+        entries[first] = null;
+        first = (first + 1) % maxMessages;
+        count--;
+        bytes -= entry.message.length();
+        floor = Math.max(floor, entry.seq);
+    }
+
+    /**
+     * The messages after a cursor.
+     *
+     * @param cursor the sequence number of the last message a subscriber has received
+     * @return the messages after the cursor, or null if the buffer does not reach back to the cursor
+     */
+    public synchronized List<Entry> after(long cursor) {
+        touched = System.currentTimeMillis();
+        if (floor < 0L || cursor < floor) {
+            return null;
+        }
+        List<Entry> result = new ArrayList<Entry>();
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries[(first + i) % maxMessages];
+            if (entry.seq > cursor) {
+                result.add(entry);
+            }
+        }
+        Collections.sort(result, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return e1.seq < e2.seq ? -1 : e1.seq == e2.seq ? 0 : 1;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the time in milliseconds of the last append or replay
+     */
+    public long touched() {
+        return touched;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long sizeInBytes() {
+        return bytes;
+    }
+
+    /**
+     * A buffered message.
+     */
+    public static class Entry {
+
+        private final long seq;
+
+        private final BytesReference message;
+
+        Entry(long seq, BytesReference message) {
+            this.seq = seq;
+            this.message = message;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        /**
+         * @return the serialized message with timestamp, seq and data
+         */
+        public BytesReference getMessage() {
+            return message;
+        }
+
+        /**
+         * Parse the data of the message, for matching it against subscriber queries.
+         *
+         * @return the data of the message
+         */
+        @SuppressWarnings("unchecked")
+        public Map<String, Object> data() {
+            Object data = XContentHelper.convertToMap(message, false).v2().get("data");
+            return data instanceof Map ? (Map<String, Object>) data : null;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The replay buffers of the topics published on this node.
+ *
+ * The limits apply to each topic, <code>pubsub.replay.messages</code> (default 1000) and
+ * <code>pubsub.replay.size</code> (default 1mb). A message limit of 0 disables the buffers.
+ * A buffer which has not been appended to or replayed from for <code>pubsub.topic_expiry</code>
+ * (default 1h) is removed along with the idle topics, see {@link Checkpointer}.
+ */
+public class ReplayBuffers extends AbstractComponent {
+
+    private final int maxMessages;
+
+    private final ByteSizeValue maxSize;
+
+    private final TimeValue expiry;
+
+    private final ConcurrentMap<String, ReplayBuffer> buffers = ConcurrentCollections.newConcurrentMap();
+
+    @Inject
+    public ReplayBuffers(Settings settings) {
+        super(settings);
+        this.maxMessages = settings.getAsInt("pubsub.replay.messages", 1000);
+        this.maxSize = settings.getAsBytesSize("pubsub.replay.size", new ByteSizeValue(1024 * 1024));
+        this.expiry = settings.getAsTime("pubsub.topic_expiry", TimeValue.timeValueHours(1));
+    }
+
+    /**
+     * Add a published message to the buffer of its topic. The bytes are copied, so the
+     * buffer does not hold on to the output of the builder.
+     *
+     * @param topic   the topic
+     * @param seq     the sequence number of the message
+     * @param message the serialized message
+     */
+    public void append(String topic, long seq, BytesReference message) {
+        if (maxMessages <= 0) {
+            return;
+        }
+        ReplayBuffer buffer = buffers.get(topic);
+        if (buffer == null) {
+            ReplayBuffer newBuffer = new ReplayBuffer(maxMessages, maxSize.bytes());
+            buffer = buffers.putIfAbsent(topic, newBuffer);
+            if (buffer == null) {
+                buffer = newBuffer;
+            }
+        }
+        buffer.append(seq, new BytesArray(message.toBytes()));
+    }
+
+    /**
+     * The replay buffer of a topic.
+     *
+     * @param topic the topic
+     * @return the buffer, or null if no message of the topic has been published on this node
+     */
+    public ReplayBuffer get(String topic) {
+        return buffers.get(topic);
+    }
+
+    /**
+     * Remove the buffers which have been idle for the topic expiry. A message appended to a
+     * removed buffer is not replayed, the next buffer of the topic starts after it.
+     *
+     * @param now the current time in milliseconds
+     */
+    public void expire(long now) {
+        if (expiry.millis() <= 0) {
+            return;
+        }
+        for (Map.Entry<String, ReplayBuffer> entry : buffers.entrySet()) {
+            if (now - entry.getValue().touched() >= expiry.millis()
+                    && buffers.remove(entry.getKey(), entry.getValue())) {
+                logger.debug("expired replay buffer of topic {}", entry.getKey());
+            }
+        }
+    }
+
+    public int size() {
+        return buffers.size();
+    }
+}
@@ -1,49 +1,76 @@
 package org.xbib.elasticsearch.action.websocket.pubsub;
 
 import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
 import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.ClearScrollResponse;
 import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
-import org.elasticsearch.index.query.RangeFilterBuilder;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
 import org.jboss.netty.channel.Channel;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveController;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveChannel;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import static org.elasticsearch.common.collect.Maps.newHashMap;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-import static org.elasticsearch.index.query.FilterBuilders.rangeFilter;
-import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.boolQuery;
+import static org.elasticsearch.index.query.QueryBuilders.constantScoreQuery;
+import static org.elasticsearch.index.query.QueryBuilders.matchPhraseQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
 
 /**
  * Subscribe action. It performs the subscription of a client to
- * the pubsub index under a given topic.
+ * the pubsub index under a given topic. An optional query restricts the
+ * messages of the topic the subscriber receives, see {@link MessageFilter}.
+ * Reconnecting clients pass the last sequence numbers they have seen by topic and
+ * origin node as <code>positions</code>, messages after them are delivered again.
  */
 public class SubscribeAction extends PublishSubscribe {
 
     protected final static String TYPE = "subscribe";
 
+    /**
+     * The maximum number of topic and origin clauses in the recovery query, below the
+     * default maximum of 1024 boolean clauses.
+     */
+    private final static int MAX_CURSOR_CLAUSES = 512;
+
     @Inject
     public SubscribeAction(Settings settings,
                            Client client,
                            HttpServerTransport transport,
                            InteractiveController controller,
-                           Checkpointer service) {
-        super(settings, client, transport, controller, service);
+                           Checkpointer service,
+                           SubscriberRegistry registry,
+                           ReplayBuffers buffers,
+                           TopicLogStore store) {
+        super(settings, client, transport, controller, service, registry, buffers, store);
         controller.registerHandler(TYPE, this);
     }
 
     @Override
+    public String executor() {
+        return InteractiveController.EXECUTOR;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
     public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
         final String topic = request.hasParam("topic") ? request.paramAsString("topic") : "*";
         final String subscriberId = request.hasParam("subscriber") ? request.paramAsString("subscriber") : null;
@@ -53,38 +80,39 @@ public class SubscribeAction extends PublishSubscribe {
             } catch (IOException e) {
                 logger.error("error while sending failure response", e);
             }
+            return;
         }
         try {
-            client.prepareIndex()
-                    .setIndex(pubSubIndexName)
-                    .setType(TYPE)
-                    .setId(subscriberId)
-                    .setSource(createSubscriberMessage(topic, channel))
-                    .setRefresh(request.paramAsBoolean("refresh", true))
-                    .execute(new ActionListener<IndexResponse>() {
-                        @Override
-                        public void onResponse(IndexResponse response) {
-                            try {
-                                XContentBuilder builder = jsonBuilder();
-                                builder.startObject().field("ok", true).field("id", response.getId()).endObject();
-                                channel.sendResponse(TYPE, builder);
-                                // receive outstanding messages
-                                sync(subscriberId, topic, channel.getChannel());
-                            } catch (Exception e) {
-                                onFailure(e);
-                            }
-                        }
+            Object query = request.param("query");
+            if (query != null && !(query instanceof Map)) {
+                throw new IllegalArgumentException("query must be an object");
+            }
+            final MessageFilter filter = query == null ? MessageFilter.MATCH_ALL :
+                    MessageFilter.compile((Map<String, Object>) query);
+            final Map<String, Map<String, Long>> seen = seen(request.param("positions"));
+            // the query is kept as a string, so the fields of queries are not mapped in the pubsub index
+            String queryString = query != null ? jsonBuilder().map((Map<String, Object>) query).string() : null;
+            final XContentBuilder source = createSubscriberMessage(topic, queryString, channel);
+            final boolean refresh = request.paramAsBoolean("refresh", true);
+            // register the subscriber for immediate delivery, the index keeps the subscription durable,
+            // live messages are held back until the subscriber has caught up from its cursors
+            final Subscriber subscriber = registry.subscribe(subscriberId, topic, channel.getChannel(), filter);
+            registry.announce(subscriber, queryString);
+            // the positions are looked up before the subscription document, which holds the cursors
+            // saved when the subscriber disconnected, is replaced
+            service.positions(subscriberId, topic, new ActionListener<Map<String, Map<String, Checkpointer.Position>>>() {
+                @Override
+                public void onResponse(Map<String, Map<String, Checkpointer.Position>> positions) {
+                    index(subscriber, source, refresh, channel, positions, seen);
+                }
 
-                        @Override
-                        public void onFailure(Throwable e) {
-                            logger.error("error while processing subscribe request", e);
-                            try {
-                                channel.sendResponse(TYPE, e);
-                            } catch (IOException ex) {
-                                logger.error("error while sending error response", ex);
-                            }
-                        }
-                    });
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.error("error while looking up the positions of subscriber {}", e, subscriberId);
+                    index(subscriber, source, refresh, channel,
+                            new HashMap<String, Map<String, Checkpointer.Position>>(), seen);
+                }
+            });
         } catch (Exception e) {
             logger.error("exception while processing subscribe request", e);
             try {
@@ -95,14 +123,80 @@ public class SubscribeAction extends PublishSubscribe {
         }
     }
 
-    private XContentBuilder createSubscriberMessage(String topic, InteractiveChannel channel) {
+    private void index(final Subscriber subscriber, XContentBuilder source, boolean refresh,
+                       final InteractiveChannel channel,
+                       final Map<String, Map<String, Checkpointer.Position>> positions,
+                       final Map<String, Map<String, Long>> seen) {
+        client.prepareIndex()
+                .setIndex(pubSubIndexName)
+                .setType(TYPE)
+                .setId(subscriber.getId())
+                .setSource(source)
+                .setRefresh(refresh)
+                .execute(new ActionListener<IndexResponse>() {
+                    @Override
+                    public void onResponse(IndexResponse response) {
+                        try {
+                            XContentBuilder builder = jsonBuilder();
+                            builder.startObject().field("ok", true).field("id", response.getId()).endObject();
+                            channel.sendResponse(TYPE, builder);
+                            // receive outstanding messages
+                            sync(subscriber, positions, seen);
+                        } catch (Exception e) {
+                            onFailure(e);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        logger.error("error while processing subscribe request", e);
+                        subscriber.release();
+                        try {
+                            channel.sendResponse(TYPE, e);
+                        } catch (IOException ex) {
+                            logger.error("error while sending error response", ex);
+                        }
+                    }
+                });
+    }
+
+    private static Map<String, Map<String, Long>> seen(Object positions) {
+        if (positions == null) {
+            return null;
+        }
+        if (!(positions instanceof Map)) {
+            throw new IllegalArgumentException("positions must be an object");
+        }
+        Map<String, Map<String, Long>> seen = newHashMap();
+        for (Map.Entry<?, ?> entry : ((Map<?, ?>) positions).entrySet()) {
+            if (!(entry.getValue() instanceof Map)) {
+                throw new IllegalArgumentException("positions of topic " + entry.getKey() + " must be an object");
+            }
+            Map<String, Long> origins = newHashMap();
+            for (Map.Entry<?, ?> origin : ((Map<?, ?>) entry.getValue()).entrySet()) {
+                if (!(origin.getValue() instanceof Number)) {
+                    throw new IllegalArgumentException("position of topic " + entry.getKey()
+                            + " and node " + origin.getKey() + " must be a number");
+                }
+                origins.put(origin.getKey().toString(), ((Number) origin.getValue()).longValue());
+            }
+            seen.put(entry.getKey().toString(), origins);
+        }
+        return seen;
+    }
+
+    private XContentBuilder createSubscriberMessage(String topic, String query, InteractiveChannel channel) {
         Integer channelId = channel.getChannel().getId();
         String localAddress = channel.getChannel().getLocalAddress().toString();
         String remoteAddress = channel.getChannel().getRemoteAddress().toString();
         try {
-            return jsonBuilder()
+            XContentBuilder builder = jsonBuilder()
                     .startObject()
-                    .field("topic", topic)
+                    .field("topic", topic);
+            if (query != null) {
+                builder.field("query", query);
+            }
+            return builder
                     .startObject("subscriber")
                     .startObject("channel")
                     .field("id", channelId)
@@ -117,69 +211,288 @@ public class SubscribeAction extends PublishSubscribe {
     }
 
     /**
-     * Synchronize the subscriber with the current messages.
+     * Synchronize the subscriber with the current messages, from its positions in the topics
+     * by topic and origin node. The messages published on this
+     * node after its cursors are served from the replay buffers or, if enabled, the topic logs,
+     * if they reach back to the cursors. Neither holds messages forwarded from other nodes, so
+     * the messages of other nodes, and older gaps, are scrolled in from the refreshed index
+     * without blocking the calling thread, in the order of their
+     * sequence numbers. A subscriber that has never received a message of a topic starts with
+     * the next message. The live messages held back by the subscriber are released when the
+     * replay is done.
      *
-     * @param subscriberId
-     * @param topic
-     * @param channel
-     * @throws IOException
+     * Messages written to a connection which broke before the subscriber received them count
+     * as delivered. The positions seen by a reconnecting subscriber rewind its cursors, so these
+     * messages are delivered again.
+     *
+     * @param subscriber the subscriber
+     * @param positions  the positions of the subscriber by topic and origin
+     * @param seen       the last sequence numbers the subscriber has seen by topic and origin, or null
      */
-    private void sync(final String subscriberId, final String topic, final Channel channel) throws IOException {
-        Long lastSeen = service.checkpointedAt(subscriberId);
-        Long topicSeen = service.checkpointedAt(topic);
-        // if client appearance is later than topic, do not search for any messages
-        if (lastSeen == null || topicSeen == null || lastSeen >= topicSeen) {
-            return;
+    private void sync(Subscriber subscriber, Map<String, Map<String, Checkpointer.Position>> positions,
+                      Map<String, Map<String, Long>> seen) {
+        String subscriberId = subscriber.getId();
+        String topic = subscriber.getTopic();
+        if (seen != null) {
+            rewind(positions, topic, seen);
         }
-        // message sync - update subscriber with the current timestamp
-        service.checkpoint(subscriberId);
-        service.flushCheckpoint();
-        // there are unreceived messages, get all outstanding messages since last seen
-        QueryBuilder queryBuilder = termQuery("topic", topic);
-        RangeFilterBuilder filterBuilder = rangeFilter("timestamp").gte(lastSeen);
-        SearchResponse searchResponse = client.prepareSearch()
-                .setIndices(pubSubIndexName)
-                .setTypes("publish")
-                .setSearchType(SearchType.SCAN)
-                .setScroll(scrollTimeout)
-                .setQuery(queryBuilder)
-                .setPostFilter(filterBuilder)
-                .addField("data")
-                .addField("timestamp")
-                .setSize(scrollSize)
-                .execute().actionGet();
-        boolean failed = searchResponse.getFailedShards() > 0 || searchResponse.isTimedOut();
-        if (failed) {
-            logger.error("searching for messages for topic {} failed: failed shards={} timeout={}",
-                    topic, searchResponse.getFailedShards(), searchResponse.isTimedOut());
-            return;
+        String origin = service.origin();
+        Map<String, Map<String, Long>> cursors = newHashMap();
+        long from = Long.MAX_VALUE;
+        for (Map<String, Checkpointer.Position> origins : positions.values()) {
+            for (Checkpointer.Position position : origins.values()) {
+                if (!position.isBehind()) {
+                    continue;
+                }
+                try {
+                    // the buffers and logs only hold the messages published on this node
+                    if (position.getOrigin().equals(origin)) {
+                        if (replay(subscriber, position)) {
+                            continue;
+                        }
+                        if (store.isEnabled() && !store.isIndexMessages()) {
+                            // the messages are not indexed either, the index scan would find nothing
+                            logger.warn("messages of topic {} after {} are no longer in the topic log and are not indexed, "
+                                    + "subscriber {} can not receive them", position.getTopic(), position.getCursor(),
+                                    subscriberId);
+                            continue;
+                        }
+                    }
+                } catch (IOException e) {
+                    logger.error("error while replaying topic {} to subscriber {}", e,
+                            position.getTopic(), subscriberId);
+                }
+                Map<String, Long> topicCursors = cursors.get(position.getTopic());
+                if (topicCursors == null) {
+                    topicCursors = newHashMap();
+                    cursors.put(position.getTopic(), topicCursors);
+                }
+                topicCursors.put(position.getOrigin(), position.getCursor());
+                from = Math.min(from, position.getCursor());
+            }
         }
-        // look for messages
-        long totalHits = searchResponse.getHits().getTotalHits();
-        boolean zero = totalHits == 0L;
-        if (zero) {
+        if (cursors.isEmpty()) {
+            subscriber.release();
             return;
         }
-        // slurp in all outstanding messages
-        while (true) {
-            searchResponse = client.prepareSearchScroll(searchResponse.getScrollId())
-                    .setScroll(scrollTimeout)
-                    .execute().actionGet();
-            for (SearchHit hit : searchResponse.getHits()) {
-                Long timestamp = (Long) hit.field("timestamp").getValues().get(0);
-                Map<String, Object> data = hit.field("data").getValue();
-                channel.write(new NettyInteractiveResponse("message", createPublishMessage(timestamp, data)).response());
+        scroll(subscriber, cursors, from);
+    }
+
+    /**
+     * Scroll in the messages after the cursors from the index. Publishing does not refresh
+     * the index, so it is refreshed first, otherwise the messages published on other nodes
+     * since the last refresh would be skipped.
+     */
+    private void scroll(final Subscriber subscriber, final Map<String, Map<String, Long>> cursors, final long from) {
+        client.admin().indices().prepareRefresh(pubSubIndexName).execute(new ActionListener<RefreshResponse>() {
+            @Override
+            public void onResponse(RefreshResponse response) {
+                client.prepareSearch()
+                        .setIndices(pubSubIndexName)
+                        .setTypes("publish")
+                        .setScroll(scrollTimeout)
+                        .setQuery(query(cursors, from))
+                        .addSort("seq", SortOrder.ASC)
+                        .setSize(scrollSize)
+                        .execute(new MessageScroll(subscriber, cursors));
             }
-            if (searchResponse.getHits().hits().length == 0) {
-                break;
+
+            @Override
+            public void onFailure(Throwable e) {
+                logger.error("error while refreshing the messages for subscriber {}", e, subscriber.getId());
+                subscriber.release();
             }
+        });
+    }
+
+    /**
+     * The query for the messages after the cursors, by topic and origin. The topic and the
+     * origin are analyzed by the dynamic mapping of the pubsub index, so they are matched as
+     * phrases, which may also find messages of other topics containing the topic. Topics,
+     * origins and cursors are checked exactly while scrolling. Beyond the maximum number of
+     * boolean clauses, only the lowest cursor is queried.
+     */
+    private static QueryBuilder query(Map<String, Map<String, Long>> cursors, long from) {
+        int n = 0;
+        for (Map<String, Long> origins : cursors.values()) {
+            n += origins.size();
+        }
+        if (n > MAX_CURSOR_CLAUSES) {
+            return rangeQuery("seq").gt(from);
+        }
+        BoolQueryBuilder query = boolQuery();
+        for (Map.Entry<String, Map<String, Long>> topic : cursors.entrySet()) {
+            for (Map.Entry<String, Long> origin : topic.getValue().entrySet()) {
+                query.should(boolQuery()
+                        .must(matchPhraseQuery("data.topic", topic.getKey()))
+                        .must(matchPhraseQuery("origin", origin.getKey()))
+                        .must(rangeQuery("seq").gt(origin.getValue())));
+            }
+        }
+        return constantScoreQuery(query);
+    }
+
+    /**
+     * Rewind the positions to the sequence numbers seen by the subscriber. The head of a
+     * topic unknown on this node is not known, its messages are looked up in the index.
+     */
+    private static void rewind(Map<String, Map<String, Checkpointer.Position>> positions, String subscription,
+                               Map<String, Map<String, Long>> seen) {
+        for (Map.Entry<String, Map<String, Long>> entry : seen.entrySet()) {
+            String topic = entry.getKey();
+            if (!TopicTrie.matches(subscription, topic)) {
+                continue;
+            }
+            Map<String, Checkpointer.Position> origins = positions.get(topic);
+            if (origins == null) {
+                origins = newHashMap();
+                positions.put(topic, origins);
+            }
+            for (Map.Entry<String, Long> origin : entry.getValue().entrySet()) {
+                Checkpointer.Position position = origins.get(origin.getKey());
+                if (position == null) {
+                    origins.put(origin.getKey(), new Checkpointer.Position(topic, origin.getKey(),
+                            origin.getValue(), Long.MAX_VALUE));
+                } else if (origin.getValue() < position.getCursor()) {
+                    origins.put(origin.getKey(), new Checkpointer.Position(topic, origin.getKey(),
+                            origin.getValue(), position.getHead()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the messages published on this node after the cursor of a subscriber from the
+     * replay buffer of the topic, or from the topic log if the buffer does not reach back far enough.
+     *
+     * @return false if neither the buffer nor the log reach back to the cursor
+     */
+    private boolean replay(Subscriber subscriber, Checkpointer.Position position) throws IOException {
+        ReplayBuffer buffer = buffers.get(position.getTopic());
+        List<ReplayBuffer.Entry> entries = buffer != null ? buffer.after(position.getCursor()) : null;
+        if (entries == null) {
+            entries = store.after(position.getTopic(), position.getCursor());
+        }
+        if (entries == null) {
+            return false;
+        }
+        Channel channel = subscriber.getChannel();
+        for (ReplayBuffer.Entry entry : entries) {
+            if (subscriber.getFilter() != MessageFilter.MATCH_ALL) {
+                Map<String, Object> data = entry.data();
+                if (data == null || !subscriber.accepts(data)) {
+                    continue;
+                }
+            }
+            subscriber.replay(new NettyInteractiveResponse("message", entry.getMessage(), XContentType.JSON,
+                    NettyInteractiveChannel.contentType(channel)).response(), position.getTopic(), position.getOrigin(),
+                    entry.getSeq(), service.delivery(position.getTopic(), position.getOrigin(), subscriber.getId(), entry.getSeq()));
+        }
+        return true;
+    }
+
+    /**
+     * Scrolls through the outstanding messages of the topics of a subscriber in the order of
+     * their sequence numbers and writes them to the subscriber. The next scroll request is issued
+     * from the response of the previous one. The subscriber is released at the end.
+     */
+    class MessageScroll implements ActionListener<SearchResponse> {
+
+        private final Subscriber subscriber;
+
+        private final Map<String, Map<String, Long>> cursors;
+
+        private String scrollId;
+
+        MessageScroll(Subscriber subscriber, Map<String, Map<String, Long>> cursors) {
+            this.subscriber = subscriber;
+            this.cursors = cursors;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onResponse(SearchResponse searchResponse) {
+            scrollId = searchResponse.getScrollId();
+            boolean failed = searchResponse.getFailedShards() > 0 || searchResponse.isTimedOut();
+            if (failed) {
+                logger.error("searching for messages for subscriber {} failed: failed shards={} timeout={} {}",
+                        subscriber.getId(), searchResponse.getFailedShards(), searchResponse.isTimedOut(),
+                        searchResponse.getShardFailures().length > 0 ? searchResponse.getShardFailures()[0].reason() : "");
+                release();
+                return;
+            }
+            // an empty scroll response ends the scroll
+            Channel channel = subscriber.getChannel();
+            if (searchResponse.getHits().hits().length == 0 || !channel.isOpen()) {
+                release();
+                return;
+            }
+            try {
+                for (SearchHit hit : searchResponse.getHits()) {
+                    // data is an object, it can not be loaded as a field
+                    Map<String, Object> source = hit.sourceAsMap();
+                    if (!(source.get("data") instanceof Map) || source.get("seq") == null) {
+                        continue;
+                    }
+                    long timestamp = ((Number) source.get("timestamp")).longValue();
+                    long seq = ((Number) source.get("seq")).longValue();
+                    Object origin = source.get("origin");
+                    Map<String, Object> data = (Map<String, Object>) source.get("data");
+                    Object messageTopic = data.get("topic");
+                    Map<String, Long> origins = messageTopic != null ? cursors.get(messageTopic.toString()) : null;
+                    Long cursor = origins != null && origin != null ? origins.get(origin.toString()) : null;
+                    if (cursor == null || seq <= cursor || !subscriber.accepts(data)) {
+                        continue;
+                    }
+                    subscriber.replay(new NettyInteractiveResponse("message",
+                            createPublishMessage(timestamp, seq, origin.toString(), data),
+                            NettyInteractiveChannel.contentType(channel)).response(), messageTopic.toString(),
+                            origin.toString(), seq,
+                            service.delivery(messageTopic.toString(), origin.toString(), subscriber.getId(), seq));
+                }
+            } catch (IOException e) {
+                onFailure(e);
+                return;
+            }
+            client.prepareSearchScroll(searchResponse.getScrollId())
+                    .setScroll(scrollTimeout)
+                    .execute(this);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            logger.error("error while receiving messages for subscriber {}", e, subscriber.getId());
+            release();
+        }
+
+        /**
+         * Release the subscriber and clear the scroll, also when the scroll stops early.
+         */
+        private void release() {
+            subscriber.release();
+            if (scrollId == null) {
+                return;
+            }
+            client.prepareClearScroll().addScrollId(scrollId).execute(new ActionListener<ClearScrollResponse>() {
+                @Override
+                public void onResponse(ClearScrollResponse response) {
+                }
+
+                @Override
+                public void onFailure(Throwable e) {
+                    logger.debug("clearing the message scroll of subscriber {} failed", e, subscriber.getId());
+                }
+            });
+            scrollId = null;
         }
     }
 
-    private XContentBuilder createPublishMessage(long timestamp, Map<String, Object> data) {
+    private XContentBuilder createPublishMessage(long timestamp, long seq, String origin, Map<String, Object> data) {
         try {
             return jsonBuilder().startObject()
                     .field("timestamp", timestamp)
+                    .field("seq", seq)
+                    .field("origin", origin)
                     .field("data", data)
                     .endObject();
         } catch (IOException e) {
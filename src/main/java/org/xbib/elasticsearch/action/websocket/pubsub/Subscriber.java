@@ -0,0 +1,214 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
+
+/**
+ * A subscriber of a topic. A subscriber is either connected to this node,
+ * then it carries the channel for direct delivery, or it is connected to another
+ * node, then messages must be forwarded to the node address. A subscriber with a
+ * query filter only receives the messages of its topic that match the filter.
+ *
+ * A local subscriber which catches up with the messages after its cursors holds back live
+ * messages until the replay is done. Then the held messages which were not replayed are
+ * written, so no message published while it subscribes falls into the gap between its cursor
+ * and the live messages. The replayed sequence numbers are kept, not only the highest one,
+ * because a live message may be held after messages with higher sequence numbers of its
+ * origin were replayed, when its publish was still being indexed while the replay read.
+ */
+public class Subscriber {
+
+    private final String id;
+
+    private final String topic;
+
+    private final String nodeAddress;
+
+    private final Integer channelId;
+
+    private final Channel channel;
+
+    private final MessageFilter filter;
+
+    // guarded by this, the live messages held back while the subscriber catches up
+    private List<Delivery> held;
+
+    // guarded by this, the replayed sequence numbers by topic and origin
+    private Map<String, Map<String, Set<Long>>> replayed;
+
+    public Subscriber(String id, String topic, Channel channel) {
+        this(id, topic, channel, MessageFilter.MATCH_ALL);
+    }
+
+    public Subscriber(String id, String topic, Channel channel, MessageFilter filter) {
+        this(id, topic, channel.getLocalAddress().toString(), channel.getId(), channel, filter);
+    }
+
+    public Subscriber(String id, String topic, String nodeAddress, Integer channelId) {
+        this(id, topic, nodeAddress, channelId, MessageFilter.MATCH_ALL);
+    }
+
+    public Subscriber(String id, String topic, String nodeAddress, Integer channelId, MessageFilter filter) {
+        this(id, topic, nodeAddress, channelId, null, filter);
+    }
+
+    private Subscriber(String id, String topic, String nodeAddress, Integer channelId, Channel channel,
+                       MessageFilter filter) {
+        this.id = id;
+        this.topic = topic;
+        this.nodeAddress = nodeAddress;
+        this.channelId = channelId;
+        this.channel = channel;
+        this.filter = filter;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public String getNodeAddress() {
+        return nodeAddress;
+    }
+
+    public Integer getChannelId() {
+        return channelId;
+    }
+
+    /**
+     * The channel of a local subscriber.
+     *
+     * @return the channel or null if the subscriber is connected to another node
+     */
+    public Channel getChannel() {
+        return channel;
+    }
+
+    public MessageFilter getFilter() {
+        return filter;
+    }
+
+    public boolean isLocal() {
+        return channel != null;
+    }
+
+    /**
+     * Check if a message of the topic passes the query filter of this subscriber.
+     *
+     * @param message the message data
+     * @return true if the subscriber should receive the message
+     */
+    public boolean accepts(Map<String, Object> message) {
+        return filter.matches(message);
+    }
+
+    /**
+     * Hold back live messages until the subscriber is released.
+     */
+    public synchronized void hold() {
+        held = new ArrayList<Delivery>();
+        replayed = newHashMap();
+    }
+
+    /**
+     * Write a live message to a local subscriber, or hold it back while the subscriber catches up.
+     *
+     * @param message  the message frame
+     * @param topic    the topic of the message
+     * @param origin   the node the message was published on
+     * @param seq      the sequence number of the message
+     * @param listener the listener for the write, which advances the cursor
+     */
+    public synchronized void deliver(Object message, String topic, String origin, long seq,
+                                     ChannelFutureListener listener) {
+        if (held != null) {
+            held.add(new Delivery(message, topic, origin, seq, listener));
+            return;
+        }
+        OutboundBufferHandler.write(channel, message, topic).addListener(listener);
+    }
+
+    /**
+     * Write a message to a local subscriber which catches up.
+     *
+     * @param message  the message frame
+     * @param topic    the topic of the message
+     * @param origin   the node the message was published on
+     * @param seq      the sequence number of the message
+     * @param listener the listener for the write, which advances the cursor
+     */
+    public synchronized void replay(Object message, String topic, String origin, long seq,
+                                    ChannelFutureListener listener) {
+        if (replayed != null) {
+            Map<String, Set<Long>> origins = replayed.get(topic);
+            if (origins == null) {
+                origins = newHashMap();
+                replayed.put(topic, origins);
+            }
+            Set<Long> seqs = origins.get(origin);
+            if (seqs == null) {
+                seqs = newHashSet();
+                origins.put(origin, seqs);
+            }
+            seqs.add(seq);
+        }
+        OutboundBufferHandler.write(channel, message, topic).addListener(listener);
+    }
+
+    /**
+     * Write the held back messages which have not been replayed, and deliver live messages
+     * from now on.
+     */
+    public synchronized void release() {
+        if (held == null) {
+            return;
+        }
+        for (Delivery delivery : held) {
+            Map<String, Set<Long>> origins = replayed.get(delivery.topic);
+            Set<Long> seqs = origins != null ? origins.get(delivery.origin) : null;
+            if (seqs == null || !seqs.contains(delivery.seq)) {
+                OutboundBufferHandler.write(channel, delivery.message, delivery.topic).addListener(delivery.listener);
+            }
+        }
+        held = null;
+        replayed = null;
+    }
+
+    @Override
+    public String toString() {
+        return "[id=" + id + ",topic=" + topic + ",node=" + nodeAddress + ",channel=" + channelId + "]";
+    }
+
+    private static class Delivery {
+
+        private final Object message;
+
+        private final String topic;
+
+        private final String origin;
+
+        private final long seq;
+
+        private final ChannelFutureListener listener;
+
+        Delivery(Object message, String topic, String origin, long seq, ChannelFutureListener listener) {
+            this.message = message;
+            this.topic = topic;
+            this.origin = origin;
+            this.seq = seq;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,698 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterService;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.BoundTransportAddress;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.jboss.netty.channel.Channel;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfo;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoAction;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoRequest;
+import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoResponse;
+import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.Presence;
+import org.xbib.elasticsearch.websocket.PresenceListener;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.elasticsearch.common.collect.Sets.newHashSet;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * The subscriber registry is the node-local table of subscriptions. Subscribe and
+ * unsubscribe actions maintain it, closed channels are pruned automatically, so
+ * publishing a message is a map lookup instead of a search.
+ *
+ * Subscriptions of clients connected to other nodes are announced by these nodes over the
+ * node links when they subscribe, unsubscribe or their channel closes, see {@link SubscriptionAction}.
+ * They are also recovered from the pubsub index in the background, and when nodes join,
+ * which catches up with announcements that were lost. The index is only used for
+ * durability and recovery. The subscription
+ * document of a subscriber whose channel has closed is marked as disconnected, so it is
+ * skipped by recovery, and it takes over the cursors of the subscriber from the {@link Checkpointer}.
+ */
+public class SubscriberRegistry extends AbstractLifecycleComponent<SubscriberRegistry>
+        implements PresenceListener, ClusterStateListener {
+
+    private final Client client;
+
+    private final ClusterService clusterService;
+
+    private final ThreadPool threadPool;
+
+    private final HttpServerTransport transport;
+
+    private final Checkpointer checkpointer;
+
+    private final String pubSubIndexName;
+
+    private final TimeValue recoveryInterval;
+
+    private final ConcurrentMap<String, Subscriber> subscribers = ConcurrentCollections.newConcurrentMap();
+
+    private final TopicTrie topics = new TopicTrie();
+
+    private final ConcurrentMap<Integer, Set<String>> channels = ConcurrentCollections.newConcurrentMap();
+
+    private volatile TopicTrie remoteTopics = new TopicTrie();
+
+    private volatile ConcurrentMap<String, Subscriber> remoteSubscribers = ConcurrentCollections.newConcurrentMap();
+
+    // the websocket addresses of the other nodes
+    private volatile Set<String> peers = Collections.emptySet();
+
+    // guarded by this, the announcements received while a recovery is running
+    private List<Tuple<Subscriber, Boolean>> announcements;
+
+    private volatile ScheduledFuture recoveryFuture;
+
+    @Inject
+    public SubscriberRegistry(Settings settings,
+                              Client client,
+                              ClusterService clusterService,
+                              ThreadPool threadPool,
+                              HttpServerTransport transport,
+                              Checkpointer checkpointer,
+                              InteractiveController controller) {
+        super(settings);
+        this.client = client;
+        this.clusterService = clusterService;
+        this.threadPool = threadPool;
+        this.transport = transport;
+        this.checkpointer = checkpointer;
+        this.pubSubIndexName = PubSubIndexName.Conf.indexName(settings);
+        this.recoveryInterval = settings.getAsTime("pubsub.recovery_interval", TimeValue.timeValueSeconds(10));
+        controller.addPresenceListener(this);
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        clusterService.add(this);
+        this.recoveryFuture = threadPool.schedule(recoveryInterval, ThreadPool.Names.GENERIC, new Recovery());
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        clusterService.remove(this);
+        if (recoveryFuture != null) {
+            recoveryFuture.cancel(false);
+            recoveryFuture = null;
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        subscribers.clear();
+        channels.clear();
+        remoteTopics = new TopicTrie();
+        remoteSubscribers = ConcurrentCollections.newConcurrentMap();
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (!event.nodesChanged() || !lifecycle.started()) {
+            return;
+        }
+        peers();
+        if (event.nodesAdded()) {
+            // a joining node learns about the subscribers of the other nodes right away
+            threadPool.generic().execute(new Runnable() {
+                @Override
+                public void run() {
+                    recover(new ActionListener<TopicTrie>() {
+                        @Override
+                        public void onResponse(TopicTrie remote) {
+                            logger.trace("recovered remote subscribers after nodes joined");
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException)) {
+                                logger.warn("recovery of subscribers failed", e);
+                            }
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    /**
+     * Look up the websocket addresses of the other nodes, for announcing subscriptions.
+     */
+    private void peers() {
+        client.admin().cluster().execute(WebsocketInfoAction.INSTANCE, new WebsocketInfoRequest(),
+                new ActionListener<WebsocketInfoResponse>() {
+                    @Override
+                    public void onResponse(WebsocketInfoResponse response) {
+                        String localNodeId = clusterService.localNode() != null ? clusterService.localNode().id() : null;
+                        Set<String> addresses = newHashSet();
+                        for (WebsocketInfo info : response.getNodes()) {
+                            if (info.getAddress() == null || info.getNode().id().equals(localNodeId)) {
+                                continue;
+                            }
+                            addresses.add("/" + info.getAddress().address().getAddress().getHostAddress()
+                                    + ":" + info.getAddress().address().getPort());
+                        }
+                        peers = addresses;
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        logger.warn("looking up the websocket addresses of the nodes failed", e);
+                    }
+                });
+    }
+
+    /**
+     * Register a subscriber connected to this node. An existing subscription
+     * of the same subscriber is replaced. The topic may contain wildcards.
+     *
+     * @param id      the subscriber ID
+     * @param topic   the topic
+     * @param channel the channel of the subscriber
+     * @return the subscriber
+     */
+    public Subscriber subscribe(String id, String topic, Channel channel) {
+        return subscribe(id, topic, channel, MessageFilter.MATCH_ALL);
+    }
+
+    /**
+     * Register a subscriber connected to this node with a query filter for the messages.
+     * The subscriber holds back live messages until it is released, after it has caught up.
+     *
+     * @param id      the subscriber ID
+     * @param topic   the topic
+     * @param channel the channel of the subscriber
+     * @param filter  the filter
+     * @return the subscriber
+     */
+    public synchronized Subscriber subscribe(String id, String topic, Channel channel, MessageFilter filter) {
+        remove(id);
+        Subscriber subscriber = new Subscriber(id, topic, channel, filter);
+        subscriber.hold();
+        topics.add(subscriber);
+        subscribers.put(id, subscriber);
+        Set<String> ids = channels.get(channel.getId());
+        if (ids == null) {
+            ids = ConcurrentCollections.newConcurrentSet();
+            channels.put(channel.getId(), ids);
+        }
+        ids.add(id);
+        return subscriber;
+    }
+
+    /**
+     * Announce a subscriber connected to this node to the other nodes.
+     *
+     * @param subscriber the subscriber
+     * @param query      the query of the subscription as a JSON string, or null
+     */
+    public void announce(Subscriber subscriber, String query) {
+        announce(subscriber, query, true);
+    }
+
+    private void announce(Subscriber subscriber, String query, boolean subscribed) {
+        Set<String> nodes = peers;
+        if (nodes.isEmpty()) {
+            return;
+        }
+        try {
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("subscriber", subscriber.getId())
+                    .field("topic", subscriber.getTopic())
+                    .field("subscribed", subscribed);
+            if (query != null) {
+                builder.field("query", query);
+            }
+            builder.startObject("channel")
+                    .field("id", subscriber.getChannelId())
+                    .field("localAddress", subscriber.getNodeAddress())
+                    .endObject()
+                    .endObject();
+            for (String node : nodes) {
+                transport.send(node, SubscriptionAction.TYPE, builder);
+            }
+        } catch (IOException e) {
+            logger.warn("announcing subscriber {} failed", e, subscriber.getId());
+        }
+    }
+
+    /**
+     * Apply a subscription announced by another node. An unsubscription only removes the
+     * subscriber if it is still known with the announced channel.
+     *
+     * @param subscriber the subscriber connected to the other node
+     * @param subscribed true if the subscriber has subscribed, false if it is gone
+     */
+    public synchronized void announced(Subscriber subscriber, boolean subscribed) {
+        if (isLocalNode(subscriber.getNodeAddress())) {
+            return;
+        }
+        if (announcements != null) {
+            // the running recovery may have read the subscription document before the change
+            announcements.add(new Tuple<Subscriber, Boolean>(subscriber, subscribed));
+        }
+        apply(remoteTopics, remoteSubscribers, subscriber, subscribed);
+    }
+
+    private static void apply(TopicTrie trie, Map<String, Subscriber> remote, Subscriber subscriber, boolean subscribed) {
+        Subscriber current = remote.get(subscriber.getId());
+        if (subscribed) {
+            if (current != null) {
+                trie.remove(current);
+            }
+            trie.add(subscriber);
+            remote.put(subscriber.getId(), subscriber);
+        } else if (current != null && current.getChannelId().equals(subscriber.getChannelId())
+                && current.getNodeAddress().equals(subscriber.getNodeAddress())) {
+            trie.remove(current);
+            remote.remove(subscriber.getId());
+        }
+    }
+
+    /**
+     * Remove a subscriber connected to this node, and announce it to the other nodes.
+     *
+     * @param id the subscriber ID
+     * @return the removed subscriber or null if the subscriber is not connected to this node
+     */
+    public Subscriber unsubscribe(String id) {
+        Subscriber subscriber;
+        synchronized (this) {
+            subscriber = remove(id);
+        }
+        if (subscriber != null) {
+            announce(subscriber, null, false);
+        }
+        return subscriber;
+    }
+
+    private Subscriber remove(String id) {
+        Subscriber subscriber = subscribers.remove(id);
+        if (subscriber == null) {
+            return null;
+        }
+        topics.remove(subscriber);
+        Set<String> ids = channels.get(subscriber.getChannelId());
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) {
+                channels.remove(subscriber.getChannelId());
+            }
+        }
+        return subscriber;
+    }
+
+    /**
+     * Find a subscriber connected to this node.
+     *
+     * @param id the subscriber ID
+     * @return the subscriber or null if the subscriber is not connected to this node
+     */
+    public Subscriber subscriber(String id) {
+        return subscribers.get(id);
+    }
+
+    /**
+     * Find all subscribers whose subscription matches a published topic, local subscribers
+     * and subscribers connected to other nodes as far as they have been recovered.
+     *
+     * @param topic the published topic
+     * @return the subscribers
+     */
+    public Collection<Subscriber> subscribers(String topic) {
+        List<Subscriber> result = new ArrayList<Subscriber>();
+        topics.match(topic, result);
+        List<Subscriber> remote = new ArrayList<Subscriber>();
+        remoteTopics.match(topic, remote);
+        for (Subscriber subscriber : remote) {
+            // a subscriber may have moved to this node since last recovery
+            if (!subscribers.containsKey(subscriber.getId())) {
+                result.add(subscriber);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Forward a message to subscribers connected to other nodes. Each node gets one forward
+     * frame with the channels and IDs of its subscribers. The cursors of the subscribers are
+     * not touched here, the node of the subscribers advances them when the message is written.
+     *
+     * @param topic   the topic of the message
+     * @param remote  the subscribers connected to other nodes
+     * @param message the message
+     */
+    public void forward(String topic, Collection<Subscriber> remote, XContentBuilder message) {
+        Map<String, List<Subscriber>> nodes = newHashMap();
+        for (Subscriber subscriber : remote) {
+            List<Subscriber> list = nodes.get(subscriber.getNodeAddress());
+            if (list == null) {
+                list = new ArrayList<Subscriber>();
+                nodes.put(subscriber.getNodeAddress(), list);
+            }
+            list.add(subscriber);
+        }
+        for (Map.Entry<String, List<Subscriber>> entry : nodes.entrySet()) {
+            List<Integer> channelIds = new ArrayList<Integer>();
+            List<String> subscriberIds = new ArrayList<String>();
+            for (Subscriber subscriber : entry.getValue()) {
+                channelIds.add(subscriber.getChannelId());
+                subscriberIds.add(subscriber.getId());
+            }
+            transport.forward(entry.getKey(), topic, channelIds, subscriberIds, message);
+        }
+    }
+
+    @Override
+    public void presence(Presence presence, String topic, Channel channel) {
+        if (presence == Presence.DISCONNECTED && channel != null) {
+            prune(channel);
+        }
+    }
+
+    /**
+     * Remove the subscribers of a closed channel. They are announced and marked as
+     * disconnected after leaving the lock, which is not held during network I/O.
+     */
+    private void prune(Channel channel) {
+        Set<String> ids;
+        List<Subscriber> removed = new ArrayList<Subscriber>();
+        synchronized (this) {
+            ids = channels.remove(channel.getId());
+            if (ids == null) {
+                return;
+            }
+            for (String id : ids) {
+                Subscriber subscriber = remove(id);
+                if (subscriber != null) {
+                    removed.add(subscriber);
+                }
+            }
+        }
+        for (Subscriber subscriber : removed) {
+            announce(subscriber, null, false);
+            disconnected(subscriber);
+        }
+        logger.debug("pruned subscribers {} of closed channel {}", ids, channel);
+    }
+
+    /**
+     * Mark the subscription document of a subscriber whose channel has closed, so recovery
+     * on other nodes no longer forwards messages to the channel. The cursors of the subscriber
+     * are saved in the document and dropped from memory, so checkpoints only carry the cursors
+     * of connected subscribers. The document is only marked if it still points to the channel,
+     * a subscriber which has subscribed again in the meantime, maybe on another node, is left
+     * alone. The cursors are kept in memory if the document can not be written.
+     *
+     * @param subscriber the subscriber
+     */
+    private void disconnected(final Subscriber subscriber) {
+        client.prepareGet(pubSubIndexName, SubscribeAction.TYPE, subscriber.getId())
+                .execute(new ActionListener<GetResponse>() {
+                    @Override
+                    @SuppressWarnings("unchecked")
+                    public void onResponse(GetResponse response) {
+                        if (!response.isExists()) {
+                            // the subscriber has unsubscribed
+                            drop(subscriber);
+                            return;
+                        }
+                        Map<String, Object> source = response.getSourceAsMap();
+                        Object channel = source.get("subscriber") instanceof Map ?
+                                ((Map<String, Object>) source.get("subscriber")).get("channel") : null;
+                        if (!(channel instanceof Map)
+                                || !subscriber.getChannelId().equals(((Map<String, Object>) channel).get("id"))
+                                || !subscriber.getNodeAddress().equals(((Map<String, Object>) channel).get("localAddress"))) {
+                            drop(subscriber);
+                            return;
+                        }
+                        source.put("disconnected", System.currentTimeMillis());
+                        List<Map<String, Object>> cursors = new ArrayList<Map<String, Object>>();
+                        for (Map.Entry<String, Map<String, Long>> topic : checkpointer.cursors(subscriber.getId()).entrySet()) {
+                            for (Map.Entry<String, Long> origin : topic.getValue().entrySet()) {
+                                Map<String, Object> cursor = newHashMap();
+                                cursor.put("topic", topic.getKey());
+                                cursor.put("node", origin.getKey());
+                                cursor.put("seq", origin.getValue());
+                                cursors.add(cursor);
+                            }
+                        }
+                        source.put("cursors", cursors);
+                        // the version check fails if the subscriber subscribes again before the write
+                        client.prepareIndex(pubSubIndexName, SubscribeAction.TYPE, subscriber.getId())
+                                .setSource(source)
+                                .setVersion(response.getVersion())
+                                .execute(new ActionListener<IndexResponse>() {
+                                    @Override
+                                    public void onResponse(IndexResponse response) {
+                                        drop(subscriber);
+                                    }
+
+                                    @Override
+                                    public void onFailure(Throwable e) {
+                                        if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+                                            logger.debug("subscriber {} has subscribed again", subscriber.getId());
+                                            drop(subscriber);
+                                        } else {
+                                            logger.warn("marking subscriber {} as disconnected failed", e, subscriber.getId());
+                                        }
+                                    }
+                                });
+                    }
+
+                    @Override
+                    public void onFailure(Throwable e) {
+                        if (!(ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException)) {
+                            logger.warn("marking subscriber {} as disconnected failed", e, subscriber.getId());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Drop the cursors of a disconnected subscriber, unless it has subscribed on this node again.
+     */
+    private synchronized void drop(Subscriber subscriber) {
+        if (!subscribers.containsKey(subscriber.getId())) {
+            checkpointer.remove(subscriber.getId());
+        }
+    }
+
+    /**
+     * Load the subscriptions of clients connected to other nodes from the pubsub index.
+     * The scroll runs asynchronously, the listener is called when the remote subscribers
+     * have been replaced. Announcements received while the scroll runs are applied again
+     * to the recovered subscribers. If a recovery is running already, the listener is
+     * called right away.
+     *
+     * @param listener the listener notified when recovery is done
+     */
+    void recover(final ActionListener<TopicTrie> listener) {
+        synchronized (this) {
+            if (announcements != null) {
+                listener.onResponse(remoteTopics);
+                return;
+            }
+            announcements = new ArrayList<Tuple<Subscriber, Boolean>>();
+        }
+        RecoveryScroll scroll = new RecoveryScroll(listener);
+        try {
+            peers();
+            client.prepareSearch()
+                    .setIndices(pubSubIndexName)
+                    .setTypes(SubscribeAction.TYPE)
+                    .setSearchType(SearchType.SCAN)
+                    .setScroll(new TimeValue(60000))
+                    // the channel is an object, it can not be loaded as a field
+                    .setFetchSource(new String[]{"topic", "subscriber.channel", "query", "disconnected"}, null)
+                    .setSize(100)
+                    .execute(scroll);
+        } catch (Exception e) {
+            scroll.onFailure(e);
+        }
+    }
+
+    /**
+     * Collects the remote subscribers scroll by scroll.
+     */
+    class RecoveryScroll implements ActionListener<SearchResponse> {
+
+        private final ActionListener<TopicTrie> listener;
+
+        private final TopicTrie trie = new TopicTrie();
+
+        private final ConcurrentMap<String, Subscriber> remote = ConcurrentCollections.newConcurrentMap();
+
+        private boolean scanned;
+
+        RecoveryScroll(ActionListener<TopicTrie> listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onResponse(SearchResponse searchResponse) {
+            // the scan response has no hits, an empty scroll response ends the scroll
+            if (searchResponse.getHits().getTotalHits() == 0L
+                    || (scanned && searchResponse.getHits().hits().length == 0)) {
+                synchronized (SubscriberRegistry.this) {
+                    for (Tuple<Subscriber, Boolean> announcement : announcements) {
+                        apply(trie, remote, announcement.v1(), announcement.v2());
+                    }
+                    remoteTopics = trie;
+                    remoteSubscribers = remote;
+                    announcements = null;
+                }
+                listener.onResponse(trie);
+                return;
+            }
+            scanned = true;
+            for (SearchHit hit : searchResponse.getHits()) {
+                if (subscribers.containsKey(hit.getId())) {
+                    continue;
+                }
+                Map<String, Object> source = hit.sourceAsMap();
+                if (source.get("disconnected") != null) {
+                    continue;
+                }
+                Object topic = source.get("topic");
+                Object subscriber = source.get("subscriber");
+                Object channel = subscriber instanceof Map ? ((Map<String, Object>) subscriber).get("channel") : null;
+                if (topic == null || !(channel instanceof Map)) {
+                    continue;
+                }
+                Map<String, Object> channelMap = (Map<String, Object>) channel;
+                String nodeAddress = (String) channelMap.get("localAddress");
+                Integer id = (Integer) channelMap.get("id");
+                if (nodeAddress == null || id == null || isLocalNode(nodeAddress)) {
+                    continue;
+                }
+                Object query = source.get("query");
+                try {
+                    MessageFilter filter = query == null ? MessageFilter.MATCH_ALL :
+                            MessageFilter.compile(XContentHelper.convertToMap(
+                                    query.toString().getBytes(Charsets.UTF_8), false).v2());
+                    Subscriber remoteSubscriber = new Subscriber(hit.getId(), topic.toString(), nodeAddress, id, filter);
+                    trie.add(remoteSubscriber);
+                    remote.put(hit.getId(), remoteSubscriber);
+                } catch (IllegalArgumentException e) {
+                    logger.warn("invalid subscription of subscriber {}: {}", hit.getId(), e.getMessage());
+                } catch (ElasticsearchException e) {
+                    logger.warn("invalid query of subscriber {}: {}", hit.getId(), e.getMessage());
+                }
+            }
+            client.prepareSearchScroll(searchResponse.getScrollId())
+                    .setScroll(new TimeValue(60000))
+                    .execute(this);
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            synchronized (SubscriberRegistry.this) {
+                announcements = null;
+            }
+            listener.onFailure(e);
+        }
+    }
+
+    /**
+     * Check if a node address in a subscriber document points to this node.
+     *
+     * @param nodeAddress the node address of the form [host]/ip:port
+     * @return true if the address is an address of this node
+     */
+    private boolean isLocalNode(String nodeAddress) {
+        BoundTransportAddress boundAddress = transport.boundAddress();
+        if (boundAddress == null || !(boundAddress.boundAddress() instanceof InetSocketTransportAddress)) {
+            return false;
+        }
+        int pos = nodeAddress.lastIndexOf(':');
+        if (pos < 0) {
+            return false;
+        }
+        try {
+            int port = Integer.parseInt(nodeAddress.substring(pos + 1));
+            if (port != ((InetSocketTransportAddress) boundAddress.boundAddress()).address().getPort()) {
+                return false;
+            }
+            InetAddress address = InetAddress.getByName(nodeAddress.substring(nodeAddress.indexOf('/') + 1, pos));
+            return address.isAnyLocalAddress() || address.isLoopbackAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    class Recovery implements Runnable, ActionListener<TopicTrie> {
+
+        @Override
+        public void run() {
+            if (!lifecycle.started()) {
+                return;
+            }
+            try {
+                recover(this);
+            } catch (Exception e) {
+                onFailure(e);
+            }
+        }
+
+        @Override
+        public void onResponse(TopicTrie remote) {
+            logger.trace("recovered remote subscribers");
+            reschedule();
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+            if (ExceptionsHelper.unwrapCause(e) instanceof IndexMissingException) {
+                logger.debug("pubsub index {} does not exist yet", pubSubIndexName);
+            } else {
+                logger.error("recovery of subscribers failed", e);
+            }
+            reschedule();
+        }
+
+        private void reschedule() {
+            if (lifecycle.started()) {
+                recoveryFuture = threadPool.schedule(recoveryInterval, ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.base.Charsets;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.xbib.elasticsearch.websocket.BaseInteractiveHandler;
+import org.xbib.elasticsearch.websocket.InteractiveChannel;
+import org.xbib.elasticsearch.websocket.InteractiveController;
+import org.xbib.elasticsearch.websocket.InteractiveRequest;
+
+import java.util.Map;
+
+/**
+ * Subscription announcement from another node. Nodes announce the subscribers connected
+ * to them over the node links when they subscribe, unsubscribe or their channel closes,
+ * so messages published on this node reach them without waiting for the next recovery.
+ */
+public class SubscriptionAction extends BaseInteractiveHandler {
+
+    protected final static String TYPE = "subscription";
+
+    private final SubscriberRegistry registry;
+
+    @Inject
+    public SubscriptionAction(Settings settings,
+                              Client client,
+                              InteractiveController controller,
+                              SubscriberRegistry registry) {
+        super(settings, client);
+        this.registry = registry;
+        controller.registerHandler(TYPE, this);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void handleRequest(final InteractiveRequest request, final InteractiveChannel channel) {
+        Map<String, Object> m = request.asMap();
+        Object subscriberId = m.get("subscriber");
+        Object topic = m.get("topic");
+        Object channelMap = m.get("channel");
+        if (subscriberId == null || topic == null || !(channelMap instanceof Map)) {
+            logger.warn("invalid subscription announcement {}", m);
+            return;
+        }
+        Object nodeAddress = ((Map<String, Object>) channelMap).get("localAddress");
+        Object channelId = ((Map<String, Object>) channelMap).get("id");
+        if (nodeAddress == null || !(channelId instanceof Number)) {
+            logger.warn("invalid subscription announcement {}", m);
+            return;
+        }
+        Object query = m.get("query");
+        try {
+            MessageFilter filter = query == null ? MessageFilter.MATCH_ALL :
+                    MessageFilter.compile(XContentHelper.convertToMap(
+                            query.toString().getBytes(Charsets.UTF_8), false).v2());
+            // don't send a success message back to the announcing node
+            registry.announced(new Subscriber(subscriberId.toString(), topic.toString(), nodeAddress.toString(),
+                    ((Number) channelId).intValue(), filter), !Boolean.FALSE.equals(m.get("subscribed")));
+        } catch (IllegalArgumentException e) {
+            logger.warn("invalid subscription of subscriber {}: {}", subscriberId, e.getMessage());
+        } catch (ElasticsearchException e) {
+            logger.warn("invalid query of subscriber {}: {}", subscriberId, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.zip.CRC32;
+
+/**
+ * A durable store for the messages of topics, as an alternative to the pubsub index.
+ *
+ * Each topic has a segmented append-only log in the <code>pubsub</code> directory of the node
+ * data location. A record is the length of the message, its sequence number, a CRC32 of the
+ * message and the message. A segment is named after the sequence number of its first record
+ * and a new segment is started when the active one exceeds the segment size. A torn record at
+ * the end of the last segment is truncated when the log is opened.
+ *
+ * Appends are written immediately and made durable by group commit: a single committer thread
+ * takes all appends waiting, forces each segment they went to once, and then notifies them.
+ * Replays read the segments through memory-mapped buffers. Segments are deleted, oldest first,
+ * when they are older than the retention age or when the log exceeds the retention size. The
+ * active segment is never deleted.
+ */
+public class TopicLogStore extends AbstractLifecycleComponent<TopicLogStore> {
+
+    private static final int HEADER_SIZE = 4 + 8 + 4;
+
+    private static final String SUFFIX = ".log";
+
+    private final ThreadPool threadPool;
+
+    private final boolean enabled;
+
+    private final boolean indexMessages;
+
+    private final File path;
+
+    private final ByteSizeValue segmentSize;
+
+    private final TimeValue retentionAge;
+
+    private final ByteSizeValue retentionSize;
+
+    private final TimeValue retentionInterval;
+
+    private final ConcurrentMap<String, Log> logs = ConcurrentCollections.newConcurrentMap();
+
+    private final BlockingQueue<Commit> commits = new LinkedBlockingQueue<Commit>();
+
+    private volatile Thread committer;
+
+    private volatile ScheduledFuture retentionFuture;
+
+    @Inject
+    public TopicLogStore(Settings settings, NodeEnvironment nodeEnvironment, ThreadPool threadPool) {
+        super(settings);
+        this.threadPool = threadPool;
+        this.enabled = settings.getAsBoolean("pubsub.log.enabled", false);
+        this.indexMessages = settings.getAsBoolean("pubsub.log.index", true);
+        this.path = enabled && nodeEnvironment.hasNodeFile() ?
+                new File(nodeEnvironment.nodeDataLocations()[0], "pubsub") : null;
+        this.segmentSize = settings.getAsBytesSize("pubsub.log.segment_size", new ByteSizeValue(16 * 1024 * 1024));
+        this.retentionAge = settings.getAsTime("pubsub.log.retention.age", TimeValue.timeValueHours(24 * 7));
+        this.retentionSize = settings.getAsBytesSize("pubsub.log.retention.size", new ByteSizeValue(1024 * 1024 * 1024));
+        this.retentionInterval = settings.getAsTime("pubsub.log.retention.interval", TimeValue.timeValueMinutes(1));
+    }
+
+    @Override
+    protected void doStart() throws ElasticsearchException {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!path.exists() && !path.mkdirs()) {
+            throw new ElasticsearchException("can not create topic log directory " + path);
+        }
+        committer = EsExecutors.daemonThreadFactory(settings, "pubsub_log_committer").newThread(new Committer());
+        committer.start();
+        retentionFuture = threadPool.schedule(retentionInterval, ThreadPool.Names.GENERIC, new Retention());
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        if (retentionFuture != null) {
+            retentionFuture.cancel(false);
+            retentionFuture = null;
+        }
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            committer = null;
+        }
+        // the appends still waiting are not committed anymore
+        List<Commit> batch = new ArrayList<Commit>();
+        commits.drainTo(batch);
+        for (Commit commit : batch) {
+            commit.listener.onFailure(new ElasticsearchException("topic log store stopped before commit of "
+                    + commit.segment.file + " seq " + commit.seq));
+        }
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        for (Log log : logs.values()) {
+            log.close();
+        }
+        logs.clear();
+    }
+
+    public boolean isEnabled() {
+        return enabled && path != null;
+    }
+
+    /**
+     * @return true if messages are also indexed into the pubsub index for search
+     */
+    public boolean isIndexMessages() {
+        return indexMessages;
+    }
+
+    /**
+     * Append a message to the log of its topic. The listener is notified when the message
+     * is durable.
+     *
+     * @param topic    the topic
+     * @param seq      the sequence number of the message
+     * @param message  the serialized message
+     * @param listener the listener, notified with the sequence number
+     */
+    public void append(String topic, long seq, BytesReference message, ActionListener<Long> listener) {
+        if (!lifecycle.started()) {
+            listener.onFailure(new ElasticsearchException("topic log store is not started"));
+            return;
+        }
+        Segment segment;
+        try {
+            segment = log(topic).append(seq, message);
+        } catch (Exception e) {
+            listener.onFailure(e);
+            return;
+        }
+        commits.add(new Commit(segment, seq, listener));
+    }
+
+    /**
+     * Read the messages of a topic after a cursor.
+     *
+     * @param topic  the topic
+     * @param cursor the sequence number of the last message a subscriber has received
+     * @return the messages after the cursor in the order of the log, or null if the log
+     * does not reach back to the cursor
+     * @throws IOException if the log can not be read
+     */
+    public List<ReplayBuffer.Entry> after(String topic, long cursor) throws IOException {
+        if (!isEnabled()) {
+            return null;
+        }
+        Log log = logs.get(topic);
+        if (log == null && !new File(path, encode(topic)).exists()) {
+            return null;
+        }
+        return log(topic).after(cursor);
+    }
+
+    /**
+     * Delete the segments beyond the retention age and size. The logs of topics which have
+     * not been written or read since the start of the node are opened for that.
+     */
+    void retain() {
+        long now = System.currentTimeMillis();
+        File[] dirs = path.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (!dir.isDirectory()) {
+                    continue;
+                }
+                try {
+                    log(URLDecoder.decode(dir.getName(), "UTF-8"));
+                } catch (Exception e) {
+                    logger.error("can not open topic log {} for retention", e, dir);
+                }
+            }
+        }
+        for (Log log : logs.values()) {
+            try {
+                log.retain(now);
+            } catch (Exception e) {
+                logger.error("retention of topic log {} failed", e, log.dir);
+            }
+        }
+    }
+
+    private Log log(String topic) throws IOException {
+        Log log = logs.get(topic);
+        if (log == null) {
+            synchronized (logs) {
+                log = logs.get(topic);
+                if (log == null) {
+                    log = new Log(new File(path, encode(topic)));
+                    logs.put(topic, log);
+                }
+            }
+        }
+        return log;
+    }
+
+    private static String encode(String topic) {
+        try {
+            return URLEncoder.encode(topic, "UTF-8").replace("*", "%2A");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The log of a topic.
+     */
+    class Log {
+
+        private final File dir;
+
+        private final List<Segment> segments = new ArrayList<Segment>();
+
+        Log(File dir) throws IOException {
+            this.dir = dir;
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("can not create topic log directory " + dir);
+            }
+            File[] files = dir.listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    if (file.getName().endsWith(SUFFIX)) {
+                        segments.add(new Segment(file, Long.parseLong(file.getName().substring(0,
+                                file.getName().length() - SUFFIX.length()))));
+                    }
+                }
+            }
+            if (!segments.isEmpty()) {
+                segments.get(segments.size() - 1).recover();
+            }
+        }
+
+        synchronized Segment append(long seq, BytesReference message) throws IOException {
+            Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (active == null || active.size() >= segmentSize.bytes()) {
+                if (active != null) {
+                    active.seal();
+                }
+                active = new Segment(new File(dir, String.format("%020d", seq) + SUFFIX), seq);
+                segments.add(active);
+            }
+            active.append(seq, message);
+            return active;
+        }
+
+        List<ReplayBuffer.Entry> after(long cursor) throws IOException {
+            List<Segment> snapshot;
+            synchronized (this) {
+                // the messages before the first segment are gone or have never been on this node
+                if (segments.isEmpty() || cursor < segments.get(0).base - 1) {
+                    return null;
+                }
+                snapshot = new ArrayList<Segment>(segments);
+            }
+            List<ReplayBuffer.Entry> result = new ArrayList<ReplayBuffer.Entry>();
+            for (int i = 0; i < snapshot.size(); i++) {
+                // a segment only holds messages before the base of the next one
+                if (i + 1 < snapshot.size() && snapshot.get(i + 1).base <= cursor + 1) {
+                    continue;
+                }
+                snapshot.get(i).read(cursor, result);
+            }
+            return result;
+        }
+
+        /**
+         * Delete sealed segments by age and size, oldest first.
+         */
+        synchronized void retain(long now) {
+            long total = 0L;
+            for (Segment segment : segments) {
+                total += segment.size();
+            }
+            while (segments.size() > 1) {
+                Segment oldest = segments.get(0);
+                if (now - oldest.file.lastModified() <= retentionAge.millis() && total <= retentionSize.bytes()) {
+                    break;
+                }
+                total -= oldest.size();
+                segments.remove(0);
+                oldest.delete();
+            }
+        }
+
+        synchronized void close() {
+            for (Segment segment : segments) {
+                segment.seal();
+            }
+        }
+    }
+
+    /**
+     * A segment file. Only the last segment of a log is open for writing.
+     */
+    class Segment {
+
+        private final File file;
+
+        private final long base;
+
+        private RandomAccessFile raf;
+
+        private volatile long size;
+
+        Segment(File file, long base) throws IOException {
+            this.file = file;
+            this.base = base;
+            this.size = file.length();
+        }
+
+        long size() {
+            return size;
+        }
+
+        private FileChannel channel() throws IOException {
+            if (raf == null) {
+                raf = new RandomAccessFile(file, "rw");
+            }
+            return raf.getChannel();
+        }
+
+        synchronized void append(long seq, BytesReference message) throws IOException {
+            byte[] bytes = message.toBytes();
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bytes.length);
+            buffer.putInt(bytes.length).putLong(seq).putInt((int) crc.getValue()).put(bytes);
+            buffer.flip();
+            FileChannel channel = channel();
+            long position = size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            size = position;
+        }
+
+        synchronized void force() throws IOException {
+            if (raf != null) {
+                raf.getChannel().force(false);
+            }
+        }
+
+        /**
+         * Find the end of the last valid record and cut off the rest, which was not committed.
+         */
+        synchronized void recover() throws IOException {
+            long end = 0L;
+            if (size > 0) {
+                MappedByteBuffer buffer = channel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+                while (buffer.remaining() >= HEADER_SIZE) {
+                    int length = buffer.getInt();
+                    buffer.getLong();
+                    int checksum = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        break;
+                    }
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    if ((int) crc.getValue() != checksum) {
+                        break;
+                    }
+                    end = buffer.position();
+                }
+            }
+            if (end < size) {
+                logger.warn("truncating topic log segment {} from {} to {} bytes", file, size, end);
+                channel().truncate(end);
+                size = end;
+            }
+        }
+
+        void read(long cursor, List<ReplayBuffer.Entry> result) throws IOException {
+            long length = size;
+            if (length == 0) {
+                return;
+            }
+            RandomAccessFile in = new RandomAccessFile(file, "r");
+            try {
+                // the mapping stays valid after the file is closed
+                MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                while (buffer.remaining() >= HEADER_SIZE) {
+                    int len = buffer.getInt();
+                    long seq = buffer.getLong();
+                    buffer.getInt();
+                    if (seq <= cursor) {
+                        buffer.position(buffer.position() + len);
+                        continue;
+                    }
+                    byte[] bytes = new byte[len];
+                    buffer.get(bytes);
+                    result.add(new ReplayBuffer.Entry(seq, new BytesArray(bytes)));
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        synchronized void seal() {
+            if (raf != null) {
+                try {
+                    raf.getChannel().force(false);
+                    raf.close();
+                } catch (IOException e) {
+                    logger.warn("can not close topic log segment {}", e, file);
+                }
+                raf = null;
+            }
+        }
+
+        synchronized void delete() {
+            seal();
+            if (!file.delete()) {
+                logger.warn("can not delete topic log segment {}", file);
+            }
+        }
+    }
+
+    static class Commit {
+
+        final Segment segment;
+
+        final long seq;
+
+        final ActionListener<Long> listener;
+
+        Commit(Segment segment, long seq, ActionListener<Long> listener) {
+            this.segment = segment;
+            this.seq = seq;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Group commit. All appends waiting are made durable with one force per segment.
+     */
+    class Committer implements Runnable {
+
+        @Override
+        public void run() {
+            List<Commit> batch = new ArrayList<Commit>();
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    batch.add(commits.take());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                commits.drainTo(batch);
+                Set<Segment> segments = new LinkedHashSet<Segment>();
+                for (Commit commit : batch) {
+                    segments.add(commit.segment);
+                }
+                Exception failure = null;
+                for (Segment segment : segments) {
+                    try {
+                        segment.force();
+                    } catch (Exception e) {
+                        logger.error("commit of topic log segment {} failed", e, segment.file);
+                        failure = e;
+                    }
+                }
+                for (Commit commit : batch) {
+                    if (failure == null) {
+                        commit.listener.onResponse(commit.seq);
+                    } else {
+                        commit.listener.onFailure(failure);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    class Retention implements Runnable {
+
+        @Override
+        public void run() {
+            if (!lifecycle.started()) {
+                return;
+            }
+            retain();
+            if (lifecycle.started()) {
+                retentionFuture = threadPool.schedule(retentionInterval, ThreadPool.Names.GENERIC, this);
+            }
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A trie of topic subscriptions.
+ *
+ * Topics are hierarchical, the levels are separated by a slash, e.g. "orders/eu/de".
+ * A subscription topic may contain wildcard levels. A single level wildcard "*" matches
+ * exactly one level, "orders/*" matches "orders/eu" but not "orders/eu/de". A multi level
+ * wildcard "#" matches any number of remaining levels including none and is only allowed
+ * as the last level, "orders/#" matches "orders", "orders/eu" and "orders/eu/de".
+ *
+ * Matching a published topic walks the trie along the topic levels, so the cost depends on
+ * the depth of the topic and not on the number of subscriptions. Lookups do not lock and
+ * may run concurrently with modifications.
+ */
+public class TopicTrie {
+
+    public static final String SEPARATOR = "/";
+
+    public static final String SINGLE_LEVEL_WILDCARD = "*";
+
+    public static final String MULTI_LEVEL_WILDCARD = "#";
+
+    private final Node root = new Node();
+
+    /**
+     * Add a subscriber under its subscription topic. An existing subscriber with
+     * the same ID under the same topic is replaced.
+     *
+     * @param subscriber the subscriber
+     */
+    public synchronized void add(Subscriber subscriber) {
+        String[] levels = levels(subscriber.getTopic());
+        validate(subscriber.getTopic(), levels);
+        Node node = root;
+        for (String level : levels) {
+            Node child = node.children.get(level);
+            if (child == null) {
+                child = new Node();
+                node.children.put(level, child);
+            }
+            node = child;
+        }
+        node.subscribers.put(subscriber.getId(), subscriber);
+    }
+
+    /**
+     * Remove a subscriber from its subscription topic. Nodes left empty are pruned.
+     *
+     * @param subscriber the subscriber
+     * @return true if the subscriber was removed
+     */
+    public synchronized boolean remove(Subscriber subscriber) {
+        return remove(root, levels(subscriber.getTopic()), 0, subscriber.getId());
+    }
+
+    private boolean remove(Node node, String[] levels, int pos, String id) {
+        if (pos == levels.length) {
+            return node.subscribers.remove(id) != null;
+        }
+        Node child = node.children.get(levels[pos]);
+        if (child == null) {
+            return false;
+        }
+        boolean removed = remove(child, levels, pos + 1, id);
+        if (removed && child.isEmpty()) {
+            node.children.remove(levels[pos]);
+        }
+        return removed;
+    }
+
+    /**
+     * Find the subscribers whose subscription topics match a published topic.
+     *
+     * @param topic the published topic
+     * @param result the collection the matching subscribers are added to
+     */
+    public void match(String topic, Collection<Subscriber> result) {
+        match(root, levels(topic), 0, result);
+    }
+
+    private void match(Node node, String[] levels, int pos, Collection<Subscriber> result) {
+        // a multi level wildcard matches the rest of the topic, including no more levels
+        Node multi = node.children.get(MULTI_LEVEL_WILDCARD);
+        if (multi != null) {
+            result.addAll(multi.subscribers.values());
+        }
+        if (pos == levels.length) {
+            result.addAll(node.subscribers.values());
+            return;
+        }
+        Node child = node.children.get(levels[pos]);
+        if (child != null) {
+            match(child, levels, pos + 1, result);
+        }
+        if (!SINGLE_LEVEL_WILDCARD.equals(levels[pos])) {
+            Node single = node.children.get(SINGLE_LEVEL_WILDCARD);
+            if (single != null) {
+                match(single, levels, pos + 1, result);
+            }
+        }
+    }
+
+    public boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    /**
+     * Check if a subscription topic contains wildcards.
+     *
+     * @param topic the subscription topic
+     * @return true if the topic contains a wildcard level
+     */
+    public static boolean isWildcard(String topic) {
+        for (String level : levels(topic)) {
+            if (SINGLE_LEVEL_WILDCARD.equals(level) || MULTI_LEVEL_WILDCARD.equals(level)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a published topic matches a subscription topic.
+     *
+     * @param subscription the subscription topic, may contain wildcards
+     * @param topic        the published topic
+     * @return true if the topic matches
+     */
+    public static boolean matches(String subscription, String topic) {
+        String[] filter = levels(subscription);
+        String[] levels = levels(topic);
+        for (int i = 0; i < filter.length; i++) {
+            if (MULTI_LEVEL_WILDCARD.equals(filter[i])) {
+                return true;
+            }
+            if (i == levels.length) {
+                return false;
+            }
+            if (!SINGLE_LEVEL_WILDCARD.equals(filter[i]) && !filter[i].equals(levels[i])) {
+                return false;
+            }
+        }
+        return filter.length == levels.length;
+    }
+
+    private static String[] levels(String topic) {
+        return topic.split(SEPARATOR, -1);
+    }
+
+    private static void validate(String topic, String[] levels) {
+        for (int i = 0; i < levels.length - 1; i++) {
+            if (MULTI_LEVEL_WILDCARD.equals(levels[i])) {
+                throw new IllegalArgumentException("multi level wildcard must be the last level in topic " + topic);
+            }
+        }
+    }
+
+    private static class Node {
+
+        private final ConcurrentMap<String, Node> children = ConcurrentCollections.newConcurrentMap();
+
+        private final ConcurrentMap<String, Subscriber> subscribers = ConcurrentCollections.newConcurrentMap();
+
+        boolean isEmpty() {
+            return children.isEmpty() && subscribers.isEmpty();
+        }
+    }
+}
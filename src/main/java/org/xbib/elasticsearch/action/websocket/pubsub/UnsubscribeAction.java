@@ -16,19 +16,27 @@ import java.io.IOException;
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 /**
- * Unsubscribe action. It removes a subscription.
+ * Unsubscribe action. It removes a subscription and the cursors of the subscriber.
  */
 public class UnsubscribeAction extends BaseInteractiveHandler {
 
     private final String TYPE = "unsubscribe";
     private final String pubSubIndexName;
 
+    private final SubscriberRegistry registry;
+
+    private final Checkpointer checkpointer;
+
     @Inject
     public UnsubscribeAction(Settings settings,
                              Client client,
-                             InteractiveController controller) {
+                             InteractiveController controller,
+                             SubscriberRegistry registry,
+                             Checkpointer checkpointer) {
         super(settings, client);
         this.pubSubIndexName = PubSubIndexName.Conf.indexName(settings);
+        this.registry = registry;
+        this.checkpointer = checkpointer;
         controller.registerHandler(TYPE, this);
     }
 
@@ -41,7 +49,10 @@ public class UnsubscribeAction extends BaseInteractiveHandler {
             } catch (IOException e) {
                 logger.error("error while sending failure response", e);
             }
+            return;
         }
+        registry.unsubscribe(subscriberId);
+        checkpointer.remove(subscriberId);
         try {
             client.prepareDelete(pubSubIndexName, SubscribeAction.TYPE, subscriberId)
                     .execute(new ActionListener<DeleteResponse>() {
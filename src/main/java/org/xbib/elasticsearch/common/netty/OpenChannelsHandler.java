@@ -13,7 +13,9 @@ import org.jboss.netty.channel.ChannelState;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
 
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  *
@@ -27,6 +29,8 @@ public class OpenChannelsHandler extends SimpleChannelUpstreamHandler {
 
     final CounterMetric totalChannelsMetric = new CounterMetric();
 
+    final List<ChannelFutureListener> closeListeners = new CopyOnWriteArrayList<ChannelFutureListener>();
+
     final ESLogger logger;
 
     public OpenChannelsHandler(ESLogger logger) {
@@ -39,6 +43,9 @@ public class OpenChannelsHandler extends SimpleChannelUpstreamHandler {
             Channel channel = openChannels.remove(future.getChannel().getId());
             if (channel != null) {
                 openChannelsMetric.dec();
+                for (ChannelFutureListener listener : closeListeners) {
+                    listener.operationComplete(future);
+                }
             }
             if (logger.isTraceEnabled()) {
                 logger.trace("channel closed: {}", future.getChannel());
@@ -66,6 +73,16 @@ public class OpenChannelsHandler extends SimpleChannelUpstreamHandler {
         ctx.sendUpstream(e);
     }
 
+    /**
+     * Add a listener that is notified after an open channel has been closed
+     * and removed from the open channel table.
+     *
+     * @param listener the listener
+     */
+    public void addCloseListener(ChannelFutureListener listener) {
+        closeListeners.add(listener);
+    }
+
     public Channel channel(Integer id) {
         return openChannels.get(id);
     }
@@ -0,0 +1,378 @@
+package org.xbib.elasticsearch.common.netty;
+
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandler;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelLocal;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.DefaultChannelFuture;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelHandler;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * Backpressure for messages pushed to slow clients.
+ *
+ * Netty marks a channel as not writable when its outbound buffer exceeds the high watermark and
+ * as writable again when it drains below the low watermark. Messages pushed with
+ * {@link #write(Channel, Object, Object)} go to the channel while it is writable. Otherwise they
+ * wait in a bounded queue of the channel, which is drained when the channel becomes writable
+ * again. When the queue is full, the overflow policy decides: drop the oldest waiting message,
+ * drop the new message, or disconnect the client. With the coalesce policy, a new message
+ * replaces a waiting message of the same key, e.g. the latest message of a topic, and the oldest
+ * message is dropped if the queue is full nevertheless. The futures of dropped messages fail, so
+ * deliveries are not recorded for them.
+ *
+ * The handler also counts the bytes of every write until it completes, as a gauge of the
+ * outbound bytes of each channel.
+ */
+@ChannelHandler.Sharable
+public class OutboundBufferHandler extends SimpleChannelHandler {
+
+    public enum Overflow {
+        DROP_OLDEST, DROP_NEWEST, COALESCE, DISCONNECT;
+
+        public static Overflow fromString(String overflow) {
+            if ("drop_oldest".equals(overflow)) {
+                return DROP_OLDEST;
+            } else if ("drop_newest".equals(overflow)) {
+                return DROP_NEWEST;
+            } else if ("coalesce".equals(overflow)) {
+                return COALESCE;
+            } else if ("disconnect".equals(overflow)) {
+                return DISCONNECT;
+            }
+            throw new ElasticsearchIllegalArgumentException("no overflow policy for [" + overflow + "]");
+        }
+    }
+
+    private final ChannelLocal<Outbound> outbounds = new ChannelLocal<Outbound>(true);
+
+    private final ESLogger logger;
+
+    private final int queueSize;
+
+    private final Overflow overflow;
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    private final CounterMetric queuedMetric = new CounterMetric();
+
+    private final CounterMetric droppedMetric = new CounterMetric();
+
+    private final CounterMetric coalescedMetric = new CounterMetric();
+
+    private final CounterMetric disconnectedMetric = new CounterMetric();
+
+    public OutboundBufferHandler(ESLogger logger, int queueSize, Overflow overflow) {
+        this.logger = logger;
+        this.queueSize = queueSize;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Push a message to a channel. Channels without an outbound buffer handler in their
+     * pipeline are written to directly.
+     *
+     * @param channel the channel
+     * @param message the message
+     * @param key     the key for coalescing waiting messages, or null
+     * @return the future of the write, failed if the message is dropped
+     */
+    public static ChannelFuture write(Channel channel, Object message, Object key) {
+        OutboundBufferHandler handler = channel.getPipeline().get(OutboundBufferHandler.class);
+        return handler != null ? handler.offer(channel, message, key) : channel.write(message);
+    }
+
+    ChannelFuture offer(Channel channel, Object message, Object key) {
+        Outbound outbound = outbound(channel);
+        Pending pending = new Pending(channel, message, key);
+        Pending dropped = null;
+        boolean disconnect = false;
+        // Netty is never called while holding the state, it may hold its write lock when it calls back
+        synchronized (outbound) {
+            if (!channel.isOpen() || (outbound.queue.isEmpty() && !outbound.draining && channel.isWritable())) {
+                pending = null;
+            } else if (overflow == Overflow.COALESCE && key != null && coalesce(outbound, pending)) {
+                return pending.future;
+            } else if (outbound.queue.size() >= queueSize && overflow == Overflow.DROP_NEWEST) {
+                dropped = pending;
+            } else if (outbound.queue.size() >= queueSize && overflow == Overflow.DISCONNECT) {
+                dropped = pending;
+                disconnect = true;
+            } else {
+                if (outbound.queue.size() >= queueSize) {
+                    dropped = outbound.remove(outbound.queue.getFirst());
+                }
+                queuedMetric.inc();
+                outbound.add(pending);
+            }
+        }
+        if (pending == null) {
+            return channel.write(message);
+        }
+        if (disconnect) {
+            disconnectedMetric.inc();
+            logger.warn("closing slow channel {}, outbound queue is full", channel);
+            pending.future.setFailure(new IOException("outbound queue of channel " + channel.getId() + " is full"));
+            channel.close();
+            return pending.future;
+        }
+        if (dropped != null) {
+            droppedMetric.inc();
+            dropped.future.setFailure(new IOException("outbound queue of channel " + channel.getId() + " is full"));
+        }
+        // the channel may have become writable before the message was queued
+        drain(channel);
+        return pending.future;
+    }
+
+    /**
+     * Replace the waiting message with the same key by the new one. The future of the
+     * replaced message completes with the write of the new one.
+     */
+    private boolean coalesce(Outbound outbound, final Pending pending) {
+        for (Iterator<Pending> it = outbound.queue.descendingIterator(); it.hasNext(); ) {
+            final Pending waiting = it.next();
+            if (pending.key.equals(waiting.key)) {
+                coalescedMetric.inc();
+                outbound.bytes -= size(waiting.message);
+                waiting.message = pending.message;
+                outbound.bytes += size(pending.message);
+                waiting.future.addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        complete(future, pending.future);
+                    }
+                });
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write waiting messages while the channel is writable. Only one thread drains a channel
+     * at a time, so the messages keep their order.
+     */
+    private void drain(Channel channel) {
+        Outbound outbound = outbounds.get(channel);
+        if (outbound == null) {
+            return;
+        }
+        while (true) {
+            synchronized (outbound) {
+                if (outbound.draining || outbound.queue.isEmpty() || !channel.isWritable()) {
+                    return;
+                }
+                outbound.draining = true;
+            }
+            try {
+                while (true) {
+                    final Pending pending;
+                    synchronized (outbound) {
+                        if (outbound.queue.isEmpty() || !channel.isWritable()) {
+                            break;
+                        }
+                        pending = outbound.remove(outbound.queue.getFirst());
+                    }
+                    channel.write(pending.message).addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            complete(future, pending.future);
+                        }
+                    });
+                }
+            } finally {
+                synchronized (outbound) {
+                    outbound.draining = false;
+                }
+            }
+        }
+    }
+
+    private static void complete(ChannelFuture future, ChannelFuture pending) {
+        if (future.isSuccess()) {
+            pending.setSuccess();
+        } else if (future.getCause() != null) {
+            pending.setFailure(future.getCause());
+        } else {
+            pending.cancel();
+        }
+    }
+
+    private Outbound outbound(Channel channel) {
+        Outbound outbound = outbounds.get(channel);
+        if (outbound == null) {
+            final Outbound newOutbound = new Outbound();
+            outbound = outbounds.setIfAbsent(channel, newOutbound);
+            if (outbound == null) {
+                outbound = newOutbound;
+                // the messages still waiting when the channel closes are not delivered
+                channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        List<Pending> waiting = new ArrayList<Pending>();
+                        synchronized (newOutbound) {
+                            while (!newOutbound.queue.isEmpty()) {
+                                waiting.add(newOutbound.remove(newOutbound.queue.getFirst()));
+                            }
+                        }
+                        for (Pending pending : waiting) {
+                            pending.future.setFailure(new IOException("channel " + future.getChannel().getId() + " closed"));
+                        }
+                    }
+                });
+            }
+        }
+        return outbound;
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final long size = size(e.getMessage());
+        if (size > 0) {
+            final Outbound outbound = outbound(e.getChannel());
+            outbound.written.addAndGet(size);
+            bytes.addAndGet(size);
+            e.getFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    outbound.written.addAndGet(-size);
+                    bytes.addAndGet(-size);
+                }
+            });
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (e.getChannel().isWritable()) {
+            drain(e.getChannel());
+        }
+        super.channelInterestChanged(ctx, e);
+    }
+
+    private static long size(Object message) {
+        if (message instanceof WebSocketFrame) {
+            return ((WebSocketFrame) message).getBinaryData().readableBytes();
+        } else if (message instanceof ChannelBuffer) {
+            return ((ChannelBuffer) message).readableBytes();
+        }
+        return 0L;
+    }
+
+    /**
+     * @param channel the channel
+     * @return the bytes written to the channel and not yet flushed, and the bytes of the
+     * messages waiting for the channel
+     */
+    public long outboundBytes(Channel channel) {
+        Outbound outbound = outbounds.get(channel);
+        return outbound != null ? outbound.bytes() : 0L;
+    }
+
+    /**
+     * @return the outbound bytes of the channels which have any, by channel ID
+     */
+    public Map<Integer, Long> outboundBytes() {
+        Map<Integer, Long> result = newHashMap();
+        for (Map.Entry<Channel, Outbound> entry : outbounds) {
+            long bytes = entry.getValue().bytes();
+            if (bytes > 0L) {
+                result.put(entry.getKey().getId(), bytes);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the outbound bytes of all channels
+     */
+    public long totalOutboundBytes() {
+        long total = bytes.get();
+        for (Map.Entry<Channel, Outbound> entry : outbounds) {
+            synchronized (entry.getValue()) {
+                total += entry.getValue().bytes;
+            }
+        }
+        return total;
+    }
+
+    public long queued() {
+        return queuedMetric.count();
+    }
+
+    public long dropped() {
+        return droppedMetric.count();
+    }
+
+    public long coalesced() {
+        return coalescedMetric.count();
+    }
+
+    public long disconnected() {
+        return disconnectedMetric.count();
+    }
+
+    static class Pending {
+
+        final Object key;
+
+        final ChannelFuture future;
+
+        Object message;
+
+        Pending(Channel channel, Object message, Object key) {
+            this.message = message;
+            this.key = key;
+            this.future = new DefaultChannelFuture(channel, false);
+        }
+    }
+
+    /**
+     * The outbound state of a channel. The queue and its bytes are guarded by the state.
+     */
+    static class Outbound {
+
+        final LinkedList<Pending> queue = new LinkedList<Pending>();
+
+        final AtomicLong written = new AtomicLong();
+
+        long bytes;
+
+        boolean draining;
+
+        void add(Pending pending) {
+            queue.addLast(pending);
+            bytes += size(pending.message);
+        }
+
+        Pending remove(Pending pending) {
+            queue.remove(pending);
+            bytes -= size(pending.message);
+            return pending;
+        }
+
+        synchronized long bytes() {
+            return written.get() + bytes;
+        }
+    }
+}
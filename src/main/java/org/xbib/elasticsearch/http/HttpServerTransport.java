@@ -5,6 +5,9 @@ import org.elasticsearch.common.transport.BoundTransportAddress;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.jboss.netty.channel.Channel;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * HttpServerTransport extended by Websocket services
  */
@@ -56,4 +59,36 @@ public interface HttpServerTransport extends LifecycleComponent<HttpServerTransp
      * @param message message
      */
     void forward(String nodeAdress, Integer channelId, XContentBuilder message);
+
+    /**
+     * Forward a message to a node for a given list of channel IDs in a single frame
+     *
+     * @param nodeAdress node address
+     * @param channelIds channel IDs
+     * @param message message
+     */
+    void forward(String nodeAdress, Collection<Integer> channelIds, XContentBuilder message);
+
+    /**
+     * Forward a message of a topic to subscribers on a node in a single frame. The subscriber IDs
+     * are parallel to the channel IDs, the node advances the cursors of the subscribers when the
+     * message has been written to their channels.
+     *
+     * @param nodeAdress node address
+     * @param topic the topic of the message
+     * @param channelIds channel IDs
+     * @param subscriberIds subscriber IDs
+     * @param message message
+     */
+    void forward(String nodeAdress, String topic, List<Integer> channelIds, List<String> subscriberIds,
+                 XContentBuilder message);
+
+    /**
+     * Send a request of a given type to a node over the link used for forwarding
+     *
+     * @param nodeAdress node address
+     * @param type the request type
+     * @param data the request data
+     */
+    void send(String nodeAdress, String type, XContentBuilder data);
 }
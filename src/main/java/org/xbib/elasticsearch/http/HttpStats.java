@@ -8,11 +8,21 @@ import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilderString;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
 
 public class HttpStats implements Streamable, ToXContent {
 
     private long serverOpen;
     private long totalOpen;
+    private long outboundBytes;
+    private Map<Integer, Long> channelOutboundBytes = Collections.emptyMap();
+    private long queued;
+    private long dropped;
+    private long coalesced;
+    private long disconnected;
 
     HttpStats() {
     }
@@ -22,6 +32,17 @@ public class HttpStats implements Streamable, ToXContent {
         this.totalOpen = totalOpen;
     }
 
+    public HttpStats(long serverOpen, long totalOpen, long outboundBytes, Map<Integer, Long> channelOutboundBytes,
+                     long queued, long dropped, long coalesced, long disconnected) {
+        this(serverOpen, totalOpen);
+        this.outboundBytes = outboundBytes;
+        this.channelOutboundBytes = channelOutboundBytes;
+        this.queued = queued;
+        this.dropped = dropped;
+        this.coalesced = coalesced;
+        this.disconnected = disconnected;
+    }
+
     public long getServerOpen() {
         return this.serverOpen;
     }
@@ -30,6 +51,36 @@ public class HttpStats implements Streamable, ToXContent {
         return this.totalOpen;
     }
 
+    /**
+     * @return the bytes written to channels and not yet flushed, and waiting for slow channels
+     */
+    public long getOutboundBytes() {
+        return this.outboundBytes;
+    }
+
+    /**
+     * @return the outbound bytes of each channel that has any, by channel ID
+     */
+    public Map<Integer, Long> getChannelOutboundBytes() {
+        return this.channelOutboundBytes;
+    }
+
+    public long getQueued() {
+        return this.queued;
+    }
+
+    public long getDropped() {
+        return this.dropped;
+    }
+
+    public long getCoalesced() {
+        return this.coalesced;
+    }
+
+    public long getDisconnected() {
+        return this.disconnected;
+    }
+
     public static HttpStats readHttpStats(StreamInput in) throws IOException {
         HttpStats stats = new HttpStats();
         stats.readFrom(in);
@@ -40,18 +91,45 @@ public class HttpStats implements Streamable, ToXContent {
     public void readFrom(StreamInput in) throws IOException {
         serverOpen = in.readVLong();
         totalOpen = in.readVLong();
+        outboundBytes = in.readVLong();
+        int size = in.readVInt();
+        channelOutboundBytes = newHashMap();
+        for (int i = 0; i < size; i++) {
+            channelOutboundBytes.put(in.readVInt(), in.readVLong());
+        }
+        queued = in.readVLong();
+        dropped = in.readVLong();
+        coalesced = in.readVLong();
+        disconnected = in.readVLong();
     }
 
     @Override
     public void writeTo(StreamOutput out) throws IOException {
         out.writeVLong(serverOpen);
         out.writeVLong(totalOpen);
+        out.writeVLong(outboundBytes);
+        out.writeVInt(channelOutboundBytes.size());
+        for (Map.Entry<Integer, Long> entry : channelOutboundBytes.entrySet()) {
+            out.writeVInt(entry.getKey());
+            out.writeVLong(entry.getValue());
+        }
+        out.writeVLong(queued);
+        out.writeVLong(dropped);
+        out.writeVLong(coalesced);
+        out.writeVLong(disconnected);
     }
 
     static final class Fields {
         static final XContentBuilderString WEBSOCKET = new XContentBuilderString("websocket");
         static final XContentBuilderString CURRENT_OPEN = new XContentBuilderString("current_open");
         static final XContentBuilderString TOTAL_OPENED = new XContentBuilderString("total_opened");
+        static final XContentBuilderString OUTBOUND = new XContentBuilderString("outbound");
+        static final XContentBuilderString BYTES = new XContentBuilderString("bytes");
+        static final XContentBuilderString CHANNELS = new XContentBuilderString("channels");
+        static final XContentBuilderString QUEUED = new XContentBuilderString("queued");
+        static final XContentBuilderString DROPPED = new XContentBuilderString("dropped");
+        static final XContentBuilderString COALESCED = new XContentBuilderString("coalesced");
+        static final XContentBuilderString DISCONNECTED = new XContentBuilderString("disconnected");
     }
 
     @Override
@@ -59,6 +137,18 @@ public class HttpStats implements Streamable, ToXContent {
         builder.startObject(Fields.WEBSOCKET);
         builder.field(Fields.CURRENT_OPEN, serverOpen);
         builder.field(Fields.TOTAL_OPENED, totalOpen);
+        builder.startObject(Fields.OUTBOUND);
+        builder.field(Fields.BYTES, outboundBytes);
+        builder.startObject(Fields.CHANNELS);
+        for (Map.Entry<Integer, Long> entry : channelOutboundBytes.entrySet()) {
+            builder.field(Integer.toString(entry.getKey()), entry.getValue());
+        }
+        builder.endObject();
+        builder.field(Fields.QUEUED, queued);
+        builder.field(Fields.DROPPED, dropped);
+        builder.field(Fields.COALESCED, coalesced);
+        builder.field(Fields.DISCONNECTED, disconnected);
+        builder.endObject();
         builder.endObject();
         return builder;
     }
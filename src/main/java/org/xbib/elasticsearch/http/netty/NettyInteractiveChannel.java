@@ -1,21 +1,83 @@
 package org.xbib.elasticsearch.http.netty;
 
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelLocal;
 import org.xbib.elasticsearch.websocket.InteractiveChannel;
 import org.xbib.elasticsearch.websocket.InteractiveResponse;
 
 import java.io.IOException;
 
 /**
- * Netty implementation for an interactive channel
+ * Netty implementation for an interactive channel. Responses are written in the
+ * format the client used for its requests on the channel. The channel of a request
+ * with an ID adds the ID to the responses it builds.
  */
 public class NettyInteractiveChannel implements InteractiveChannel {
 
+    /**
+     * The content type of the requests on a channel, removed when the channel closes
+     */
+    private static final ChannelLocal<XContentType> contentTypes = new ChannelLocal<XContentType>(true);
+
     private final Channel channel;
 
+    private final XContentType contentType;
+
+    private final String id;
+
     public NettyInteractiveChannel(Channel channel) {
+        this(channel, contentType(channel));
+    }
+
+    public NettyInteractiveChannel(Channel channel, XContentType contentType) {
+        this(channel, contentType, null);
+    }
+
+    public NettyInteractiveChannel(Channel channel, XContentType contentType, String id) {
         this.channel = channel;
+        this.contentType = contentType;
+        this.id = id;
+    }
+
+    /**
+     * Remember the content type of the requests on a channel.
+     *
+     * @param channel the channel
+     * @param contentType the content type
+     */
+    public static void contentType(Channel channel, XContentType contentType) {
+        if (contentType(channel) == contentType) {
+            return;
+        }
+        if (contentType == XContentType.JSON) {
+            contentTypes.remove(channel);
+        } else {
+            contentTypes.set(channel, contentType);
+        }
+    }
+
+    /**
+     * The content type of the requests on a channel.
+     *
+     * @param channel the channel
+     * @return the content type, JSON if the client did not send binary requests
+     */
+    public static XContentType contentType(Channel channel) {
+        XContentType contentType = contentTypes.get(channel);
+        return contentType != null ? contentType : XContentType.JSON;
+    }
+
+    public XContentType contentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the ID of the request answered on this channel, or null
+     */
+    public String id() {
+        return id;
     }
 
     @Override
@@ -30,11 +92,11 @@ public class NettyInteractiveChannel implements InteractiveChannel {
 
     @Override
     public void sendResponse(String type, Throwable t) throws IOException {
-        channel.write(new NettyInteractiveResponse(type, t).response());
+        channel.write(new NettyInteractiveResponse(type, id, t, contentType).response());
     }
 
     @Override
     public void sendResponse(String type, XContentBuilder builder) throws IOException {
-        channel.write(new NettyInteractiveResponse(type, builder).response());
+        channel.write(new NettyInteractiveResponse(type, id, builder, contentType).response());
     }
 }
@@ -1,13 +1,23 @@
 package org.xbib.elasticsearch.http.netty;
 
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.xbib.elasticsearch.websocket.InteractiveRequest;
 import org.xbib.elasticsearch.websocket.client.WebSocketClient;
 import org.xbib.elasticsearch.websocket.client.WebSocketClientRequest;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 /**
  * Netty implemenation for an interactive request.
@@ -16,12 +26,24 @@ import java.util.Map;
  */
 public class NettyInteractiveRequest implements InteractiveRequest, WebSocketClientRequest {
 
+    private final static AtomicLong ids = new AtomicLong();
+
     protected String type;
 
+    protected String id;
+
     protected Map<String, Object> data;
 
     protected XContentBuilder builder;
 
+    private XContentType contentType;
+
+    private BytesReference source;
+
+    private Map<String, Object> params;
+
+    private Map<String, BytesReference> raw;
+
     public NettyInteractiveRequest() {
     }
 
@@ -29,12 +51,50 @@ public class NettyInteractiveRequest implements InteractiveRequest, WebSocketCli
         this.data = data;
     }
 
+    /**
+     * A request parsed from a frame. The scalar parameters are known, object and array
+     * parameters are kept as bytes and the full map is only built when asked for.
+     *
+     * @param type        the request type
+     * @param id          the request ID, or null
+     * @param contentType the content type of the frame
+     * @param source      the frame content
+     * @param params      the scalar parameters
+     * @param raw         the object and array parameters as bytes
+     */
+    public NettyInteractiveRequest(String type, String id, XContentType contentType, BytesReference source,
+                                   Map<String, Object> params, Map<String, BytesReference> raw) {
+        this.type = type;
+        this.id = id;
+        this.contentType = contentType;
+        this.source = source;
+        this.params = params;
+        this.raw = raw;
+    }
+
+    public String type() {
+        return type;
+    }
+
     @Override
     public NettyInteractiveRequest type(String type) {
         this.type = type;
         return this;
     }
 
+    /**
+     * @return the ID of the request, or null
+     */
+    public String id() {
+        return id;
+    }
+
+    @Override
+    public NettyInteractiveRequest id(String id) {
+        this.id = id;
+        return this;
+    }
+
     @Override
     public NettyInteractiveRequest data(XContentBuilder builder) {
         this.builder = builder;
@@ -43,22 +103,70 @@ public class NettyInteractiveRequest implements InteractiveRequest, WebSocketCli
 
     @Override
     public void send(WebSocketClient client) throws IOException {
-        client.send(new NettyInteractiveResponse(type, builder).response());
+        client.send(new NettyInteractiveResponse(type, id, builder, XContentType.JSON).response());
+    }
+
+    @Override
+    public ListenableActionFuture<Map<String, Object>> execute(WebSocketClient client) throws IOException {
+        return execute(client, null);
+    }
+
+    @Override
+    public ListenableActionFuture<Map<String, Object>> execute(WebSocketClient client, TimeValue timeout)
+            throws IOException {
+        String requestId = id != null ? id : Long.toString(ids.incrementAndGet());
+        return client.request(requestId,
+                new NettyInteractiveResponse(type, requestId, builder, XContentType.JSON).response(), timeout);
     }
 
     @Override
-    public Map<String, Object> asMap() {
+    @SuppressWarnings("unchecked")
+    public synchronized Map<String, Object> asMap() {
+        if (data == null && source != null) {
+            XContentParser parser = null;
+            try {
+                parser = XContentFactory.xContent(contentType).createParser(source);
+                data = (Map<String, Object>) parser.map().get("data");
+            } catch (IOException e) {
+                throw new ElasticsearchParseException("unable to parse request", e);
+            } finally {
+                if (parser != null) {
+                    parser.close();
+                }
+            }
+            if (data == null) {
+                data = newHashMap();
+            }
+        }
         return data;
     }
 
     @Override
     public boolean hasParam(String key) {
+        if (params != null) {
+            return params.containsKey(key) || raw.containsKey(key);
+        }
         return data.containsKey(key);
     }
 
     @Override
     public Object param(String key) {
-        return data.get(key);
+        if (params != null && !raw.containsKey(key)) {
+            return params.get(key);
+        }
+        return asMap().get(key);
+    }
+
+    @Override
+    public BytesReference paramAsBytes(String key) throws IOException {
+        if (raw != null) {
+            return raw.get(key);
+        }
+        Object o = data.get(key);
+        if (o instanceof Map) {
+            return jsonBuilder().map((Map<String, Object>) o).bytes();
+        }
+        return null;
     }
 
     @Override
@@ -96,13 +204,13 @@ public class NettyInteractiveRequest implements InteractiveRequest, WebSocketCli
     @Override
     public boolean paramAsBoolean(String key) {
         Object o = param(key);
-        return o != null ? Boolean.getBoolean(o.toString()) : null;
+        return o != null && Boolean.parseBoolean(o.toString());
     }
 
     @Override
     public boolean paramAsBoolean(String key, boolean defaultValue) {
         Object o = param(key);
-        return o != null ? Boolean.getBoolean(o.toString()) : defaultValue;
+        return o != null ? Boolean.parseBoolean(o.toString()) : defaultValue;
     }
 
     @Override
@@ -0,0 +1,196 @@
+package org.xbib.elasticsearch.http.netty;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.jackson.core.JsonFactory;
+import org.elasticsearch.common.jackson.core.JsonGenerator;
+import org.elasticsearch.common.jackson.core.JsonParser;
+import org.elasticsearch.common.jackson.core.JsonToken;
+import org.elasticsearch.common.jackson.dataformat.cbor.CBORFactory;
+import org.elasticsearch.common.jackson.dataformat.smile.SmileFactory;
+import org.elasticsearch.common.jackson.dataformat.smile.SmileGenerator;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+
+/**
+ * A streaming parser for interactive requests of the form
+ * <code>{"type":"...","id":"...","data":{"param":"value",...,"data":{...}}}</code>.
+ * The ID is optional, a string or a number. A number <code>seq</code> in the envelope is
+ * taken as the <code>seq</code> parameter unless the data has one, so a client can number
+ * a request without rewriting its data.
+ *
+ * Only the envelope is parsed. Scalar parameters are read into a small map, object and
+ * array parameters are kept as bytes. For JSON, these bytes are slices of the frame
+ * buffer, so a document can be handed to an index request without building a map and
+ * serializing it again. SMILE and CBOR values refer to earlier content in the stream,
+ * so they are copied once into a standalone value of the same format.
+ */
+public class NettyInteractiveRequestParser {
+
+    private final static JsonFactory jsonFactory = new JsonFactory();
+
+    private final static SmileFactory smileFactory = new SmileFactory();
+
+    private final static CBORFactory cborFactory = new CBORFactory();
+
+    static {
+        jsonFactory.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
+        smileFactory.configure(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT, false);
+        smileFactory.configure(SmileFactory.Feature.FAIL_ON_SYMBOL_HASH_OVERFLOW, false);
+    }
+
+    private NettyInteractiveRequestParser() {
+    }
+
+    /**
+     * Parse a request envelope.
+     *
+     * @param contentType the content type of the frame
+     * @param bytes       the frame content
+     * @return the request
+     * @throws IOException if the content is not a valid request
+     */
+    public static NettyInteractiveRequest parse(XContentType contentType, BytesReference bytes) throws IOException {
+        if (!bytes.hasArray()) {
+            bytes = new BytesArray(bytes.toBytes());
+        }
+        JsonFactory factory = factory(contentType);
+        JsonParser parser = factory.createParser(bytes.array(), bytes.arrayOffset(), bytes.length());
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("request must be an object");
+            }
+            String type = null;
+            String id = null;
+            Number seq = null;
+            Map<String, Object> params = newHashMap();
+            Map<String, BytesReference> raw = newHashMap();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("type".equals(name) && token == JsonToken.VALUE_STRING) {
+                    type = parser.getText();
+                } else if ("id".equals(name) && (token == JsonToken.VALUE_STRING
+                        || token == JsonToken.VALUE_NUMBER_INT)) {
+                    id = parser.getText();
+                } else if ("seq".equals(name) && token == JsonToken.VALUE_NUMBER_INT) {
+                    seq = parser.getNumberValue();
+                } else if ("data".equals(name) && token == JsonToken.START_OBJECT) {
+                    parseData(contentType, factory, parser, bytes, params, raw);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (seq != null && !params.containsKey("seq")) {
+                params.put("seq", seq);
+            }
+            return new NettyInteractiveRequest(type, id, contentType, bytes, params, raw);
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Parse an array of request envelopes, e.g. the actions of a multi-document frame. Each
+     * envelope is parsed on its own, JSON envelopes are slices of the array content.
+     *
+     * @param contentType the content type of the array
+     * @param bytes       the array content
+     * @return the requests
+     * @throws IOException if the content is not an array of valid requests
+     */
+    public static List<NettyInteractiveRequest> parseArray(XContentType contentType, BytesReference bytes)
+            throws IOException {
+        if (!bytes.hasArray()) {
+            bytes = new BytesArray(bytes.toBytes());
+        }
+        JsonFactory factory = factory(contentType);
+        JsonParser parser = factory.createParser(bytes.array(), bytes.arrayOffset(), bytes.length());
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("requests must be an array");
+            }
+            List<NettyInteractiveRequest> requests = newArrayList();
+            JsonToken token;
+            while ((token = parser.nextToken()) == JsonToken.START_OBJECT) {
+                requests.add(parse(contentType, contentType == XContentType.JSON ?
+                        slice(parser, bytes) : copy(factory, parser)));
+            }
+            if (token != JsonToken.END_ARRAY) {
+                throw new IOException("request must be an object");
+            }
+            return requests;
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void parseData(XContentType contentType, JsonFactory factory, JsonParser parser,
+                                  BytesReference bytes,
+                                  Map<String, Object> params, Map<String, BytesReference> raw) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            switch (token) {
+                case START_OBJECT:
+                case START_ARRAY:
+                    raw.put(name, contentType == XContentType.JSON ?
+                            slice(parser, bytes) : copy(factory, parser));
+                    break;
+                case VALUE_STRING:
+                    params.put(name, parser.getText());
+                    break;
+                case VALUE_NUMBER_INT:
+                case VALUE_NUMBER_FLOAT:
+                    params.put(name, parser.getNumberValue());
+                    break;
+                case VALUE_TRUE:
+                    params.put(name, Boolean.TRUE);
+                    break;
+                case VALUE_FALSE:
+                    params.put(name, Boolean.FALSE);
+                    break;
+                case VALUE_NULL:
+                    params.put(name, null);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private static BytesReference slice(JsonParser parser, BytesReference bytes) throws IOException {
+        // byte offsets count from the start of the content, the parser has just consumed
+        // the opening bracket, after skipping it has consumed the closing one
+        int start = (int) parser.getCurrentLocation().getByteOffset() - 1;
+        parser.skipChildren();
+        int end = (int) parser.getCurrentLocation().getByteOffset();
+        return bytes.slice(start, end - start);
+    }
+
+    private static BytesReference copy(JsonFactory factory, JsonParser parser) throws IOException {
+        BytesStreamOutput out = new BytesStreamOutput();
+        JsonGenerator generator = factory.createGenerator(out);
+        generator.copyCurrentStructure(parser);
+        generator.close();
+        return out.bytes();
+    }
+
+    private static JsonFactory factory(XContentType contentType) {
+        switch (contentType) {
+            case SMILE:
+                return smileFactory;
+            case CBOR:
+                return cborFactory;
+            default:
+                return jsonFactory;
+        }
+    }
+}
@@ -1,44 +1,131 @@
 package org.xbib.elasticsearch.http.netty;
 
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.xbib.elasticsearch.websocket.InteractiveResponse;
 
 import java.io.IOException;
+import java.util.EnumMap;
 import java.util.Map;
 
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-
 /**
- * Netty implementation of an interactive response
+ * Netty implementation of an interactive response.
+ *
+ * The response is encoded once. Each call of response() returns a new frame over a
+ * duplicate of the encoded buffer, so a response can be written to many channels
+ * without copying the content.
+ *
+ * JSON responses are sent as text frames, SMILE and CBOR responses as binary frames.
+ * A response to a request with an ID carries the ID of the request, so clients can match
+ * responses to requests.
  */
 public class NettyInteractiveResponse implements InteractiveResponse {
 
     private final String type;
 
-    private final TextWebSocketFrame response;
+    private final XContentType contentType;
+
+    private final ChannelBuffer buffer;
 
     public NettyInteractiveResponse(String type, XContentBuilder builder) throws IOException {
+        this(type, builder, XContentType.JSON);
+    }
+
+    public NettyInteractiveResponse(String type, XContentBuilder builder, XContentType contentType) throws IOException {
+        this(type, null, builder, contentType);
+    }
+
+    public NettyInteractiveResponse(String type, String id, XContentBuilder builder, XContentType contentType) throws IOException {
+        this(type, id, builder != null ? builder.bytes() : null, builder != null ? builder.contentType() : null, contentType);
+    }
+
+    public NettyInteractiveResponse(String type, BytesReference content, XContentType sourceType,
+                                    XContentType contentType) throws IOException {
+        this(type, null, content, sourceType, contentType);
+    }
+
+    /**
+     * A response with serialized content.
+     *
+     * @param type        the response type
+     * @param id          the request ID, or null
+     * @param content     the content, or null
+     * @param sourceType  the format of the content
+     * @param contentType the format of the response
+     * @throws IOException if the response can not be built
+     */
+    public NettyInteractiveResponse(String type, String id, BytesReference content, XContentType sourceType,
+                                    XContentType contentType) throws IOException {
         this.type = type;
-        XContentBuilder responseBuilder = jsonBuilder()
+        this.contentType = contentType;
+        XContentBuilder responseBuilder = XContentFactory.contentBuilder(contentType)
                 .startObject().field("success", true).field("type", type);
-        if (builder != null) {
-            responseBuilder.rawField("data", builder.bytes());
+        if (id != null) {
+            responseBuilder.field("id", id);
+        }
+        if (content != null) {
+            if (sourceType == contentType) {
+                responseBuilder.rawField("data", content);
+            } else {
+                // the content must be transcoded into the format of the response
+                XContentParser parser = XContentFactory.xContent(sourceType).createParser(content);
+                try {
+                    parser.nextToken();
+                    responseBuilder.field("data").copyCurrentStructure(parser);
+                } finally {
+                    parser.close();
+                }
+            }
         }
         responseBuilder.endObject();
-        this.response = new TextWebSocketFrame(responseBuilder.string());
+        this.buffer = toChannelBuffer(responseBuilder.bytes());
     }
 
     public NettyInteractiveResponse(String type, Map<String, Object> map) throws IOException {
+        this(type, map, XContentType.JSON);
+    }
+
+    public NettyInteractiveResponse(String type, Map<String, Object> map, XContentType contentType) throws IOException {
         this.type = type;
-        XContentBuilder responseBuilder = jsonBuilder();
+        this.contentType = contentType;
+        XContentBuilder responseBuilder = XContentFactory.contentBuilder(contentType);
         responseBuilder.startObject().field("success", true).field("type", type).field("data", map).endObject();
-        this.response = new TextWebSocketFrame(responseBuilder.string());
+        this.buffer = toChannelBuffer(responseBuilder.bytes());
+    }
+
+    public NettyInteractiveResponse(String type, Throwable t) throws IOException {
+        this(type, t, XContentType.JSON);
+    }
+
+    public NettyInteractiveResponse(String type, Throwable t, XContentType contentType) throws IOException {
+        this(type, null, t, contentType);
     }
 
-    public NettyInteractiveResponse(String type, Throwable t) {
+    public NettyInteractiveResponse(String type, String id, Throwable t, XContentType contentType) throws IOException {
         this.type = type;
-        this.response = new TextWebSocketFrame("{\"success\":false,\"type\":\"" + type + "\",\"error\":\"" + t.getMessage() + "\"");
+        this.contentType = contentType;
+        XContentBuilder responseBuilder = XContentFactory.contentBuilder(contentType);
+        responseBuilder.startObject().field("success", false).field("type", type);
+        if (id != null) {
+            responseBuilder.field("id", id);
+        }
+        responseBuilder.field("error", t.getMessage()).endObject();
+        this.buffer = toChannelBuffer(responseBuilder.bytes());
+    }
+
+    private static ChannelBuffer toChannelBuffer(BytesReference content) {
+        return content.hasArray() ?
+                ChannelBuffers.wrappedBuffer(content.array(), content.arrayOffset(), content.length()) :
+                ChannelBuffers.wrappedBuffer(content.toBytes(), 0, content.length());
     }
 
     @Override
@@ -46,14 +133,64 @@ public class NettyInteractiveResponse implements InteractiveResponse {
         return type;
     }
 
+    public XContentType contentType() {
+        return contentType;
+    }
+
     /**
-     * The response frame with content, ready for writing to a Channel
+     * The response frame with content, ready for writing to a Channel. The frame
+     * shares the encoded content with all other frames of this response.
      *
-     * @return a TextWebSocketFrame
+     * @return a TextWebSocketFrame for JSON, a BinaryWebSocketFrame otherwise
      * @throws IOException if response fails
      */
     @Override
-    public TextWebSocketFrame response() throws IOException {
-        return response;
+    public WebSocketFrame response() throws IOException {
+        return contentType == XContentType.JSON ?
+                new TextWebSocketFrame(buffer.duplicate()) :
+                new BinaryWebSocketFrame(buffer.duplicate());
+    }
+
+    /**
+     * A response for many channels which may use different formats. The response is
+     * encoded once for each format in use.
+     */
+    public static class Shared {
+
+        private final String type;
+
+        private final BytesReference content;
+
+        private final XContentType sourceType;
+
+        private final Map<XContentType, NettyInteractiveResponse> responses =
+                new EnumMap<XContentType, NettyInteractiveResponse>(XContentType.class);
+
+        public Shared(String type, XContentBuilder builder) {
+            this(type, builder.bytes(), builder.contentType());
+        }
+
+        public Shared(String type, BytesReference content, XContentType sourceType) {
+            this.type = type;
+            this.content = content;
+            this.sourceType = sourceType;
+        }
+
+        /**
+         * The response frame in the format of the channel.
+         *
+         * @param channel the channel
+         * @return the frame
+         * @throws IOException if response fails
+         */
+        public synchronized WebSocketFrame response(Channel channel) throws IOException {
+            XContentType contentType = NettyInteractiveChannel.contentType(channel);
+            NettyInteractiveResponse response = responses.get(contentType);
+            if (response == null) {
+                response = new NettyInteractiveResponse(type, content, sourceType, contentType);
+                responses.put(contentType, response);
+            }
+            return response.response();
+        }
     }
 }
@@ -19,6 +19,8 @@ public class NettyWebSocketServerPipelineFactory extends NettyHttpServerPipeline
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline pipeline = super.getPipeline();
         pipeline.replace("handler", "handler", handler);
+        // messages pushed to slow clients wait here instead of in the socket buffer
+        pipeline.addBefore("handler", "outbound", transport.outboundBuffer);
         return pipeline;
     }
 }
@@ -1,6 +1,7 @@
 package org.xbib.elasticsearch.http.netty;
 
 import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchIllegalStateException;
 import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.network.NetworkService;
@@ -14,24 +15,26 @@ import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.util.BigArrays;
 import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.KeyedLock;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.transport.BindTransportException;
 import org.jboss.netty.bootstrap.ServerBootstrap;
 import org.jboss.netty.channel.AdaptiveReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.FixedReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.ReceiveBufferSizePredictorFactory;
 import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
-import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
 import org.jboss.netty.handler.timeout.ReadTimeoutException;
 import org.xbib.elasticsearch.websocket.Presence;
-import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
-import org.xbib.elasticsearch.websocket.client.WebSocketClient;
 import org.xbib.elasticsearch.common.netty.OpenChannelsHandler;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
 import org.xbib.elasticsearch.http.BindHttpException;
 import org.xbib.elasticsearch.http.HttpChannel;
 import org.xbib.elasticsearch.http.HttpInfo;
@@ -45,8 +48,10 @@ import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.URI;
-import java.util.Map;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -112,6 +117,14 @@ public class NettyWebSocketServerTransport
 
     final int maxCompositeBufferComponents;
 
+    private final ByteSizeValue outboundHighWatermark;
+
+    private final ByteSizeValue outboundLowWatermark;
+
+    private final int outboundQueueSize;
+
+    private final OutboundBufferHandler.Overflow outboundOverflow;
+
     private volatile ServerBootstrap serverBootstrap;
 
     private volatile BoundTransportAddress boundAddress;
@@ -120,13 +133,17 @@ public class NettyWebSocketServerTransport
 
     protected OpenChannelsHandler serverOpenChannels;
 
+    protected OutboundBufferHandler outboundBuffer;
+
     private volatile HttpServerAdapter httpServerAdapter;
 
     private volatile WebSocketServerAdapter webSocketServerAdapter;
 
-    private Map<String, WebSocketClient> nodeChannels = ConcurrentCollections.newConcurrentMap();
+    private final ConcurrentMap<String, NodeLink> nodeLinks = ConcurrentCollections.newConcurrentMap();
+
+    private final KeyedLock<String> nodeLinkLock = new KeyedLock<String>();
 
-    private final static NettyWebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+    private volatile NettyWebSocketClientFactory clientFactory;
 
     @Inject
     public NettyWebSocketServerTransport(Settings settings, NetworkService networkService,
@@ -178,6 +195,11 @@ public class NettyWebSocketServerTransport
             receiveBufferSizePredictorFactory = new AdaptiveReceiveBufferSizePredictorFactory((int) receivePredictorMin.bytes(), (int) receivePredictorMin.bytes(), (int) receivePredictorMax.bytes());
         }
 
+        this.outboundHighWatermark = componentSettings.getAsBytesSize("outbound.high_watermark", settings.getAsBytesSize("websocket.outbound.high_watermark", new ByteSizeValue(64, ByteSizeUnit.KB)));
+        this.outboundLowWatermark = componentSettings.getAsBytesSize("outbound.low_watermark", settings.getAsBytesSize("websocket.outbound.low_watermark", new ByteSizeValue(32, ByteSizeUnit.KB)));
+        this.outboundQueueSize = componentSettings.getAsInt("outbound.queue_size", settings.getAsInt("websocket.outbound.queue_size", 1000));
+        this.outboundOverflow = OutboundBufferHandler.Overflow.fromString(componentSettings.get("outbound.overflow", settings.get("websocket.outbound.overflow", "disconnect")));
+
         this.compression = settings.getAsBoolean("websocket.compression", false);
         this.compressionLevel = settings.getAsInt("websocket.compression_level", 6);
 
@@ -210,6 +232,17 @@ public class NettyWebSocketServerTransport
     @Override
     protected void doStart() throws ElasticsearchException {
         this.serverOpenChannels = new OpenChannelsHandler(logger);
+        this.serverOpenChannels.addCloseListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                presence(Presence.DISCONNECTED, null, future.getChannel());
+            }
+        });
+
+        this.outboundBuffer = new OutboundBufferHandler(logger, outboundQueueSize, outboundOverflow);
+
+        // the clients of the links to other nodes
+        this.clientFactory = new NettyWebSocketClientFactory(settings);
 
         /* we do not support oio for websocket - it wouldn't work either */
         serverBootstrap = new ServerBootstrap(new NioServerSocketChannelFactory(
@@ -231,6 +264,9 @@ public class NettyWebSocketServerTransport
         if (tcpReceiveBufferSize != null && tcpReceiveBufferSize.bytes() > 0) {
             serverBootstrap.setOption("child.receiveBufferSize", tcpReceiveBufferSize.bytes());
         }
+        // a channel is not writable while its outbound buffer is above the high watermark
+        serverBootstrap.setOption("child.writeBufferHighWaterMark", (int) outboundHighWatermark.bytes());
+        serverBootstrap.setOption("child.writeBufferLowWaterMark", (int) outboundLowWatermark.bytes());
         serverBootstrap.setOption("receiveBufferSizePredictorFactory", receiveBufferSizePredictorFactory);
         serverBootstrap.setOption("child.receiveBufferSizePredictorFactory", receiveBufferSizePredictorFactory);
         if (reuseAddress != null) {
@@ -287,6 +323,13 @@ public class NettyWebSocketServerTransport
 
     @Override
     protected void doStop() throws ElasticsearchException {
+        for (NodeLink link : nodeLinks.values()) {
+            link.close();
+        }
+        if (clientFactory != null) {
+            clientFactory.shutdown();
+            clientFactory = null;
+        }
         if (serverChannel != null) {
             serverChannel.close().awaitUninterruptibly();
             serverChannel = null;
@@ -319,7 +362,13 @@ public class NettyWebSocketServerTransport
     @Override
     public HttpStats stats() {
         OpenChannelsHandler channels = serverOpenChannels;
-        return new HttpStats(channels == null ? 0 : channels.numberOfOpenChannels(), channels == null ? 0 : channels.totalChannels());
+        OutboundBufferHandler outbound = outboundBuffer;
+        if (outbound == null) {
+            return new HttpStats(channels == null ? 0 : channels.numberOfOpenChannels(), channels == null ? 0 : channels.totalChannels());
+        }
+        return new HttpStats(channels == null ? 0 : channels.numberOfOpenChannels(), channels == null ? 0 : channels.totalChannels(),
+                outbound.totalOutboundBytes(), outbound.outboundBytes(),
+                outbound.queued(), outbound.dropped(), outbound.coalesced(), outbound.disconnected());
     }
 
     /**
@@ -375,52 +424,117 @@ public class NettyWebSocketServerTransport
      * @param builder              the builder for the message
      */
     @Override
-    public void forward(final String websocketNodeAddress, final Integer channelId, final XContentBuilder builder) {
+    public void forward(String websocketNodeAddress, Integer channelId, XContentBuilder builder) {
+        forward(websocketNodeAddress, Collections.singletonList(channelId), builder);
+    }
+
+    /**
+     * Forward a message to channels on another node. The message is sent once in a
+     * single "forward" frame together with the list of target channel IDs, over the
+     * persistent link to the node. Forward frames are binary frames in SMILE format.
+     *
+     * @param websocketNodeAddress the websocket node address of the form
+     *                             "/10.0.0.1:9400"
+     * @param channelIds           the channel IDs on the other node for delivering the
+     *                             message
+     * @param builder              the builder for the message
+     */
+    @Override
+    public void forward(String websocketNodeAddress, Collection<Integer> channelIds, XContentBuilder builder) {
         try {
-            // build "forward" text frame
+            // build "forward" binary frame
             XContentBuilder forwardBuilder = jsonBuilder();
             forwardBuilder.startObject()
-                    .field("channel", channelId)
+                    .field("channels", channelIds)
                     .rawField("message", builder.bytes())
                     .endObject();
-            final TextWebSocketFrame frame = new NettyInteractiveResponse("forward", forwardBuilder).response();
-            // use a websocket client pool
-            WebSocketClient client = nodeChannels.get(websocketNodeAddress);
-            if (client == null) {
-                final URI uri = new URI("ws:/" + websocketNodeAddress + "/websocket");
-                client = clientFactory.newClient(uri, new WebSocketActionListener() {
-                    @Override
-                    public void onConnect(WebSocketClient client) {
-                        nodeChannels.put(websocketNodeAddress, client);
-                        client.send(frame);
-                    }
-
-                    @Override
-                    public void onDisconnect(WebSocketClient client) {
-                        logger.warn("node disconnected: {}", uri);
-                        nodeChannels.remove(websocketNodeAddress);
-                    }
-
-                    @Override
-                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
-                        logger.info("unexpected response {}", frame);
-                    }
-
-                    @Override
-                    public void onError(Throwable t) {
-                        logger.error(t.getMessage(), t);
-                        nodeChannels.remove(websocketNodeAddress);
-                    }
-                });
-                client.connect();
-            } else {
-                client.send(frame);
-            }
+            WebSocketFrame frame = new NettyInteractiveResponse("forward", forwardBuilder, XContentType.SMILE).response();
+            nodeLink(websocketNodeAddress).send(frame);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
         }
     }
 
+    /**
+     * Forward a message of a topic to subscribers on another node. The frame carries the
+     * topic and the subscriber IDs besides the channel IDs, so the other node can advance
+     * the cursors of the subscribers when the message is written.
+     *
+     * @param websocketNodeAddress the websocket node address of the form
+     *                             "/10.0.0.1:9400"
+     * @param topic                the topic of the message
+     * @param channelIds           the channel IDs on the other node
+     * @param subscriberIds        the subscriber IDs, parallel to the channel IDs
+     * @param builder              the builder for the message
+     */
+    @Override
+    public void forward(String websocketNodeAddress, String topic, List<Integer> channelIds,
+                        List<String> subscriberIds, XContentBuilder builder) {
+        try {
+            XContentBuilder forwardBuilder = jsonBuilder();
+            forwardBuilder.startObject()
+                    .field("topic", topic)
+                    .field("channels", channelIds)
+                    .field("subscribers", subscriberIds)
+                    .rawField("message", builder.bytes())
+                    .endObject();
+            WebSocketFrame frame = new NettyInteractiveResponse("forward", forwardBuilder, XContentType.SMILE).response();
+            nodeLink(websocketNodeAddress).send(frame);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Send a request to another node over the persistent link to the node, as a binary
+     * frame in SMILE format, e.g. the announcement of a subscription.
+     *
+     * @param websocketNodeAddress the websocket node address of the form
+     *                             "/10.0.0.1:9400"
+     * @param type                 the request type
+     * @param builder              the builder for the request data
+     */
+    @Override
+    public void send(String websocketNodeAddress, String type, XContentBuilder builder) {
+        try {
+            WebSocketFrame frame = new NettyInteractiveResponse(type, builder, XContentType.SMILE).response();
+            nodeLink(websocketNodeAddress).send(frame);
+        } catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Get the link to a node. A missing link is created under a lock for the node
+     * address, so concurrent forwards to the same node never open more than one link.
+     *
+     * @param websocketNodeAddress the websocket node address
+     * @return the node link
+     * @throws Exception if the link can not be created
+     */
+    private NodeLink nodeLink(String websocketNodeAddress) throws Exception {
+        NodeLink link = nodeLinks.get(websocketNodeAddress);
+        if (link != null) {
+            return link;
+        }
+        nodeLinkLock.acquire(websocketNodeAddress);
+        try {
+            link = nodeLinks.get(websocketNodeAddress);
+            if (link == null) {
+                NettyWebSocketClientFactory factory = clientFactory;
+                if (factory == null) {
+                    throw new ElasticsearchIllegalStateException("websocket transport is stopped");
+                }
+                link = new NodeLink(logger, websocketNodeAddress, nodeLinks, outboundQueueSize);
+                nodeLinks.put(websocketNodeAddress, link);
+                link.connect(factory);
+            }
+            return link;
+        } finally {
+            nodeLinkLock.release(websocketNodeAddress);
+        }
+    }
+
     void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         if (e.getCause() instanceof ReadTimeoutException) {
             if (logger.isTraceEnabled()) {
@@ -0,0 +1,131 @@
+package org.xbib.elasticsearch.http.netty;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
+import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+
+import java.net.URI;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persistent websocket link to another node for forwarding messages.
+ *
+ * Frames sent while the link is still connecting are queued and written as soon as
+ * the connection is established. The queue holds at most the outbound queue size of the
+ * transport, frames sent while it is full are dropped. When the link disconnects or fails, it removes itself
+ * from the link table, so the next forward to the node creates a new link. The client of
+ * the link is pooled, so it is disconnected when it is idle or does not answer pings.
+ */
+class NodeLink implements WebSocketActionListener<WebSocketClient, WebSocketFrame> {
+
+    private final ESLogger logger;
+
+    private final String nodeAddress;
+
+    private final URI uri;
+
+    private final ConcurrentMap<String, NodeLink> links;
+
+    private final int queueSize;
+
+    private final Queue<WebSocketFrame> pending = ConcurrentCollections.newQueue();
+
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    private final AtomicInteger dropped = new AtomicInteger();
+
+    private volatile WebSocketClient client;
+
+    NodeLink(ESLogger logger, String nodeAddress, ConcurrentMap<String, NodeLink> links, int queueSize)
+            throws Exception {
+        this.logger = logger;
+        this.nodeAddress = nodeAddress;
+        this.uri = new URI("ws:/" + nodeAddress + "/websocket");
+        this.links = links;
+        this.queueSize = queueSize;
+    }
+
+    void connect(NettyWebSocketClientFactory clientFactory) {
+        clientFactory.pooledClient(uri, this);
+    }
+
+    /**
+     * Send a frame to the node, or queue it if the link is not connected yet. The frame is
+     * dropped if the queue is full.
+     *
+     * @param frame the frame
+     */
+    void send(WebSocketFrame frame) {
+        WebSocketClient c = client;
+        if (c != null) {
+            c.send(frame);
+            return;
+        }
+        if (pendingCount.incrementAndGet() > queueSize) {
+            pendingCount.decrementAndGet();
+            if (dropped.getAndIncrement() == 0) {
+                logger.warn("node link {} is not connected and its queue of {} frames is full, dropping frames",
+                        uri, queueSize);
+            }
+            return;
+        }
+        pending.offer(frame);
+        // the link may have connected while the frame was queued
+        c = client;
+        if (c != null) {
+            drain(c);
+        }
+    }
+
+    private void drain(WebSocketClient c) {
+        WebSocketFrame frame;
+        while ((frame = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            c.send(frame);
+        }
+    }
+
+    @Override
+    public void onConnect(WebSocketClient client) {
+        logger.debug("node link connected: {}", uri);
+        this.client = client;
+        drain(client);
+        int n = dropped.getAndSet(0);
+        if (n > 0) {
+            logger.warn("node link {} dropped {} frames while connecting", uri, n);
+        }
+    }
+
+    @Override
+    public void onDisconnect(WebSocketClient client) {
+        logger.warn("node disconnected: {}", uri);
+        close();
+    }
+
+    @Override
+    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+        logger.debug("unexpected response {}", frame);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        logger.error("node link {} failed, {} pending frames dropped", t, uri, pendingCount.get());
+        close();
+    }
+
+    void close() {
+        links.remove(nodeAddress, this);
+        WebSocketClient c = client;
+        client = null;
+        pending.clear();
+        pendingCount.set(0);
+        if (c != null && c.channel() != null && c.channel().isOpen()) {
+            c.disconnect();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.xbib.elasticsearch.http.netty.client;
+
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.collect.Lists.newArrayList;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * A websocket client which batches bulk requests.
+ *
+ * Bulk requests sent through this client, see {@link NettyWebSocketBulkRequest}, are not
+ * written one frame each. They are collected and written in one multi-document
+ * <code>bulk</code> frame when the batch reaches the maximum number of actions or the
+ * maximum size in bytes, or when the linger time has passed since the first request of
+ * the batch. JSON document sources are copied into the frame without being parsed, other
+ * formats are converted to JSON.
+ *
+ * Other frames and requests flush the batch before they are sent, so the order of all frames
+ * sent through the client is kept. If the wrapped client is a reconnecting client, the batches
+ * are kept in its resend buffer until they are acknowledged.
+ */
+public class NettyBatchingWebSocketClient implements NettyWebSocketClient {
+
+    private final ESLogger logger;
+
+    private final WebSocketClient client;
+
+    private final NettyWebSocketClientFactory factory;
+
+    private final int maxActions;
+
+    private final long maxBytes;
+
+    private final TimeValue linger;
+
+    private final CounterMetric batchesMetric = new CounterMetric();
+
+    private final Object lock = new Object();
+
+    // guarded by the lock
+    private List<Tuple<String, BytesReference>> requests = newArrayList();
+
+    // guarded by the lock
+    private long bytes;
+
+    // guarded by the lock
+    private Timeout lingerTimeout;
+
+    NettyBatchingWebSocketClient(ESLogger logger, NettyWebSocketClientFactory factory, WebSocketClient client,
+                                 int maxActions, ByteSizeValue maxBytes, TimeValue linger) {
+        this.logger = logger;
+        this.factory = factory;
+        this.client = client;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes.bytes();
+        this.linger = linger;
+    }
+
+    @Override
+    public Channel channel() {
+        return client.channel();
+    }
+
+    @Override
+    public ChannelFuture connect() {
+        return client.connect();
+    }
+
+    /**
+     * Send the batch and disconnect.
+     *
+     * @return the disconnect future
+     */
+    @Override
+    public ChannelFuture disconnect() {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("sending the last batch failed", e);
+        }
+        return client.disconnect();
+    }
+
+    @Override
+    public ChannelFuture send(WebSocketFrame frame) {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("sending the batch failed", e);
+        }
+        return client.send(frame);
+    }
+
+    @Override
+    public ListenableActionFuture<Map<String, Object>> request(String id, WebSocketFrame frame, TimeValue timeout) {
+        try {
+            flush();
+        } catch (IOException e) {
+            logger.error("sending the batch failed", e);
+        }
+        return client.request(id, frame, timeout);
+    }
+
+    /**
+     * Add a bulk request to the batch.
+     *
+     * @param type the bulk request type, e.g. <code>index</code>
+     * @param data the data of the request
+     * @throws IOException if a full batch can not be sent, or the resend buffer of the
+     *                     wrapped reconnecting client is full, the request is not added then
+     */
+    public void add(String type, XContentBuilder data) throws IOException {
+        BytesReference source = data != null ? data.bytes() : new BytesArray("{}");
+        // the frame is JSON, other formats are converted
+        if (XContentFactory.xContentType(source) != XContentType.JSON) {
+            source = new BytesArray(XContentHelper.convertToJson(source, false));
+        }
+        synchronized (lock) {
+            if (client instanceof NettyReconnectingWebSocketClient) {
+                // the batch can not grow beyond what the resend buffer takes
+                ((NettyReconnectingWebSocketClient) client).ensureCapacity(requests.size() + 1);
+            }
+            requests.add(new Tuple<String, BytesReference>(type, source));
+            bytes += source.length();
+            if (requests.size() >= maxActions || bytes >= maxBytes) {
+                flush();
+            } else if (lingerTimeout == null) {
+                lingerTimeout = factory.timer().newTimeout(new Linger(), linger.millis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Send the batch now.
+     *
+     * @throws IOException if the batch can not be sent, it is kept then
+     */
+    public void flush() throws IOException {
+        synchronized (lock) {
+            if (lingerTimeout != null) {
+                lingerTimeout.cancel();
+                lingerTimeout = null;
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+            if (client instanceof NettyReconnectingWebSocketClient) {
+                ((NettyReconnectingWebSocketClient) client).bulk(requests);
+            } else {
+                XContentBuilder builder = jsonBuilder().startObject().startArray("requests");
+                for (Tuple<String, BytesReference> request : requests) {
+                    builder.startObject().field("type", request.v1()).rawField("data", request.v2()).endObject();
+                }
+                builder.endArray().endObject();
+                client.send(new NettyInteractiveResponse("bulk", builder).response());
+            }
+            requests = newArrayList();
+            bytes = 0L;
+            batchesMetric.inc();
+        }
+    }
+
+    /**
+     * @return the number of batches sent
+     */
+    public long batches() {
+        return batchesMetric.count();
+    }
+
+    private class Linger implements TimerTask {
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            synchronized (lock) {
+                if (lingerTimeout != timeout) {
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.error("sending the batch failed", e);
+            }
+        }
+    }
+}
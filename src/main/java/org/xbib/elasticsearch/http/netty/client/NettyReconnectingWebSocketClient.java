@@ -0,0 +1,600 @@
+package org.xbib.elasticsearch.http.netty.client;
+
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+import org.xbib.elasticsearch.action.websocket.pubsub.TopicTrie;
+import org.xbib.elasticsearch.common.bytes.ChannelBufferBytesReference;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveRequest;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
+import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.elasticsearch.common.collect.Maps.newLinkedHashMap;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+/**
+ * A websocket client which survives node restarts.
+ *
+ * The client connects to one of a list of node URIs, trying them in turn. When a connection
+ * fails or is lost, the next URI is tried after an exponential backoff, starting at the initial
+ * backoff and doubling up to the maximum backoff. After connecting, the client asks the node for
+ * the websocket URIs of the other nodes of the cluster and adds them to its list.
+ *
+ * Subscriptions made with {@link #subscribe(String, String, Map)} are remembered and made again
+ * on every new connection, with the last sequence number seen by the client for each topic and
+ * node the messages were published on, so the node delivers the messages the client has missed.
+ * Messages may be delivered more than once, their sequence numbers tell duplicates apart.
+ *
+ * Bulk requests sent with {@link #bulk(String, XContentBuilder)} or in multi-document frames
+ * with {@link #bulk(List)} get a client sequence number and are kept in a bounded resend buffer
+ * until the node acknowledges them. On a new connection, the unacknowledged requests are sent
+ * again in their order before any new ones. A frame is sent again as a whole if some of its
+ * requests are not acknowledged. The sequence number is part of the request envelope, the
+ * document is copied into the frame without being parsed.
+ *
+ * The listener receives the events of all connections with this client, so it can send
+ * through it.
+ */
+public class NettyReconnectingWebSocketClient implements NettyWebSocketClient {
+
+    private final ESLogger logger;
+
+    private final NettyWebSocketClientFactory factory;
+
+    private final WebSocketActionListener listener;
+
+    private final CopyOnWriteArrayList<URI> uris;
+
+    private final TimeValue initialBackoff;
+
+    private final TimeValue maxBackoff;
+
+    private final int resendBufferSize;
+
+    private final Object lock = new Object();
+
+    // guarded by the lock
+    private final Map<List<String>, Subscription> subscriptions = newLinkedHashMap();
+
+    // guarded by the lock, the bulk frames by the client sequence number of their last request
+    private final TreeMap<Long, Unacked> unacked = new TreeMap<Long, Unacked>();
+
+    // guarded by the lock
+    private int unackedActions;
+
+    // the last sequence numbers seen by topic and origin node
+    private final ConcurrentMap<String, ConcurrentMap<String, Long>> positions = ConcurrentCollections.newConcurrentMap();
+
+    // guarded by the lock
+    private long seq;
+
+    // guarded by the lock
+    private int next;
+
+    // guarded by the lock
+    private int attempts;
+
+    // the connected client, set and cleared under the lock
+    private volatile WebSocketClient client;
+
+    private volatile Connection connection;
+
+    private volatile Timeout retry;
+
+    private volatile boolean closed;
+
+    NettyReconnectingWebSocketClient(ESLogger logger, NettyWebSocketClientFactory factory, List<URI> uris,
+                                     WebSocketActionListener listener, TimeValue initialBackoff,
+                                     TimeValue maxBackoff, int resendBufferSize) {
+        if (uris.isEmpty()) {
+            throw new IllegalArgumentException("no URIs to connect to");
+        }
+        this.logger = logger;
+        this.factory = factory;
+        this.uris = new CopyOnWriteArrayList<URI>(uris);
+        this.listener = listener;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.resendBufferSize = resendBufferSize;
+    }
+
+    /**
+     * @return the channel of the current connection, or null if not connected
+     */
+    @Override
+    public Channel channel() {
+        WebSocketClient client = this.client;
+        return client != null ? client.channel() : null;
+    }
+
+    /**
+     * Connect to the first URI. If the connection fails, the client keeps trying the URIs
+     * until it is disconnected.
+     *
+     * @return the connect future of the first attempt
+     */
+    @Override
+    public ChannelFuture connect() {
+        closed = false;
+        return attempt();
+    }
+
+    /**
+     * Disconnect and stop reconnecting.
+     *
+     * @return the disconnect future, or null if not connected
+     */
+    @Override
+    public ChannelFuture disconnect() {
+        closed = true;
+        Timeout timeout = retry;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        Connection connection = this.connection;
+        return connection != null ? connection.client.disconnect() : null;
+    }
+
+    /**
+     * Send a frame over the current connection. Frames are not kept for resending.
+     *
+     * @param frame the frame
+     * @return the write future, or null if not connected
+     */
+    @Override
+    public ChannelFuture send(WebSocketFrame frame) {
+        WebSocketClient client = this.client;
+        return client != null ? client.send(frame) : null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public ListenableActionFuture<Map<String, Object>> request(String id, WebSocketFrame frame, TimeValue timeout) {
+        WebSocketClient client = this.client;
+        if (client == null) {
+            PlainListenableActionFuture<Map<String, Object>> future =
+                    new PlainListenableActionFuture<Map<String, Object>>(false, null);
+            future.onFailure(new NettyWebSocketException("not connected"));
+            return future;
+        }
+        return client.request(id, frame, timeout);
+    }
+
+    /**
+     * Subscribe to a topic. The subscription is made again on every new connection.
+     *
+     * @param subscriber the subscriber ID
+     * @param topic      the topic, may contain wildcards
+     * @param query      the query restricting the messages, or null
+     * @throws IOException if the request can not be built
+     */
+    public void subscribe(String subscriber, String topic, Map<String, Object> query) throws IOException {
+        Subscription subscription = new Subscription(subscriber, topic, query);
+        synchronized (lock) {
+            subscriptions.put(Arrays.asList(subscriber, topic), subscription);
+            if (client != null) {
+                client.send(subscription.request());
+            }
+        }
+    }
+
+    /**
+     * Remove all subscriptions of a subscriber.
+     *
+     * @param subscriber the subscriber ID
+     * @throws IOException if the request can not be built
+     */
+    public void unsubscribe(String subscriber) throws IOException {
+        Map<String, Object> data = newHashMap();
+        data.put("subscriber", subscriber);
+        synchronized (lock) {
+            for (Iterator<List<String>> it = subscriptions.keySet().iterator(); it.hasNext(); ) {
+                if (subscriber.equals(it.next().get(0))) {
+                    it.remove();
+                }
+            }
+            if (client != null) {
+                client.send(new NettyInteractiveResponse("unsubscribe", data).response());
+            }
+        }
+    }
+
+    /**
+     * Send a bulk request with the next client sequence number. The request is kept until
+     * the node acknowledges it, and sent again on a new connection.
+     *
+     * @param type the bulk request type, e.g. <code>index</code>
+     * @param data the data of the request
+     * @return the client sequence number
+     * @throws IOException if the resend buffer is full
+     */
+    public long bulk(String type, XContentBuilder data) throws IOException {
+        BytesReference source = data != null ? data.bytes() : new BytesArray("{}");
+        synchronized (lock) {
+            reserve(1);
+            long seq = ++this.seq;
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("type", type)
+                    .field("seq", seq)
+                    .rawField("data", source)
+                    .endObject();
+            return add(seq, builder, 1);
+        }
+    }
+
+    /**
+     * Send bulk requests in one multi-document frame, each with the next client sequence
+     * number. The frame is kept until the node acknowledges all of its requests, and sent
+     * again on a new connection.
+     *
+     * @param requests the bulk request types and data
+     * @return the client sequence number of the last request
+     * @throws IOException if the resend buffer is full
+     */
+    public long bulk(List<Tuple<String, BytesReference>> requests) throws IOException {
+        synchronized (lock) {
+            reserve(requests.size());
+            XContentBuilder builder = jsonBuilder().startObject()
+                    .field("type", "bulk")
+                    .startObject("data")
+                    .startArray("requests");
+            for (Tuple<String, BytesReference> request : requests) {
+                builder.startObject()
+                        .field("type", request.v1())
+                        .field("seq", ++seq)
+                        .rawField("data", request.v2())
+                        .endObject();
+            }
+            builder.endArray().endObject().endObject();
+            return add(seq, builder, requests.size());
+        }
+    }
+
+    /**
+     * Check that the resend buffer has room for more bulk requests.
+     *
+     * @param actions the number of bulk requests
+     * @throws NettyWebSocketException if the resend buffer is full
+     */
+    void ensureCapacity(int actions) throws NettyWebSocketException {
+        synchronized (lock) {
+            reserve(actions);
+        }
+    }
+
+    // called with the lock held
+    private void reserve(int actions) throws NettyWebSocketException {
+        if (unackedActions + actions > resendBufferSize) {
+            throw new NettyWebSocketException("resend buffer is full, " + unackedActions
+                    + " bulk requests are not acknowledged");
+        }
+    }
+
+    // called with the lock held
+    private long add(long seq, XContentBuilder builder, int actions) throws IOException {
+        BytesReference bytes = builder.bytes();
+        Unacked request = new Unacked(bytes.hasArray() ?
+                ChannelBuffers.wrappedBuffer(bytes.array(), bytes.arrayOffset(), bytes.length()) :
+                ChannelBuffers.wrappedBuffer(bytes.toBytes()), actions);
+        unacked.put(seq, request);
+        unackedActions += actions;
+        if (client != null) {
+            client.send(request.frame());
+        }
+        return seq;
+    }
+
+    /**
+     * @return the number of bulk requests not acknowledged yet
+     */
+    public int unacked() {
+        synchronized (lock) {
+            return unackedActions;
+        }
+    }
+
+    /**
+     * @return the last sequence number seen by topic and by the node the messages were published on
+     */
+    public Map<String, ? extends Map<String, Long>> positions() {
+        return Collections.unmodifiableMap(positions);
+    }
+
+    /**
+     * @return the URIs the client connects to, including the discovered ones
+     */
+    public List<URI> uris() {
+        return Collections.unmodifiableList(uris);
+    }
+
+    private ChannelFuture attempt() {
+        URI uri;
+        synchronized (lock) {
+            uri = uris.get(next % uris.size());
+            next = (next + 1) % uris.size();
+        }
+        logger.debug("connecting to {}", uri);
+        final Connection connection = new Connection();
+        connection.client = factory.newClient(uri, connection);
+        this.connection = connection;
+        ChannelFuture future = connection.client.connect();
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (!future.isSuccess()) {
+                    connection.lost();
+                }
+            }
+        });
+        return future;
+    }
+
+    private void schedule() {
+        long delay;
+        synchronized (lock) {
+            delay = Math.min(maxBackoff.millis(), initialBackoff.millis() << Math.min(attempts, 30));
+            attempts++;
+        }
+        try {
+            retry = factory.timer().newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    if (closed) {
+                        return;
+                    }
+                    try {
+                        attempt();
+                    } catch (Exception e) {
+                        logger.error("reconnect failed", e);
+                        schedule();
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // the client factory is shut down
+            logger.debug("not reconnecting, {}", e.getMessage());
+        }
+    }
+
+    private void discover(WebSocketClient client) throws IOException {
+        new NettyInteractiveRequest().type("nodes").execute(client).addListener(new ActionListener<Map<String, Object>>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public void onResponse(Map<String, Object> response) {
+                Object data = response.get("data");
+                Object nodes = data instanceof Map ? ((Map<String, Object>) data).get("nodes") : null;
+                if (!(nodes instanceof List)) {
+                    return;
+                }
+                for (Object node : (List<Object>) nodes) {
+                    Object uri = node instanceof Map ? ((Map<String, Object>) node).get("uri") : null;
+                    if (uri != null && uris.addIfAbsent(URI.create(uri.toString()))) {
+                        logger.debug("discovered {}", uri);
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                logger.warn("discovering nodes failed", e);
+            }
+        });
+    }
+
+    /**
+     * Remember the sequence numbers of the messages and remove the acknowledged bulk requests.
+     */
+    @SuppressWarnings("unchecked")
+    private void track(WebSocketFrame frame) {
+        BytesReference bytes = new ChannelBufferBytesReference(frame.getBinaryData());
+        if (XContentFactory.xContentType(bytes) == null) {
+            return;
+        }
+        Map<String, Object> map;
+        try {
+            map = XContentHelper.convertToMap(bytes, false).v2();
+        } catch (ElasticsearchParseException e) {
+            return;
+        }
+        if (!(map.get("data") instanceof Map)) {
+            return;
+        }
+        Map<String, Object> data = (Map<String, Object>) map.get("data");
+        if ("message".equals(map.get("type"))) {
+            Object seq = data.get("seq");
+            Object origin = data.get("origin");
+            Object message = data.get("data");
+            Object topic = message instanceof Map ? ((Map<String, Object>) message).get("topic") : null;
+            if (seq instanceof Number && origin != null && topic != null) {
+                advance(topic.toString(), origin.toString(), ((Number) seq).longValue());
+            }
+        } else if ("ack".equals(map.get("type")) && data.get("acked") instanceof Number) {
+            synchronized (lock) {
+                Map<Long, Unacked> acked = unacked.headMap(((Number) data.get("acked")).longValue(), true);
+                for (Unacked request : acked.values()) {
+                    unackedActions -= request.actions;
+                }
+                acked.clear();
+            }
+        }
+    }
+
+    private void advance(String topic, String origin, long seq) {
+        ConcurrentMap<String, Long> origins = positions.get(topic);
+        if (origins == null) {
+            ConcurrentMap<String, Long> newOrigins = ConcurrentCollections.newConcurrentMap();
+            origins = positions.putIfAbsent(topic, newOrigins);
+            if (origins == null) {
+                origins = newOrigins;
+            }
+        }
+        while (true) {
+            Long position = origins.get(origin);
+            if (position == null) {
+                if (origins.putIfAbsent(origin, seq) == null) {
+                    return;
+                }
+            } else if (position >= seq || origins.replace(origin, position, seq)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * A bulk frame which is not acknowledged yet, with the number of its requests.
+     */
+    private static class Unacked {
+
+        private final ChannelBuffer request;
+
+        private final int actions;
+
+        Unacked(ChannelBuffer request, int actions) {
+            this.request = request;
+            this.actions = actions;
+        }
+
+        WebSocketFrame frame() {
+            return new TextWebSocketFrame(request.duplicate());
+        }
+    }
+
+    /**
+     * A subscription, with the positions of its topics at the time of the request.
+     */
+    private class Subscription {
+
+        private final String subscriber;
+
+        private final String topic;
+
+        private final Map<String, Object> query;
+
+        Subscription(String subscriber, String topic, Map<String, Object> query) {
+            this.subscriber = subscriber;
+            this.topic = topic;
+            this.query = query;
+        }
+
+        WebSocketFrame request() throws IOException {
+            Map<String, Object> data = newHashMap();
+            data.put("subscriber", subscriber);
+            data.put("topic", topic);
+            if (query != null) {
+                data.put("query", query);
+            }
+            Map<String, Object> seen = newHashMap();
+            for (Map.Entry<String, ConcurrentMap<String, Long>> entry : positions.entrySet()) {
+                if (TopicTrie.matches(topic, entry.getKey())) {
+                    seen.put(entry.getKey(), newHashMap(entry.getValue()));
+                }
+            }
+            if (!seen.isEmpty()) {
+                data.put("positions", seen);
+            }
+            return new NettyInteractiveResponse("subscribe", data).response();
+        }
+    }
+
+    /**
+     * A connection attempt. It is lost once, when it fails or gets disconnected.
+     */
+    private class Connection implements WebSocketActionListener<WebSocketClient, WebSocketFrame> {
+
+        private final AtomicBoolean lost = new AtomicBoolean();
+
+        private volatile WebSocketClient client;
+
+        @Override
+        public void onConnect(WebSocketClient client) throws IOException {
+            synchronized (lock) {
+                if (closed) {
+                    client.disconnect();
+                    return;
+                }
+                attempts = 0;
+                NettyReconnectingWebSocketClient.this.client = client;
+                for (Subscription subscription : subscriptions.values()) {
+                    client.send(subscription.request());
+                }
+                if (!unacked.isEmpty()) {
+                    logger.debug("resending {} bulk requests", unackedActions);
+                }
+                for (Unacked request : unacked.values()) {
+                    client.send(request.frame());
+                }
+            }
+            discover(client);
+            listener.onConnect(NettyReconnectingWebSocketClient.this);
+        }
+
+        @Override
+        public void onDisconnect(WebSocketClient client) throws IOException {
+            lost();
+        }
+
+        @Override
+        public void onMessage(WebSocketClient client, WebSocketFrame frame) throws IOException {
+            track(frame);
+            listener.onMessage(NettyReconnectingWebSocketClient.this, frame);
+        }
+
+        @Override
+        public void onError(Throwable t) throws IOException {
+            listener.onError(t);
+        }
+
+        void lost() throws IOException {
+            if (!lost.compareAndSet(false, true)) {
+                return;
+            }
+            boolean connected;
+            synchronized (lock) {
+                connected = NettyReconnectingWebSocketClient.this.client == client;
+                if (connected) {
+                    NettyReconnectingWebSocketClient.this.client = null;
+                }
+            }
+            if (!closed) {
+                schedule();
+            }
+            if (connected) {
+                listener.onDisconnect(NettyReconnectingWebSocketClient.this);
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.xbib.elasticsearch.http.netty.client;
 
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.xbib.elasticsearch.websocket.client.WebSocketClient;
 import org.xbib.elasticsearch.websocket.client.WebSocketClientBulkRequest;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveRequest;
@@ -9,7 +10,9 @@ import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
 import java.io.IOException;
 
 /**
- * Netty bulk request convenience class.
+ * Netty bulk request convenience class. Requests sent with a batching client are
+ * collected into multi-document frames, requests sent with a reconnecting client
+ * are kept until they are acknowledged.
  */
 public class NettyWebSocketBulkRequest
         extends NettyInteractiveRequest
@@ -27,7 +30,15 @@ public class NettyWebSocketBulkRequest
 
     @Override
     public void send(WebSocketClient client) throws IOException {
-        client.send(new NettyInteractiveResponse(super.type, super.builder).response());
+        if (client instanceof NettyBatchingWebSocketClient) {
+            ((NettyBatchingWebSocketClient) client).add(super.type, super.builder);
+            return;
+        }
+        if (client instanceof NettyReconnectingWebSocketClient) {
+            ((NettyReconnectingWebSocketClient) client).bulk(super.type, super.builder);
+            return;
+        }
+        client.send(new NettyInteractiveResponse(super.type, super.id, super.builder, XContentType.JSON).response());
     }
 
 }
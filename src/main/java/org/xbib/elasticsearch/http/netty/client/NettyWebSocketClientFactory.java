@@ -1,12 +1,29 @@
 package org.xbib.elasticsearch.http.netty.client;
 
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelPipeline;
 import org.jboss.netty.channel.ChannelPipelineFactory;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioWorkerPool;
 import org.jboss.netty.handler.codec.http.HttpRequestEncoder;
 import org.jboss.netty.handler.codec.http.HttpResponseDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketVersion;
+import org.jboss.netty.util.HashedWheelTimer;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
 import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
 import org.xbib.elasticsearch.websocket.client.WebSocketClient;
 import org.xbib.elasticsearch.websocket.client.WebSocketClientBulkRequest;
@@ -15,18 +32,104 @@ import org.xbib.elasticsearch.websocket.client.WebSocketClientRequest;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveRequest;
 
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.util.concurrent.EsExecutors.daemonThreadFactory;
 
 /**
  * A factory for creating Websocket clients. The entry point for creating and
  * connecting a client. Can and should be used to create multiple instances.
  * Extended for Websocket client request methods.
+ *
+ * Clients speak RFC 6455 (version 13). The maximum frame size limits the payload of a
+ * frame and of a fragmented message received by a client, it defaults to the maximum
+ * content length of the server.
+ *
+ * All clients of a factory share one boss thread, a fixed number of worker threads and a
+ * timer, so connecting and disconnecting clients does not create threads. Pooled clients
+ * are kept by URI and shared by their listeners. The timer checks their health
+ * periodically: an idle client is disconnected, otherwise a ping is sent, and a client
+ * which did not answer the ping of the previous check is disconnected. The timer also
+ * fails requests of clients which got no response within the request timeout.
+ *
+ * Reconnecting clients connect to one of a list of node URIs and reconnect with an
+ * exponential backoff, see {@link NettyReconnectingWebSocketClient}. Batching clients collect
+ * bulk requests into multi-document frames, see {@link NettyBatchingWebSocketClient}.
  */
 public class NettyWebSocketClientFactory implements WebSocketClientFactory {
 
-    private NioClientSocketChannelFactory socketChannelFactory = new NioClientSocketChannelFactory(
-            Executors.newCachedThreadPool(),
-            Executors.newCachedThreadPool());
+    private final ESLogger logger;
+
+    private final WebSocketClientHandshakerFactory handshakerFactory = new WebSocketClientHandshakerFactory();
+
+    private final int maxFrameSize;
+
+    private final TimeValue connectTimeout;
+
+    private final TimeValue requestTimeout;
+
+    private final TimeValue idleTimeout;
+
+    private final TimeValue healthCheckInterval;
+
+    private final TimeValue initialBackoff;
+
+    private final TimeValue maxBackoff;
+
+    private final int resendBufferSize;
+
+    private final int batchActions;
+
+    private final ByteSizeValue batchSize;
+
+    private final TimeValue batchLinger;
+
+    private final HashedWheelTimer timer;
+
+    private final NioClientSocketChannelFactory socketChannelFactory;
+
+    private final ConcurrentMap<URI, Pooled> pool = ConcurrentCollections.newConcurrentMap();
+
+    private volatile boolean closed;
+
+    private volatile Timeout healthCheck;
+
+    public NettyWebSocketClientFactory() {
+        this(ImmutableSettings.EMPTY);
+    }
+
+    public NettyWebSocketClientFactory(int maxFrameSize) {
+        this(ImmutableSettings.settingsBuilder().put("websocket.client.max_frame_size", maxFrameSize).build());
+    }
+
+    public NettyWebSocketClientFactory(Settings settings) {
+        this.logger = Loggers.getLogger(getClass(), settings);
+        ByteSizeValue maxFrameSize = settings.getAsBytesSize("websocket.client.max_frame_size",
+                settings.getAsBytesSize("websocket.max_content_length", new ByteSizeValue(100, ByteSizeUnit.MB)));
+        this.maxFrameSize = (int) Math.min(maxFrameSize.bytes(), Integer.MAX_VALUE);
+        int workerCount = settings.getAsInt("websocket.client.worker_count", Runtime.getRuntime().availableProcessors());
+        this.connectTimeout = settings.getAsTime("websocket.client.connect_timeout", TimeValue.timeValueSeconds(30));
+        this.requestTimeout = settings.getAsTime("websocket.client.request_timeout", TimeValue.timeValueSeconds(30));
+        this.idleTimeout = settings.getAsTime("websocket.client.idle_timeout", TimeValue.timeValueMinutes(5));
+        this.healthCheckInterval = settings.getAsTime("websocket.client.health_check_interval", TimeValue.timeValueSeconds(30));
+        this.initialBackoff = settings.getAsTime("websocket.client.reconnect.initial_backoff", TimeValue.timeValueMillis(100));
+        this.maxBackoff = settings.getAsTime("websocket.client.reconnect.max_backoff", TimeValue.timeValueSeconds(30));
+        this.resendBufferSize = settings.getAsInt("websocket.client.resend_buffer_size", 10000);
+        this.batchActions = settings.getAsInt("websocket.client.batch.actions", 1000);
+        this.batchSize = settings.getAsBytesSize("websocket.client.batch.size", new ByteSizeValue(1, ByteSizeUnit.MB));
+        this.batchLinger = settings.getAsTime("websocket.client.batch.linger", TimeValue.timeValueMillis(5));
+        this.timer = new HashedWheelTimer(daemonThreadFactory(settings, "websocket_client_timer"));
+        this.socketChannelFactory = new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(daemonThreadFactory(settings, "websocket_client_boss")), 1,
+                new NioWorkerPool(Executors.newCachedThreadPool(daemonThreadFactory(settings, "websocket_client_worker")),
+                        workerCount),
+                timer);
+        this.healthCheck = timer.newTimeout(new HealthCheck(), healthCheckInterval.millis(), TimeUnit.MILLISECONDS);
+    }
 
     /**
      * Create a new WebSocket client
@@ -38,14 +141,48 @@ public class NettyWebSocketClientFactory implements WebSocketClientFactory {
      */
     @Override
     public WebSocketClient newClient(final URI url, final WebSocketActionListener listener) {
+        return newHandler(url, listener);
+    }
+
+    /**
+     * Create a new reconnecting WebSocket client.
+     *
+     * @param urls     URLs of the nodes to connect to, more are discovered after connecting
+     * @param listener Callback interface to receive events
+     * @return A reconnecting WebSocket client. Call {@link NettyWebSocketClient#connect()} to
+     * connect.
+     */
+    public NettyReconnectingWebSocketClient newReconnectingClient(List<URI> urls, WebSocketActionListener listener) {
+        return new NettyReconnectingWebSocketClient(logger, this, urls, listener, initialBackoff, maxBackoff,
+                resendBufferSize);
+    }
+
+    /**
+     * Wrap a WebSocket client so bulk requests sent through it are batched into
+     * multi-document frames.
+     *
+     * @param client the client
+     * @return A batching WebSocket client.
+     */
+    public NettyBatchingWebSocketClient batchingClient(WebSocketClient client) {
+        return new NettyBatchingWebSocketClient(logger, this, client, batchActions, batchSize, batchLinger);
+    }
+
+    private NettyWebSocketClientHandler newHandler(final URI url, final WebSocketActionListener listener) {
         ClientBootstrap bootstrap = new ClientBootstrap(socketChannelFactory);
+        bootstrap.setOption("connectTimeoutMillis", connectTimeout.millis());
+        bootstrap.setOption("tcpNoDelay", true);
+        bootstrap.setOption("keepAlive", true);
 
         String protocol = url.getScheme();
         if (!protocol.equals("ws") && !protocol.equals("wss")) {
             throw new IllegalArgumentException("unsupported protocol: " + protocol);
         }
 
-        final NettyWebSocketClientHandler clientHandler = new NettyWebSocketClientHandler(bootstrap, url, listener);
+        WebSocketClientHandshaker handshaker = handshakerFactory.newHandshaker(url, WebSocketVersion.V13, null, false,
+                null, maxFrameSize);
+        final NettyWebSocketClientHandler clientHandler = new NettyWebSocketClientHandler(bootstrap, url, listener,
+                handshaker, maxFrameSize, timer, requestTimeout);
 
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
@@ -61,9 +198,66 @@ public class NettyWebSocketClientFactory implements WebSocketClientFactory {
         return clientHandler;
     }
 
+    /**
+     * Get the pooled client for a URI. If there is no connected or connecting client for the
+     * URI, a new client is created and connected. The listener receives the events of the
+     * client from now on, together with the other listeners of the client. If the client is
+     * already connected, the listener is notified at once.
+     *
+     * @param url      URL to connect to.
+     * @param listener Callback interface to receive events
+     * @return the pooled client
+     */
+    public WebSocketClient pooledClient(URI url, WebSocketActionListener listener) {
+        if (closed) {
+            throw new IllegalStateException("client factory is shut down");
+        }
+        while (true) {
+            Pooled pooled = pool.get(url);
+            if (pooled == null) {
+                Pooled newPooled = new Pooled(url);
+                pooled = pool.putIfAbsent(url, newPooled);
+                if (pooled == null) {
+                    newPooled.add(listener);
+                    newPooled.client.connect();
+                    return newPooled.client;
+                }
+            }
+            if (pooled.add(listener)) {
+                return pooled.client;
+            }
+            // the pooled client got disconnected
+            pool.remove(url, pooled);
+        }
+    }
+
+    /**
+     * @return the number of pooled clients
+     */
+    public int pooledClients() {
+        return pool.size();
+    }
+
+    HashedWheelTimer timer() {
+        return timer;
+    }
+
     @Override
     public void shutdown() {
+        closed = true;
+        Timeout timeout = healthCheck;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        for (Pooled pooled : pool.values()) {
+            Channel channel = pooled.client.channel();
+            if (channel != null) {
+                channel.close().awaitUninterruptibly();
+            }
+        }
+        pool.clear();
         socketChannelFactory.releaseExternalResources();
+        timer.stop();
     }
 
     @Override
@@ -81,8 +275,145 @@ public class NettyWebSocketClientFactory implements WebSocketClientFactory {
         return new NettyWebSocketBulkRequest("delete");
     }
 
+    @Override
+    public WebSocketClientBulkRequest createRequest() {
+        return new NettyWebSocketBulkRequest("create");
+    }
+
+    @Override
+    public WebSocketClientBulkRequest updateRequest() {
+        return new NettyWebSocketBulkRequest("update");
+    }
+
     @Override
     public WebSocketClientRequest flushRequest() {
         return new NettyInteractiveRequest().type("flush");
     }
-}
\ No newline at end of file
+
+    private class HealthCheck implements TimerTask {
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            if (closed) {
+                return;
+            }
+            try {
+                long now = System.currentTimeMillis();
+                for (Pooled pooled : pool.values()) {
+                    NettyWebSocketClientHandler client = pooled.client;
+                    Channel channel = client.channel();
+                    if (channel == null || !client.isHandshakeComplete()) {
+                        // still connecting, the connect timeout applies
+                        continue;
+                    }
+                    if (!channel.isOpen()) {
+                        pool.remove(pooled.url, pooled);
+                    } else if (now - client.lastActivity() > idleTimeout.millis()) {
+                        logger.debug("closing idle client {}", pooled.url);
+                        channel.close();
+                    } else if (!client.ping()) {
+                        logger.warn("closing client {}, ping not answered within {}", pooled.url, healthCheckInterval);
+                        channel.close();
+                    }
+                }
+            } catch (Throwable t) {
+                logger.error("health check failed", t);
+            } finally {
+                if (!closed) {
+                    healthCheck = timer.newTimeout(this, healthCheckInterval.millis(), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    /**
+     * A pooled client, passing its events to all of its listeners.
+     */
+    private class Pooled implements WebSocketActionListener<WebSocketClient, WebSocketFrame> {
+
+        private final URI url;
+
+        private final NettyWebSocketClientHandler client;
+
+        private final List<WebSocketActionListener> listeners = new CopyOnWriteArrayList<WebSocketActionListener>();
+
+        private boolean connected;
+
+        private boolean disconnected;
+
+        Pooled(URI url) {
+            this.url = url;
+            this.client = newHandler(url, this);
+        }
+
+        boolean add(WebSocketActionListener listener) {
+            boolean notify;
+            synchronized (this) {
+                if (disconnected) {
+                    return false;
+                }
+                listeners.add(listener);
+                notify = connected;
+            }
+            if (notify) {
+                try {
+                    listener.onConnect(client);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void onConnect(WebSocketClient client) {
+            synchronized (this) {
+                connected = true;
+            }
+            for (WebSocketActionListener listener : listeners) {
+                try {
+                    listener.onConnect(client);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void onDisconnect(WebSocketClient client) {
+            synchronized (this) {
+                disconnected = true;
+            }
+            pool.remove(url, this);
+            for (WebSocketActionListener listener : listeners) {
+                try {
+                    listener.onDisconnect(client);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+            for (WebSocketActionListener listener : listeners) {
+                try {
+                    listener.onMessage(client, frame);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            for (WebSocketActionListener listener : listeners) {
+                try {
+                    listener.onError(t);
+                } catch (Exception e) {
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
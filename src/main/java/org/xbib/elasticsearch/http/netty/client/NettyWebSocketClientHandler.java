@@ -1,34 +1,57 @@
 package org.xbib.elasticsearch.http.netty.client;
 
+import org.elasticsearch.ElasticsearchParseException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.action.support.PlainListenableActionFuture;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.ChannelStateEvent;
 import org.jboss.netty.channel.ExceptionEvent;
 import org.jboss.netty.channel.MessageEvent;
 import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
-import org.jboss.netty.handler.codec.http.DefaultHttpRequest;
-import org.jboss.netty.handler.codec.http.HttpHeaders.Names;
-import org.jboss.netty.handler.codec.http.HttpHeaders.Values;
-import org.jboss.netty.handler.codec.http.HttpMethod;
-import org.jboss.netty.handler.codec.http.HttpRequest;
 import org.jboss.netty.handler.codec.http.HttpResponse;
-import org.jboss.netty.handler.codec.http.HttpResponseStatus;
-import org.jboss.netty.handler.codec.http.HttpVersion;
-import org.jboss.netty.handler.codec.http.websocketx.WebSocket00FrameDecoder;
-import org.jboss.netty.handler.codec.http.websocketx.WebSocket00FrameEncoder;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrameAggregator;
 import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+import org.xbib.elasticsearch.common.bytes.ChannelBufferBytesReference;
 import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
 import org.xbib.elasticsearch.websocket.client.WebSocketClient;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles socket communication for a connected WebSocket client. Not intended
  * for end-users. Please use {@link NettyWebSocketClient} for controlling your client.
+ *
+ * The client speaks RFC 6455 (version 13). Frames are masked, text, binary and continuation
+ * frames can be sent. Fragmented messages from the server are aggregated up to the maximum
+ * frame size before they are passed to the listener. Pings are answered by the client, pongs
+ * answer the health check pings of a client factory and are not passed to the listener.
+ *
+ * Requests sent with {@link #request(String, WebSocketFrame, TimeValue)} wait in a table by
+ * their ID, many of them can be in flight. A response is matched by its ID and completes the
+ * future of the request, the timer fails the futures of requests without a response.
  */
 public class NettyWebSocketClientHandler extends SimpleChannelUpstreamHandler
         implements WebSocketClient {
@@ -36,13 +59,28 @@ public class NettyWebSocketClientHandler extends SimpleChannelUpstreamHandler
     private final ClientBootstrap bootstrap;
     private final URI url;
     private final WebSocketActionListener listener;
-    private boolean handshakeCompleted = false;
+    private final WebSocketClientHandshaker handshaker;
+    private final int maxFrameSize;
+    private final Timer timer;
+    private final TimeValue requestTimeout;
+    private final ConcurrentMap<String, PlainListenableActionFuture<Map<String, Object>>> requests =
+            ConcurrentCollections.newConcurrentMap();
     private Channel channel;
 
-    public NettyWebSocketClientHandler(ClientBootstrap bootstrap, URI url, WebSocketActionListener listener) {
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private volatile boolean pingOutstanding;
+
+    public NettyWebSocketClientHandler(ClientBootstrap bootstrap, URI url, WebSocketActionListener listener,
+                                       WebSocketClientHandshaker handshaker, int maxFrameSize,
+                                       Timer timer, TimeValue requestTimeout) {
         this.bootstrap = bootstrap;
         this.url = url;
         this.listener = listener;
+        this.handshaker = handshaker;
+        this.maxFrameSize = maxFrameSize;
+        this.timer = timer;
+        this.requestTimeout = requestTimeout;
     }
 
     @Override
@@ -52,40 +90,28 @@ public class NettyWebSocketClientHandler extends SimpleChannelUpstreamHandler
 
     @Override
     public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent event) throws Exception {
-        String path = url.getPath();
-        if (url.getQuery() != null && url.getQuery().length() > 0) {
-            path = url.getPath() + "?" + url.getQuery();
-        }
-        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, path);
-        request.headers().add(Names.UPGRADE, Values.WEBSOCKET);
-        request.headers().add(Names.CONNECTION, Values.UPGRADE);
-        request.headers().add(Names.HOST, url.getHost());
-        request.headers().add(Names.ORIGIN, "http://" + url.getHost());
-        event.getChannel().write(request);
-        ctx.getPipeline().replace("encoder", "ws-encoder", new WebSocket00FrameEncoder());
         this.channel = event.getChannel();
+        lastActivity = System.currentTimeMillis();
+        handshaker.handshake(event.getChannel());
     }
 
     @Override
     public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent event) throws Exception {
+        for (String id : requests.keySet()) {
+            PlainListenableActionFuture<Map<String, Object>> future = requests.remove(id);
+            if (future != null) {
+                future.onFailure(new NettyWebSocketException("disconnected before response to request " + id));
+            }
+        }
         listener.onDisconnect(this);
-        handshakeCompleted = false;
         channel = null;
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent event) throws Exception {
-        if (!handshakeCompleted) {
-            HttpResponse response = (HttpResponse) event.getMessage();
-            final HttpResponseStatus status = new HttpResponseStatus(101, "Web Socket Protocol Handshake");
-            final boolean validStatus = response.getStatus().equals(status);
-            final boolean validUpgrade = response.headers().get(Names.UPGRADE).equals(Values.WEBSOCKET);
-            final boolean validConnection = response.headers().get(Names.CONNECTION).equals(Values.UPGRADE);
-            if (!validStatus || !validUpgrade || !validConnection) {
-                throw new NettyWebSocketException("Invalid handshake response");
-            }
-            handshakeCompleted = true;
-            ctx.getPipeline().replace("decoder", "ws-decoder", new WebSocket00FrameDecoder());
+        if (!handshaker.isHandshakeComplete()) {
+            handshaker.finishHandshake(ctx.getChannel(), (HttpResponse) event.getMessage());
+            ctx.getPipeline().addAfter("ws-decoder", "ws-aggregator", new WebSocketFrameAggregator(maxFrameSize));
             listener.onConnect(this);
             return;
         }
@@ -94,6 +120,22 @@ public class NettyWebSocketClientHandler extends SimpleChannelUpstreamHandler
             throw new NettyWebSocketException("Unexpected HttpResponse (status=" + response.getStatus() + ", content=" + response.getContent().toString(CharsetUtil.UTF_8) + ")");
         }
         WebSocketFrame frame = (WebSocketFrame) event.getMessage();
+        if (frame instanceof PingWebSocketFrame) {
+            ctx.getChannel().write(new PongWebSocketFrame(frame.getBinaryData()));
+            return;
+        }
+        if (frame instanceof PongWebSocketFrame) {
+            pingOutstanding = false;
+            return;
+        }
+        if (frame instanceof CloseWebSocketFrame) {
+            ctx.getChannel().close();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        if (!requests.isEmpty() && response(frame)) {
+            return;
+        }
         listener.onMessage(this, frame);
     }
 
@@ -122,7 +164,108 @@ public class NettyWebSocketClientHandler extends SimpleChannelUpstreamHandler
         if (channel == null) {
             return null;
         }
+        lastActivity = System.currentTimeMillis();
         return channel.write(frame);
     }
 
-}
\ No newline at end of file
+    @Override
+    public ListenableActionFuture<Map<String, Object>> request(final String id, WebSocketFrame frame,
+                                                               TimeValue timeout) {
+        final PlainListenableActionFuture<Map<String, Object>> future =
+                new PlainListenableActionFuture<Map<String, Object>>(false, null);
+        if (channel == null) {
+            future.onFailure(new NettyWebSocketException("not connected"));
+            return future;
+        }
+        if (requests.putIfAbsent(id, future) != null) {
+            future.onFailure(new NettyWebSocketException("request " + id + " is already in flight"));
+            return future;
+        }
+        final TimeValue time = timeout != null ? timeout : requestTimeout;
+        final Timeout expiry = timer.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                if (requests.remove(id, future)) {
+                    future.onFailure(new ElasticsearchTimeoutException("no response to request " + id + " within " + time));
+                }
+            }
+        }, time.millis(), TimeUnit.MILLISECONDS);
+        future.addListener(new ActionListener<Map<String, Object>>() {
+            @Override
+            public void onResponse(Map<String, Object> response) {
+                expiry.cancel();
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                expiry.cancel();
+            }
+        });
+        send(frame).addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture channelFuture) throws Exception {
+                if (!channelFuture.isSuccess() && requests.remove(id, future)) {
+                    future.onFailure(channelFuture.getCause());
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Complete the future of the request answered by a frame.
+     *
+     * @param frame the frame
+     * @return true if the frame is the response to a request in flight
+     */
+    private boolean response(WebSocketFrame frame) {
+        BytesReference bytes = new ChannelBufferBytesReference(frame.getBinaryData());
+        if (XContentFactory.xContentType(bytes) == null) {
+            return false;
+        }
+        Map<String, Object> response;
+        try {
+            response = XContentHelper.convertToMap(bytes, false).v2();
+        } catch (ElasticsearchParseException e) {
+            return false;
+        }
+        Object id = response.get("id");
+        PlainListenableActionFuture<Map<String, Object>> future = id != null ? requests.remove(id.toString()) : null;
+        if (future == null) {
+            return false;
+        }
+        if (Boolean.TRUE.equals(response.get("success"))) {
+            future.onResponse(response);
+        } else {
+            future.onFailure(new NettyWebSocketException("request " + id + " failed: " + response.get("error")));
+        }
+        return true;
+    }
+
+    /**
+     * @return the time of the last frame sent or received by the client, pings and pongs
+     * not counted
+     */
+    long lastActivity() {
+        return lastActivity;
+    }
+
+    boolean isHandshakeComplete() {
+        return handshaker.isHandshakeComplete();
+    }
+
+    /**
+     * Send a ping for checking the health of the connection.
+     *
+     * @return false if the ping of the previous check is still not answered
+     */
+    boolean ping() {
+        if (pingOutstanding) {
+            return false;
+        }
+        pingOutstanding = true;
+        channel.write(new PingWebSocketFrame());
+        return true;
+    }
+
+}
@@ -3,16 +3,23 @@ package org.xbib.elasticsearch.plugin.websocket;
 import org.elasticsearch.action.ActionModule;
 import org.elasticsearch.common.component.LifecycleComponent;
 import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.rest.RestModule;
 import org.xbib.elasticsearch.action.cluster.admin.websocket.TransportWebsocketInfoAction;
 import org.xbib.elasticsearch.action.cluster.admin.websocket.WebsocketInfoAction;
+import org.xbib.elasticsearch.action.websocket.bulk.BulkSessions;
+import org.xbib.elasticsearch.action.websocket.changes.ChangeStreams;
 import org.xbib.elasticsearch.action.websocket.pubsub.Checkpointer;
+import org.xbib.elasticsearch.action.websocket.pubsub.SubscriberRegistry;
+import org.xbib.elasticsearch.action.websocket.pubsub.TopicLogStore;
 import org.xbib.elasticsearch.http.HttpServer;
 import org.xbib.elasticsearch.http.HttpServerModule;
 import org.xbib.elasticsearch.rest.action.websocket.RestPublishAction;
 import org.xbib.elasticsearch.rest.action.websocket.RestUnsubscribeAction;
+import org.xbib.elasticsearch.websocket.InteractiveController;
 
 import java.util.Collection;
 
@@ -41,6 +48,28 @@ public class WebSocketPlugin extends AbstractPlugin {
         return "Websocket transport plugin";
     }
 
+    /**
+     * Default settings for the websocket thread pool. The pool is bounded,
+     * so publishers get rejection responses when the node is saturated.
+     *
+     * @return the additional settings
+     */
+    @Override
+    public Settings additionalSettings() {
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder();
+        String prefix = "threadpool." + InteractiveController.EXECUTOR + ".";
+        if (settings.get(prefix + "type") == null) {
+            builder.put(prefix + "type", "fixed");
+        }
+        if (settings.get(prefix + "size") == null) {
+            builder.put(prefix + "size", EsExecutors.boundedNumberOfProcessors(settings) * 2);
+        }
+        if (settings.get(prefix + "queue_size") == null) {
+            builder.put(prefix + "queue_size", 1000);
+        }
+        return builder.build();
+    }
+
     @Override
     public Collection<Class<? extends Module>> modules() {
         Collection<Class<? extends Module>> modules = newArrayList();
@@ -57,6 +86,10 @@ public class WebSocketPlugin extends AbstractPlugin {
         if (settings.getAsBoolean("websocket.enabled", true)) {
             services.add(HttpServer.class);
             services.add(Checkpointer.class);
+            services.add(TopicLogStore.class);
+            services.add(SubscriberRegistry.class);
+            services.add(BulkSessions.class);
+            services.add(ChangeStreams.class);
         }
         return services;
     }
@@ -2,35 +2,34 @@ package org.xbib.elasticsearch.rest.action.websocket;
 
 import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.index.IndexResponse;
-import org.elasticsearch.action.search.SearchResponse;
-import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.elasticsearch.common.xcontent.XContentParser;
-import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.rest.BaseRestHandler;
 import org.elasticsearch.rest.RestChannel;
 import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
-import org.elasticsearch.search.SearchHit;
-import org.elasticsearch.search.SearchHitField;
-import org.jboss.netty.channel.Channel;
 import org.xbib.elasticsearch.action.websocket.pubsub.Checkpointer;
+import org.xbib.elasticsearch.action.websocket.pubsub.ReplayBuffers;
 import org.xbib.elasticsearch.action.websocket.pubsub.PubSubIndexName;
-import org.xbib.elasticsearch.http.HttpServerTransport;
+import org.xbib.elasticsearch.action.websocket.pubsub.Subscriber;
+import org.xbib.elasticsearch.action.websocket.pubsub.SubscriberRegistry;
+import org.xbib.elasticsearch.action.websocket.pubsub.TopicLogStore;
+import org.xbib.elasticsearch.common.netty.OutboundBufferHandler;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveResponse;
 import org.xbib.elasticsearch.rest.XContentRestResponse;
 import org.xbib.elasticsearch.rest.XContentThrowableRestResponse;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
-import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 import static org.elasticsearch.rest.RestStatus.BAD_REQUEST;
 import static org.elasticsearch.rest.RestStatus.OK;
 import static org.xbib.elasticsearch.rest.RestXContentBuilder.restContentBuilder;
@@ -44,88 +43,127 @@ public class RestPublishAction extends BaseRestHandler {
 
     private final String pubSubIndexName;
 
-    private final HttpServerTransport transport;
-
     private final Checkpointer service;
 
+    private final SubscriberRegistry registry;
+
+    private final ReplayBuffers buffers;
+
+    private final TopicLogStore store;
+
     @Inject
     public RestPublishAction(Settings settings, Client client,
                              RestController restController,
-                             HttpServerTransport transport,
-                             Checkpointer service) {
+                             Checkpointer service,
+                             SubscriberRegistry registry,
+                             ReplayBuffers buffers,
+                             TopicLogStore store) {
         super(settings, restController, client);
         this.pubSubIndexName = PubSubIndexName.Conf.indexName(settings);
-        this.transport = transport;
         this.service = service;
+        this.registry = registry;
+        this.buffers = buffers;
+        this.store = store;
         restController.registerHandler(RestRequest.Method.GET, "/_publish", this);
         restController.registerHandler(RestRequest.Method.POST, "/_publish", this);
     }
 
     @Override
     public void handleRequest(final RestRequest request, final RestChannel channel, Client client) {
-        String topic = request.hasParam("topic") ? request.param("topic") : "*";
+        final String topic = request.hasParam("topic") ? request.param("topic") : "*";
         try {
-            final XContentBuilder messageBuilder = createPublishMessage(request);
-            client.prepareIndex()
-                    .setIndex(pubSubIndexName)
-                    .setType(TYPE)
-                    .setSource(messageBuilder)
-                    .setRefresh(request.paramAsBoolean("refresh", true))
-                    .execute(new ActionListener<IndexResponse>() {
-                        @Override
-                        public void onResponse(IndexResponse response) {
-                            try {
-                                XContentBuilder builder = restContentBuilder(request);
-                                builder.startObject().field("ok", true).field("id", response.getId()).endObject();
-                                channel.sendResponse(new XContentRestResponse(request, OK, builder));
-                            } catch (Exception e) {
-                                onFailure(e);
-                            }
+            final long seq = service.next(topic);
+            final XContentBuilder messageBuilder = createPublishMessage(request, seq);
+            if (store.isEnabled()) {
+                store.append(topic, seq, messageBuilder.bytes(), new ActionListener<Long>() {
+                    @Override
+                    public void onResponse(Long committed) {
+                        try {
+                            XContentBuilder builder = restContentBuilder(request);
+                            builder.startObject().field("ok", true).field("id", Long.toString(seq)).endObject();
+                            channel.sendResponse(new XContentRestResponse(request, OK, builder));
+                        } catch (Exception e) {
+                            onFailure(e);
                         }
+                    }
 
-                        @Override
-                        public void onFailure(Throwable e) {
-                            try {
-                                logger.error("Error processing publish request", e);
-                                channel.sendResponse(new XContentThrowableRestResponse(request, e));
-                            } catch (IOException e1) {
-                                logger.error("Failed to send failure response", e1);
-                            }
+                    @Override
+                    public void onFailure(Throwable e) {
+                        try {
+                            logger.error("Error processing publish request", e);
+                            channel.sendResponse(new XContentThrowableRestResponse(request, e));
+                        } catch (IOException e1) {
+                            logger.error("Failed to send failure response", e1);
                         }
-                    });
-            // push phase - scroll over subscribers for this topic currently connected
-            QueryBuilder queryBuilder = termQuery("topic", topic);
-            SearchResponse searchResponse = client.prepareSearch()
-                    .setIndices(pubSubIndexName)
-                    .setTypes("subscribe")
-                    .setSearchType(SearchType.SCAN)
-                    .setScroll(new TimeValue(60000))
-                    .setQuery(queryBuilder)
-                    .addField("subscriber.channel")
-                    .setSize(100)
-                    .execute().actionGet();
-            messageBuilder.close();
-            service.checkpoint(topic);
-            // push phase - write the message to the subscribers. We have 60 seconds per 100 subscribers.
-            while (true) {
-                searchResponse = client.prepareSearchScroll(searchResponse.getScrollId())
-                        .setScroll(new TimeValue(60000))
-                        .execute().actionGet();
-                for (SearchHit hit : searchResponse.getHits()) {
-                    service.checkpoint(hit.getId());
-                    SearchHitField channelField = hit.field("subscriber.channel");
-                    Map<String, Object> channelfieldMap = channelField.getValue();
-                    Integer id = (Integer) channelfieldMap.get("id");
-                    Channel ch = transport.channel(id);
-                    if (ch != null) {
-                        ch.write(new NettyInteractiveResponse("message", messageBuilder).response());
                     }
+                });
+                if (store.isIndexMessages()) {
+                    client.prepareIndex()
+                            .setIndex(pubSubIndexName)
+                            .setType(TYPE)
+                            .setId(Long.toString(seq))
+                            .setSource(messageBuilder)
+                            .execute(new ActionListener<IndexResponse>() {
+                                @Override
+                                public void onResponse(IndexResponse response) {
+                                }
+
+                                @Override
+                                public void onFailure(Throwable e) {
+                                    logger.error("Error indexing message {} of topic {}", e, seq, topic);
+                                }
+                            });
                 }
-                if (searchResponse.getHits().hits().length == 0) {
-                    break;
+            } else {
+                client.prepareIndex()
+                        .setIndex(pubSubIndexName)
+                        .setType(TYPE)
+                        .setSource(messageBuilder)
+                        .setRefresh(request.paramAsBoolean("refresh", false))
+                        .execute(new ActionListener<IndexResponse>() {
+                            @Override
+                            public void onResponse(IndexResponse response) {
+                                try {
+                                    XContentBuilder builder = restContentBuilder(request);
+                                    builder.startObject().field("ok", true).field("id", response.getId()).endObject();
+                                    channel.sendResponse(new XContentRestResponse(request, OK, builder));
+                                } catch (Exception e) {
+                                    onFailure(e);
+                                }
+                            }
+
+                            @Override
+                            public void onFailure(Throwable e) {
+                                try {
+                                    logger.error("Error processing publish request", e);
+                                    channel.sendResponse(new XContentThrowableRestResponse(request, e));
+                                } catch (IOException e1) {
+                                    logger.error("Failed to send failure response", e1);
+                                }
+                            }
+                        });
+            }
+            buffers.append(topic, seq, messageBuilder.bytes());
+            // push phase - look up the subscribers for this topic in the registry
+            Collection<Subscriber> subscribers = registry.subscribers(topic);
+            if (subscribers.isEmpty()) {
+                return;
+            }
+            // encode the message once per format, all local subscribers share the frame content
+            NettyInteractiveResponse.Shared message = new NettyInteractiveResponse.Shared("message", messageBuilder);
+            // remote subscribers are forwarded to their nodes, the cursors advance there
+            List<Subscriber> remote = new ArrayList<Subscriber>();
+            for (Subscriber subscriber : subscribers) {
+                if (subscriber.isLocal()) {
+                    subscriber.deliver(message.response(subscriber.getChannel()), topic, service.origin(), seq,
+                            service.delivery(topic, subscriber.getId(), seq));
+                } else {
+                    remote.add(subscriber);
                 }
             }
-            service.flushCheckpoint();
+            if (!remote.isEmpty()) {
+                registry.forward(topic, remote, messageBuilder);
+            }
         } catch (Exception e) {
             try {
                 XContentBuilder builder = restContentBuilder(request);
@@ -136,7 +174,7 @@ public class RestPublishAction extends BaseRestHandler {
         }
     }
 
-    private XContentBuilder createPublishMessage(RestRequest request) {
+    private XContentBuilder createPublishMessage(RestRequest request, long seq) {
         try {
             Map<String, Object> map = null;
             String message = request.content().toUtf8();
@@ -151,6 +189,8 @@ public class RestPublishAction extends BaseRestHandler {
             }
             return jsonBuilder().startObject()
                     .field("timestamp", request.param("timestamp", Long.toString(System.currentTimeMillis())))
+                    .field("seq", seq)
+                    .field("origin", service.origin())
                     .field("message", map)
                     .endObject();
         } catch (IOException e) {
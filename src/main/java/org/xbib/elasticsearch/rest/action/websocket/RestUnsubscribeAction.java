@@ -12,7 +12,9 @@ import org.elasticsearch.rest.RestController;
 import org.elasticsearch.rest.RestRequest;
 import org.xbib.elasticsearch.rest.XContentRestResponse;
 import org.xbib.elasticsearch.rest.XContentThrowableRestResponse;
+import org.xbib.elasticsearch.action.websocket.pubsub.Checkpointer;
 import org.xbib.elasticsearch.action.websocket.pubsub.PubSubIndexName;
+import org.xbib.elasticsearch.action.websocket.pubsub.SubscriberRegistry;
 
 import java.io.IOException;
 
@@ -27,11 +29,19 @@ public class RestUnsubscribeAction extends BaseRestHandler {
 
     private final String pubSubIndexName;
 
+    private final SubscriberRegistry registry;
+
+    private final Checkpointer checkpointer;
+
     @Inject
     public RestUnsubscribeAction(Settings settings, Client client,
-                                 RestController restController) {
+                                 RestController restController,
+                                 SubscriberRegistry registry,
+                                 Checkpointer checkpointer) {
         super(settings, restController, client);
         this.pubSubIndexName = PubSubIndexName.Conf.indexName(settings);
+        this.registry = registry;
+        this.checkpointer = checkpointer;
         restController.registerHandler(RestRequest.Method.GET, "/_unsubscribe", this);
         restController.registerHandler(RestRequest.Method.POST, "/_unsubscribe", this);
     }
@@ -47,6 +57,8 @@ public class RestUnsubscribeAction extends BaseRestHandler {
             }
             return;
         }
+        registry.unsubscribe(subscriberId);
+        checkpointer.remove(subscriberId);
         try {
             client.prepareDelete(pubSubIndexName, "subscribe", subscriberId)
                     .execute(new ActionListener<DeleteResponse>() {
@@ -3,6 +3,7 @@ package org.xbib.elasticsearch.websocket;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.component.AbstractComponent;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
 
 /**
  * The BaseInteractiveHandler is the base class for interactive actions.
@@ -16,4 +17,15 @@ public abstract class BaseInteractiveHandler extends AbstractComponent
         super(settings);
         this.client = client;
     }
+
+    /**
+     * By default, interactive actions are cheap and asynchronous and
+     * run on the I/O thread.
+     *
+     * @return the executor name
+     */
+    @Override
+    public String executor() {
+        return ThreadPool.Names.SAME;
+    }
 }
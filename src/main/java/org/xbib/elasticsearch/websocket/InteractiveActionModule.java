@@ -2,12 +2,28 @@ package org.xbib.elasticsearch.websocket;
 
 import org.elasticsearch.common.collect.Lists;
 import org.elasticsearch.common.inject.AbstractModule;
+import org.xbib.elasticsearch.action.websocket.bulk.BulkBatchAction;
+import org.xbib.elasticsearch.action.websocket.bulk.BulkCreateAction;
 import org.xbib.elasticsearch.action.websocket.bulk.BulkDeleteAction;
 import org.xbib.elasticsearch.action.websocket.bulk.BulkFlushAction;
 import org.xbib.elasticsearch.action.websocket.bulk.BulkIndexAction;
+import org.xbib.elasticsearch.action.websocket.bulk.BulkSessions;
+import org.xbib.elasticsearch.action.websocket.bulk.BulkStreamAction;
+import org.xbib.elasticsearch.action.websocket.bulk.BulkUpdateAction;
+import org.xbib.elasticsearch.action.websocket.changes.ChangeStreams;
+import org.xbib.elasticsearch.action.websocket.changes.RemoteChangeAction;
+import org.xbib.elasticsearch.action.websocket.changes.RemoteWatchAction;
+import org.xbib.elasticsearch.action.websocket.changes.UnwatchAction;
+import org.xbib.elasticsearch.action.websocket.changes.WatchAction;
+import org.xbib.elasticsearch.action.websocket.info.NodesAction;
+import org.xbib.elasticsearch.action.websocket.pubsub.Checkpointer;
 import org.xbib.elasticsearch.action.websocket.pubsub.ForwardAction;
 import org.xbib.elasticsearch.action.websocket.pubsub.PublishAction;
+import org.xbib.elasticsearch.action.websocket.pubsub.ReplayBuffers;
 import org.xbib.elasticsearch.action.websocket.pubsub.SubscribeAction;
+import org.xbib.elasticsearch.action.websocket.pubsub.SubscriberRegistry;
+import org.xbib.elasticsearch.action.websocket.pubsub.SubscriptionAction;
+import org.xbib.elasticsearch.action.websocket.pubsub.TopicLogStore;
 import org.xbib.elasticsearch.action.websocket.pubsub.UnsubscribeAction;
 
 import java.util.List;
@@ -28,12 +44,28 @@ public class InteractiveActionModule extends AbstractModule {
         for (Class<? extends BaseInteractiveHandler> websocketAction : websocketActions) {
             bind(websocketAction).asEagerSingleton();
         }
+        bind(Checkpointer.class).asEagerSingleton();
+        bind(ReplayBuffers.class).asEagerSingleton();
+        bind(TopicLogStore.class).asEagerSingleton();
+        bind(SubscriberRegistry.class).asEagerSingleton();
+        bind(BulkSessions.class).asEagerSingleton();
         bind(PublishAction.class).asEagerSingleton();
         bind(SubscribeAction.class).asEagerSingleton();
         bind(UnsubscribeAction.class).asEagerSingleton();
         bind(ForwardAction.class).asEagerSingleton();
+        bind(SubscriptionAction.class).asEagerSingleton();
         bind(BulkDeleteAction.class).asEagerSingleton();
         bind(BulkIndexAction.class).asEagerSingleton();
         bind(BulkFlushAction.class).asEagerSingleton();
+        bind(BulkCreateAction.class).asEagerSingleton();
+        bind(BulkUpdateAction.class).asEagerSingleton();
+        bind(BulkStreamAction.class).asEagerSingleton();
+        bind(BulkBatchAction.class).asEagerSingleton();
+        bind(ChangeStreams.class).asEagerSingleton();
+        bind(WatchAction.class).asEagerSingleton();
+        bind(UnwatchAction.class).asEagerSingleton();
+        bind(RemoteWatchAction.class).asEagerSingleton();
+        bind(RemoteChangeAction.class).asEagerSingleton();
+        bind(NodesAction.class).asEagerSingleton();
     }
 }
@@ -5,23 +5,38 @@ import org.elasticsearch.common.component.AbstractLifecycleComponent;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.ContinuationWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.PongWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import org.xbib.elasticsearch.common.bytes.ChannelBufferBytesReference;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveChannel;
 import org.xbib.elasticsearch.http.netty.NettyInteractiveRequest;
+import org.xbib.elasticsearch.http.netty.NettyInteractiveRequestParser;
 
-import java.nio.charset.Charset;
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 /**
  * The InteractiveController controls the presence of websocket connections
@@ -29,13 +44,25 @@ import java.util.Map;
  */
 public class InteractiveController extends AbstractLifecycleComponent<InteractiveController> {
 
+    /**
+     * The name of the thread pool for interactive handlers that must not run on I/O threads.
+     */
+    public static final String EXECUTOR = "websocket";
+
     private final ESLogger logger = ESLoggerFactory.getLogger(InteractiveController.class.getSimpleName());
 
+    private final ThreadPool threadPool;
+
     private final HashMap<String, InteractiveHandler> handlers = new HashMap();
 
+    private final List<PresenceListener> presenceListeners = new CopyOnWriteArrayList<PresenceListener>();
+
+    private final ConcurrentMap<Integer, InteractiveStreamHandler> streams = ConcurrentCollections.newConcurrentMap();
+
     @Inject
-    public InteractiveController(Settings settings) {
+    public InteractiveController(Settings settings, ThreadPool threadPool) {
         super(settings);
+        this.threadPool = threadPool;
     }
 
     @Override
@@ -54,18 +81,58 @@ public class InteractiveController extends AbstractLifecycleComponent<Interactiv
         handlers.put(type, handler);
     }
 
+    /**
+     * @param type the request type
+     * @return the handler of the request type, or null
+     */
+    public InteractiveHandler handler(String type) {
+        return handlers.get(type);
+    }
+
+    public void addPresenceListener(PresenceListener listener) {
+        presenceListeners.add(listener);
+    }
+
     public void presence(Presence presence, String topic, Channel channel) {
         if (logger.isDebugEnabled()) {
             logger.debug("presence: " + presence.name()
                     + " topic =" + topic
                     + " channel =" + channel);
         }
+        for (PresenceListener listener : presenceListeners) {
+            listener.presence(presence, topic, channel);
+        }
+    }
+
+    /**
+     * Pass the content frames of a channel to a stream handler until the stream ends.
+     *
+     * @param channel the channel
+     * @param handler the stream handler
+     */
+    public void stream(final Channel channel, final InteractiveStreamHandler handler) {
+        InteractiveStreamHandler previous = streams.put(channel.getId(), handler);
+        if (previous != null) {
+            previous.end(new NettyInteractiveChannel(channel));
+        }
+        channel.getCloseFuture().addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                if (streams.remove(channel.getId(), handler)) {
+                    handler.end(new NettyInteractiveChannel(channel));
+                }
+            }
+        });
     }
 
     public void frame(WebSocketServerHandshaker handshaker, WebSocketFrame frame, ChannelHandlerContext context) {
         Channel channel = context.getChannel();
-        if (frame instanceof TextWebSocketFrame) {
-            text((TextWebSocketFrame) frame, channel);
+        InteractiveStreamHandler stream = streams.get(channel.getId());
+        if (stream != null && (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame
+                || frame instanceof ContinuationWebSocketFrame)) {
+            stream(frame, stream, channel);
+        } else if (frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame) {
+            request(frame, channel);
         } else if (handshaker != null && frame instanceof CloseWebSocketFrame) {
             handshaker.close(context.getChannel(), (CloseWebSocketFrame) frame);
             presence(Presence.DISCONNECTED, null, channel);
@@ -74,45 +141,106 @@ public class InteractiveController extends AbstractLifecycleComponent<Interactiv
         }
     }
 
-    private void text(TextWebSocketFrame frame, Channel channel) {
-        Map<String, Object> map = parse(frame.getBinaryData().toString(Charset.forName("UTF-8")));
-        if (map == null) {
+    /**
+     * Pass a frame to a stream handler. An empty text or binary frame ends the stream.
+     */
+    private void stream(WebSocketFrame frame, InteractiveStreamHandler stream, Channel channel) {
+        InteractiveChannel interactiveChannel = new NettyInteractiveChannel(channel);
+        if (!frame.getBinaryData().readable()) {
+            if (!(frame instanceof ContinuationWebSocketFrame) && streams.remove(channel.getId(), stream)) {
+                stream.end(interactiveChannel);
+            }
+            return;
+        }
+        stream.data(new ChannelBufferBytesReference(frame.getBinaryData()), interactiveChannel);
+    }
+
+    /**
+     * Parse a request directly from the frame buffer. Text frames carry JSON, binary frames
+     * carry SMILE or CBOR, the format is detected from the content. Responses on the channel
+     * use the format of the request.
+     */
+    private void request(WebSocketFrame frame, Channel channel) {
+        BytesReference bytes = new ChannelBufferBytesReference(frame.getBinaryData());
+        XContentType contentType = frame instanceof TextWebSocketFrame ?
+                XContentType.JSON : XContentFactory.xContentType(bytes);
+        if (contentType == null) {
             error("invalid request", channel);
             return;
         }
-        String type = (String) map.get("type");
+        NettyInteractiveRequest request = parse(contentType, bytes);
+        if (request == null) {
+            error("invalid request", channel);
+            return;
+        }
+        NettyInteractiveChannel.contentType(channel, contentType);
+        String type = request.type();
         if (type == null) {
-            error("no type found", channel);
+            error("no type found", request.id(), channel);
             return;
         }
         if (!handlers.containsKey(type)) {
-            error("missing handler for type: " + type, channel);
+            error("missing handler for type: " + type, request.id(), channel);
             return;
         }
-        Map<String, Object> data = (Map<String, Object>) map.get("data");
-        handlers.get(type).handleRequest(new NettyInteractiveRequest(data),
-                new NettyInteractiveChannel(channel));
+        dispatch(type, handlers.get(type), request, new NettyInteractiveChannel(channel, contentType, request.id()));
     }
 
-    private Map<String, Object> parse(String source) {
-        Map<String, Object> map = null;
-        XContentParser parser = null;
+    /**
+     * Run a handler on the executor it declares. The I/O thread only decodes and dispatches,
+     * if the executor is saturated, the request is rejected with an error response.
+     */
+    private void dispatch(final String type, final InteractiveHandler handler,
+                          final InteractiveRequest request, final InteractiveChannel channel) {
+        String executor = handler.executor();
+        if (ThreadPool.Names.SAME.equals(executor)) {
+            handler.handleRequest(request, channel);
+            return;
+        }
         try {
-            parser = XContentFactory.xContent(source).createParser(source);
-            map = parser.map();
-        } catch (Exception e) {
-            logger.error("unable to parse: {}", source);
-        } finally {
-            if (parser != null) {
-                parser.close();
+            threadPool.executor(executor).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        handler.handleRequest(request, channel);
+                    } catch (Throwable t) {
+                        logger.error("error while handling request of type {}", t, type);
+                    }
+                }
+            });
+        } catch (EsRejectedExecutionException e) {
+            logger.warn("rejected request of type {}, executor {} is saturated", type, executor);
+            try {
+                channel.sendResponse(type, e);
+            } catch (IOException e1) {
+                logger.error("error while sending rejection response", e1);
             }
         }
-        return map;
+    }
+
+    private NettyInteractiveRequest parse(XContentType contentType, BytesReference bytes) {
+        try {
+            return NettyInteractiveRequestParser.parse(contentType, bytes);
+        } catch (Exception e) {
+            logger.error("unable to parse {} request of {} bytes", contentType, bytes.length());
+            return null;
+        }
     }
 
     private void error(String message, Channel channel) {
-        String text = "{\"ok\":false,\"error\":\"" + message + "\"}";
-        TextWebSocketFrame frame = new TextWebSocketFrame(text);
-        channel.write(frame);
+        error(message, null, channel);
+    }
+
+    private void error(String message, String id, Channel channel) {
+        try {
+            XContentBuilder builder = jsonBuilder().startObject().field("ok", false);
+            if (id != null) {
+                builder.field("id", id);
+            }
+            builder.field("error", message).endObject();
+            channel.write(new TextWebSocketFrame(builder.string()));
+        } catch (IOException e) {
+            logger.error("error while sending error response", e);
+        }
     }
 }
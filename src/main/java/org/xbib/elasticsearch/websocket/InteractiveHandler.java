@@ -7,4 +7,13 @@ public interface InteractiveHandler {
 
     void handleRequest(InteractiveRequest request, InteractiveChannel channel);
 
+    /**
+     * The name of the thread pool executor this handler runs on. Handlers that
+     * block or perform expensive work must not run on the network I/O threads.
+     *
+     * @return the executor name, {@link org.elasticsearch.threadpool.ThreadPool.Names#SAME}
+     * for running on the I/O thread that decoded the frame
+     */
+    String executor();
+
 }
@@ -1,7 +1,9 @@
 package org.xbib.elasticsearch.websocket;
 
+import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.unit.TimeValue;
 
+import java.io.IOException;
 import java.util.Map;
 
 /**
@@ -15,6 +17,16 @@ public interface InteractiveRequest {
 
     Object param(String key);
 
+    /**
+     * Get an object parameter as bytes, without building a map. This is the way
+     * to pass document sources to index requests.
+     *
+     * @param key the parameter key
+     * @return the bytes or null if the parameter is not an object
+     * @throws IOException if the bytes can not be built
+     */
+    BytesReference paramAsBytes(String key) throws IOException;
+
     String paramAsString(String key);
 
     String paramAsString(String key, String defaultValue);
@@ -1,6 +1,6 @@
 package org.xbib.elasticsearch.websocket;
 
-import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 
 import java.io.IOException;
 
@@ -11,5 +11,5 @@ public interface InteractiveResponse {
 
     String type();
 
-    TextWebSocketFrame response() throws IOException;
+    WebSocketFrame response() throws IOException;
 }
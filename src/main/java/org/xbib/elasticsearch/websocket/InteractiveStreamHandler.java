@@ -0,0 +1,29 @@
+package org.xbib.elasticsearch.websocket;
+
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * A handler for raw content frames. After a handler has been started on a channel with
+ * {@link InteractiveController#stream(org.jboss.netty.channel.Channel, InteractiveStreamHandler)},
+ * text, binary and continuation frames of the channel are not parsed as requests but passed
+ * to the handler, until an empty frame ends the stream.
+ *
+ * The handler is called on the I/O thread in the order the frames arrive.
+ */
+public interface InteractiveStreamHandler {
+
+    /**
+     * A chunk of the stream. Chunks are not aligned to any boundary of the content.
+     *
+     * @param chunk   the content of a frame
+     * @param channel the channel
+     */
+    void data(BytesReference chunk, InteractiveChannel channel);
+
+    /**
+     * The end of the stream, by an empty frame or when the channel is closed.
+     *
+     * @param channel the channel
+     */
+    void end(InteractiveChannel channel);
+}
@@ -0,0 +1,18 @@
+package org.xbib.elasticsearch.websocket;
+
+import org.jboss.netty.channel.Channel;
+
+/**
+ * A listener for presence changes of websocket connections
+ */
+public interface PresenceListener {
+
+    /**
+     * Called when a channel appeared or disappeared.
+     *
+     * @param presence presence
+     * @param topic topic, or null if the presence is not related to a topic
+     * @param channel channel
+     */
+    void presence(Presence presence, String topic, Channel channel);
+}
@@ -1,9 +1,13 @@
 package org.xbib.elasticsearch.websocket.client;
 
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.common.unit.TimeValue;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 
+import java.util.Map;
+
 /**
  * A WebSocket client.
  */
@@ -37,4 +41,17 @@ public interface WebSocketClient<F extends ChannelFuture, Frame extends WebSocke
      * @return Write future. Will fire when the data is sent.
      */
     F send(Frame frame);
+
+    /**
+     * Send a request to the server. The response with the ID of the request completes
+     * the future instead of being passed to the listener. Responses with success false
+     * fail the future, a future without a response fails after the timeout or when the
+     * client disconnects. Future listeners run on the I/O thread and must not block.
+     *
+     * @param id      the request ID, also in the frame
+     * @param frame   the request frame
+     * @param timeout the time to wait for the response, or null for the default
+     * @return the future of the response
+     */
+    ListenableActionFuture<Map<String, Object>> request(String id, Frame frame, TimeValue timeout);
 }
@@ -16,6 +16,10 @@ public interface WebSocketClientFactory {
 
     WebSocketClientBulkRequest deleteRequest();
 
+    WebSocketClientBulkRequest createRequest();
+
+    WebSocketClientBulkRequest updateRequest();
+
     WebSocketClientRequest flushRequest();
 
     void shutdown();
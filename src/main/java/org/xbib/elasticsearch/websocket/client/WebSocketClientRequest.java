@@ -1,14 +1,45 @@
 package org.xbib.elasticsearch.websocket.client;
 
+import org.elasticsearch.action.ListenableActionFuture;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 
 import java.io.IOException;
+import java.util.Map;
 
 public interface WebSocketClientRequest {
 
     WebSocketClientRequest type(String type);
 
+    /**
+     * Set the ID of the request. The server adds the ID to the responses to the request.
+     *
+     * @param id the request ID
+     * @return this request
+     */
+    WebSocketClientRequest id(String id);
+
     WebSocketClientRequest data(XContentBuilder builder);
 
     void send(WebSocketClient client) throws IOException;
+
+    /**
+     * Send the request and get a future for the response. A request without an ID gets a
+     * generated one.
+     *
+     * @param client the client
+     * @return the future, completed by the response with the ID of the request
+     * @throws IOException if the request can not be sent
+     */
+    ListenableActionFuture<Map<String, Object>> execute(WebSocketClient client) throws IOException;
+
+    /**
+     * Send the request and get a future for the response.
+     *
+     * @param client  the client
+     * @param timeout the time to wait for the response, or null for the default of the client
+     * @return the future, completed by the response with the ID of the request
+     * @throws IOException if the request can not be sent
+     */
+    ListenableActionFuture<Map<String, Object>> execute(WebSocketClient client, TimeValue timeout) throws IOException;
 }
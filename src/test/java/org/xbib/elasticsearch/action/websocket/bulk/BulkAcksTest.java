@@ -0,0 +1,40 @@
+package org.xbib.elasticsearch.action.websocket.bulk;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkAcksTest {
+
+    @Test
+    public void testOutOfOrder() {
+        BulkAcks acks = new BulkAcks();
+        for (long seq = 1; seq <= 4; seq++) {
+            assertTrue(acks.add(seq));
+        }
+        // the second bulk completes first, nothing before it is acknowledged yet
+        assertEquals(-1L, acks.complete(Arrays.asList(3L, 4L)));
+        assertEquals(4L, acks.complete(Arrays.asList(1L, 2L)));
+    }
+
+    @Test
+    public void testDuplicate() {
+        BulkAcks acks = new BulkAcks();
+        assertTrue(acks.add(1L));
+        assertTrue(acks.add(2L));
+        // a resent request with an outstanding sequence number is tracked once
+        assertFalse(acks.add(2L));
+        assertTrue(acks.add(3L));
+        assertEquals(1L, acks.complete(Collections.singletonList(1L)));
+        assertEquals(3L, acks.complete(Arrays.asList(2L, 3L)));
+        // the duplicate completes late
+        assertEquals(3L, acks.complete(Collections.singletonList(2L)));
+        assertTrue(acks.add(4L));
+        assertEquals(4L, acks.complete(Collections.singletonList(4L)));
+    }
+}
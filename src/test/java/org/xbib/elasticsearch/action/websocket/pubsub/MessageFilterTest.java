@@ -0,0 +1,153 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.apache.lucene.analysis.NumericTokenStream;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.memory.MemoryIndex;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.elasticsearch.ElasticsearchIllegalArgumentException;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.common.collect.Maps.newHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class MessageFilterTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    @Test
+    public void testTermAndRange() {
+        Map<String, Object> message = message("{\"topic\":\"orders\",\"item\":{\"price\":150,\"tags\":[\"new\",\"sale\"]}}");
+        assertTrue(filter("{\"match_all\":{}}").matches(message));
+        assertTrue(filter("{\"term\":{\"topic\":\"orders\"}}").matches(message));
+        assertFalse(filter("{\"term\":{\"topic\":\"invoices\"}}").matches(message));
+        assertTrue(filter("{\"term\":{\"item.tags\":\"sale\"}}").matches(message));
+        assertTrue(filter("{\"terms\":{\"item.tags\":[\"old\",\"new\"]}}").matches(message));
+        assertTrue(filter("{\"term\":{\"item.price\":{\"value\":\"150\"}}}").matches(message));
+        assertTrue(filter("{\"range\":{\"item.price\":{\"gt\":100}}}").matches(message));
+        assertTrue(filter("{\"range\":{\"item.price\":{\"gte\":150,\"lt\":150.5}}}").matches(message));
+        assertFalse(filter("{\"range\":{\"item.price\":{\"gt\":150}}}").matches(message));
+        assertFalse(filter("{\"range\":{\"item.missing\":{\"gt\":1}}}").matches(message));
+        assertTrue(filter("{\"prefix\":{\"topic\":\"ord\"}}").matches(message));
+        assertTrue(filter("{\"exists\":{\"field\":\"item.price\"}}").matches(message));
+        assertTrue(filter("{\"missing\":{\"field\":\"item.name\"}}").matches(message));
+    }
+
+    @Test
+    public void testBool() {
+        Map<String, Object> message = message("{\"category\":\"books\",\"price\":20}");
+        assertTrue(filter("{\"bool\":{\"must\":[{\"term\":{\"category\":\"books\"}},{\"range\":{\"price\":{\"lte\":20}}}]}}")
+                .matches(message));
+        assertFalse(filter("{\"bool\":{\"must\":{\"term\":{\"category\":\"books\"}},\"must_not\":{\"term\":{\"price\":20}}}}")
+                .matches(message));
+        assertTrue(filter("{\"bool\":{\"should\":[{\"term\":{\"category\":\"music\"}},{\"term\":{\"category\":\"books\"}}]}}")
+                .matches(message));
+        assertFalse(filter("{\"bool\":{\"should\":[{\"term\":{\"category\":\"music\"}},{\"term\":{\"category\":\"films\"}}]}}")
+                .matches(message));
+    }
+
+    @Test(expected = ElasticsearchIllegalArgumentException.class)
+    public void testUnsupportedQuery() {
+        filter("{\"fuzzy\":{\"category\":\"boks\"}}");
+    }
+
+    /**
+     * Compare the cost per message of matching N subscription queries with the compiled filters
+     * and with a MemoryIndex of the message, percolator style.
+     * Runs only with <code>-Dtests.benchmark=true</code>.
+     */
+    @Test
+    public void benchmarkMatch() throws Exception {
+        assumeTrue(Boolean.getBoolean("tests.benchmark"));
+        String[] categories = {"books", "music", "films", "games", "toys", "tools", "food", "garden", "sports", "cars"};
+        List<Map<String, Object>> messages = new ArrayList<Map<String, Object>>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> message = newHashMap();
+            message.put("category", categories[i % categories.length]);
+            message.put("price", (long) ((i * 37) % 1000));
+            messages.add(message);
+        }
+        for (int n : Arrays.asList(10, 100, 1000)) {
+            MessageFilter[] filters = new MessageFilter[n];
+            Query[] queries = new Query[n];
+            for (int i = 0; i < n; i++) {
+                String category = categories[i % categories.length];
+                long price = (i * 7) % 1000;
+                filters[i] = filter("{\"bool\":{\"must\":[{\"term\":{\"category\":\"" + category + "\"}}," +
+                        "{\"range\":{\"price\":{\"gt\":" + price + "}}}]}}");
+                BooleanQuery query = new BooleanQuery();
+                query.add(new TermQuery(new Term("category", category)), BooleanClause.Occur.MUST);
+                query.add(NumericRangeQuery.newLongRange("price", price, null, false, true), BooleanClause.Occur.MUST);
+                queries[i] = query;
+            }
+            // warm up
+            long filterHits = matchFilters(filters, messages);
+            long memoryIndexHits = matchMemoryIndex(queries, messages);
+            assertEquals(filterHits, memoryIndexHits);
+            int rounds = 5;
+            long t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                matchFilters(filters, messages);
+            }
+            long filterNanos = (System.nanoTime() - t0) / (rounds * messages.size());
+            t0 = System.nanoTime();
+            for (int r = 0; r < rounds; r++) {
+                matchMemoryIndex(queries, messages);
+            }
+            long memoryIndexNanos = (System.nanoTime() - t0) / (rounds * messages.size());
+            logger.info("{} queries: compiled filters {} ns/message, memory index {} ns/message, {} matches for {} messages",
+                    n, filterNanos, memoryIndexNanos, filterHits, messages.size());
+        }
+    }
+
+    private static long matchFilters(MessageFilter[] filters, List<Map<String, Object>> messages) {
+        long hits = 0L;
+        for (Map<String, Object> message : messages) {
+            for (MessageFilter filter : filters) {
+                if (filter.matches(message)) {
+                    hits++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static long matchMemoryIndex(Query[] queries, List<Map<String, Object>> messages) {
+        long hits = 0L;
+        KeywordAnalyzer analyzer = new KeywordAnalyzer();
+        for (Map<String, Object> message : messages) {
+            MemoryIndex memoryIndex = new MemoryIndex();
+            memoryIndex.addField("category", (String) message.get("category"), analyzer);
+            memoryIndex.addField("price", new NumericTokenStream().setLongValue((Long) message.get("price")));
+            for (Query query : queries) {
+                if (memoryIndex.search(query) > 0.0f) {
+                    hits++;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static MessageFilter filter(String query) {
+        return MessageFilter.compile(message(query));
+    }
+
+    private static Map<String, Object> message(String json) {
+        return XContentHelper.convertToMap(json.getBytes(), false).v2();
+    }
+}
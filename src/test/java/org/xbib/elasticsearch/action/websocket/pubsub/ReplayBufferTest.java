@@ -0,0 +1,69 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReplayBufferTest {
+
+    @Test
+    public void testMessageLimit() {
+        ReplayBuffer buffer = new ReplayBuffer(3, 1024);
+        for (long seq = 10; seq < 15; seq++) {
+            buffer.append(seq, message(seq));
+        }
+        assertEquals(3, buffer.size());
+        // 10 and 11 have been evicted, a subscriber at 11 is served from 12 on
+        assertNull(buffer.after(10));
+        List<ReplayBuffer.Entry> entries = buffer.after(11);
+        assertEquals(3, entries.size());
+        assertEquals(12L, entries.get(0).getSeq());
+        assertEquals(1, buffer.after(13).size());
+        assertEquals(0, buffer.after(14).size());
+    }
+
+    @Test
+    public void testByteLimit() {
+        BytesArray message = new BytesArray(new byte[100]);
+        ReplayBuffer buffer = new ReplayBuffer(100, 250);
+        for (long seq = 1; seq <= 5; seq++) {
+            buffer.append(seq, message);
+        }
+        assertEquals(2, buffer.size());
+        assertEquals(200L, buffer.sizeInBytes());
+        assertNull(buffer.after(2));
+        assertEquals(2, buffer.after(3).size());
+    }
+
+    @Test
+    public void testFloor() {
+        ReplayBuffer buffer = new ReplayBuffer(10, 1024);
+        assertNull(buffer.after(0));
+        buffer.append(100, message(100));
+        // messages before the first one on this node are not in the buffer
+        assertNull(buffer.after(98));
+        assertEquals(1, buffer.after(99).size());
+    }
+
+    @Test
+    public void testOutOfOrder() {
+        ReplayBuffer buffer = new ReplayBuffer(10, 1024);
+        buffer.append(1, message(1));
+        buffer.append(3, message(3));
+        buffer.append(2, message(2));
+        List<ReplayBuffer.Entry> entries = buffer.after(0);
+        assertEquals(3, entries.size());
+        assertEquals(1L, entries.get(0).getSeq());
+        assertEquals(2L, entries.get(1).getSeq());
+        assertEquals(3L, entries.get(2).getSeq());
+        assertEquals("2", entries.get(1).data().get("n").toString());
+    }
+
+    private static BytesArray message(long seq) {
+        return new BytesArray("{\"seq\":" + seq + ",\"data\":{\"n\":" + seq + "}}");
+    }
+}
@@ -0,0 +1,47 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ReplayBuffersTest {
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        ReplayBuffers buffers = new ReplayBuffers(ImmutableSettings.settingsBuilder()
+                .put("pubsub.topic_expiry", "1m")
+                .build());
+        buffers.append("a", 1L, new BytesArray("a"));
+        buffers.append("b", 2L, new BytesArray("b"));
+        assertEquals(2, buffers.size());
+        long now = System.currentTimeMillis();
+        buffers.expire(now);
+        assertEquals(2, buffers.size());
+        // a replay keeps a buffer
+        Thread.sleep(10L);
+        buffers.get("b").after(1L);
+        buffers.expire(buffers.get("a").touched() + 60000L);
+        assertNull(buffers.get("a"));
+        assertNotNull(buffers.get("b"));
+        buffers.expire(now + 120000L);
+        assertEquals(0, buffers.size());
+        // the next message of an expired topic starts a new buffer
+        buffers.append("a", 3L, new BytesArray("a"));
+        assertNull(buffers.get("a").after(1L));
+        assertEquals(1, buffers.get("a").after(2L).size());
+    }
+
+    @Test
+    public void testNoExpiry() {
+        ReplayBuffers buffers = new ReplayBuffers(ImmutableSettings.settingsBuilder()
+                .put("pubsub.topic_expiry", 0)
+                .build());
+        buffers.append("a", 1L, new BytesArray("a"));
+        buffers.expire(Long.MAX_VALUE);
+        assertNotNull(buffers.get("a"));
+    }
+}
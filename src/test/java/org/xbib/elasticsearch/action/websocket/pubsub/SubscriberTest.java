@@ -0,0 +1,44 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.handler.codec.embedder.EncoderEmbedder;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SubscriberTest {
+
+    private final static ChannelFutureListener NONE = new ChannelFutureListener() {
+        @Override
+        public void operationComplete(ChannelFuture future) {
+        }
+    };
+
+    @Test
+    public void testRelease() {
+        EncoderEmbedder<Object> embedder = new EncoderEmbedder<Object>(new SimpleChannelDownstreamHandler());
+        Subscriber subscriber = new Subscriber("s1", "t", embedder.getPipeline().getChannel());
+        subscriber.hold();
+        // 2 is still being indexed while 1 and 3 are replayed, it is only received live
+        subscriber.deliver("1", "t", "o", 1L, NONE);
+        subscriber.deliver("3", "t", "o", 3L, NONE);
+        subscriber.replay("1", "t", "o", 1L, NONE);
+        subscriber.replay("3", "t", "o", 3L, NONE);
+        subscriber.deliver("2", "t", "o", 2L, NONE);
+        subscriber.deliver("4", "t", "o", 4L, NONE);
+        // the same sequence number of another origin is not a duplicate
+        subscriber.deliver("1p", "t", "p", 1L, NONE);
+        subscriber.release();
+        subscriber.deliver("5", "t", "o", 5L, NONE);
+        assertEquals("1", embedder.poll());
+        assertEquals("3", embedder.poll());
+        assertEquals("2", embedder.poll());
+        assertEquals("4", embedder.poll());
+        assertEquals("1p", embedder.poll());
+        assertEquals("5", embedder.poll());
+        assertNull(embedder.poll());
+    }
+}
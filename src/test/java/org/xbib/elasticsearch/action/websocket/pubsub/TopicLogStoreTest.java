@@ -0,0 +1,156 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.io.FileSystemUtils;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TopicLogStoreTest {
+
+    private File dir;
+
+    private NodeEnvironment nodeEnvironment;
+
+    private ThreadPool threadPool;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("topiclog").toFile();
+        Settings settings = ImmutableSettings.settingsBuilder().put("path.data", dir.getAbsolutePath()).build();
+        nodeEnvironment = new NodeEnvironment(settings, new Environment(settings));
+        threadPool = new ThreadPool("test");
+    }
+
+    @After
+    public void tearDown() {
+        threadPool.shutdownNow();
+        nodeEnvironment.close();
+        FileSystemUtils.deleteRecursively(dir);
+    }
+
+    @Test
+    public void testAppendAndReplay() throws Exception {
+        TopicLogStore store = store(ImmutableSettings.settingsBuilder().put("pubsub.log.segment_size", "200b"));
+        append(store, "a/b*", 101, 110);
+        // messages before the first one in the log are not there
+        assertNull(store.after("a/b*", 99));
+        assertNull(store.after("unknown", 0));
+        List<ReplayBuffer.Entry> entries = store.after("a/b*", 100);
+        assertEquals(10, entries.size());
+        assertEquals(101L, entries.get(0).getSeq());
+        assertEquals("110", entries.get(9).data().get("n").toString());
+        assertEquals(5, store.after("a/b*", 105).size());
+        assertEquals(0, store.after("a/b*", 110).size());
+        assertTrue(segments("a%2Fb%2A").length > 1);
+        close(store);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        TopicLogStore store = store(ImmutableSettings.settingsBuilder());
+        append(store, "topic", 1, 5);
+        close(store);
+        // a torn record at the end of the log
+        File[] segments = segments("topic");
+        RandomAccessFile raf = new RandomAccessFile(segments[segments.length - 1], "rw");
+        raf.seek(raf.length());
+        raf.writeInt(1000);
+        raf.writeLong(6L);
+        raf.close();
+        store = store(ImmutableSettings.settingsBuilder());
+        assertEquals(5, store.after("topic", 0).size());
+        append(store, "topic", 6, 7);
+        List<ReplayBuffer.Entry> entries = store.after("topic", 4);
+        assertEquals(3, entries.size());
+        assertEquals(7L, entries.get(2).getSeq());
+        close(store);
+    }
+
+    @Test
+    public void testRetention() throws Exception {
+        TopicLogStore store = store(ImmutableSettings.settingsBuilder()
+                .put("pubsub.log.segment_size", "100b")
+                .put("pubsub.log.retention.size", "300b"));
+        append(store, "topic", 1, 20);
+        int before = segments("topic").length;
+        store.retain();
+        int after = segments("topic").length;
+        assertTrue(after < before);
+        assertTrue(after > 0);
+        // the oldest messages are gone
+        assertNull(store.after("topic", 0));
+        List<ReplayBuffer.Entry> entries = store.after("topic", 19);
+        assertEquals(1, entries.size());
+        close(store);
+    }
+
+    @Test
+    public void testRetentionOfUnopenedLog() throws Exception {
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder()
+                .put("pubsub.log.segment_size", "100b")
+                .put("pubsub.log.retention.size", "300b");
+        TopicLogStore store = store(builder);
+        append(store, "topic", 1, 20);
+        close(store);
+        int before = segments("topic").length;
+        // the log of the topic is not opened after the restart
+        store = store(builder);
+        store.retain();
+        int after = segments("topic").length;
+        assertTrue(after < before);
+        assertTrue(after > 0);
+        close(store);
+    }
+
+    private TopicLogStore store(ImmutableSettings.Builder builder) {
+        TopicLogStore store = new TopicLogStore(builder.put("pubsub.log.enabled", true).build(),
+                nodeEnvironment, threadPool);
+        store.start();
+        return store;
+    }
+
+    private void close(TopicLogStore store) {
+        store.stop();
+        store.close();
+    }
+
+    private File[] segments(String name) {
+        return new File(nodeEnvironment.nodeDataLocations()[0], "pubsub/" + name).listFiles();
+    }
+
+    private static void append(TopicLogStore store, String topic, long from, long to) throws Exception {
+        final CountDownLatch latch = new CountDownLatch((int) (to - from + 1));
+        for (long seq = from; seq <= to; seq++) {
+            store.append(topic, seq, new BytesArray("{\"seq\":" + seq + ",\"data\":{\"n\":" + seq + "}}"),
+                    new ActionListener<Long>() {
+                        @Override
+                        public void onResponse(Long seq) {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                        }
+                    });
+        }
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,156 @@
+package org.xbib.elasticsearch.action.websocket.pubsub;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class TopicTrieTest {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    @Test
+    public void testWildcards() {
+        TopicTrie trie = new TopicTrie();
+        trie.add(subscriber("exact", "orders/eu/de"));
+        trie.add(subscriber("single", "orders/eu/*"));
+        trie.add(subscriber("middle", "orders/*/de"));
+        trie.add(subscriber("multi", "orders/#"));
+        trie.add(subscriber("all", "#"));
+        trie.add(subscriber("other", "invoices/eu/de"));
+        assertEquals(ids("exact", "single", "middle", "multi", "all"), match(trie, "orders/eu/de"));
+        assertEquals(ids("single", "multi", "all"), match(trie, "orders/eu/fr"));
+        assertEquals(ids("multi", "all"), match(trie, "orders/eu"));
+        assertEquals(ids("multi", "all"), match(trie, "orders"));
+        assertEquals(ids("multi", "all"), match(trie, "orders/eu/de/berlin"));
+        assertEquals(ids("other", "all"), match(trie, "invoices/eu/de"));
+    }
+
+    @Test
+    public void testRemove() {
+        TopicTrie trie = new TopicTrie();
+        Subscriber s1 = subscriber("s1", "orders/eu/*");
+        Subscriber s2 = subscriber("s2", "orders/eu/*");
+        trie.add(s1);
+        trie.add(s2);
+        assertTrue(trie.remove(s1));
+        assertFalse(trie.remove(s1));
+        assertEquals(ids("s2"), match(trie, "orders/eu/de"));
+        assertTrue(trie.remove(s2));
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMultiLevelWildcard() {
+        new TopicTrie().add(subscriber("s", "orders/#/de"));
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(TopicTrie.matches("orders/*", "orders/eu"));
+        assertFalse(TopicTrie.matches("orders/*", "orders/eu/de"));
+        assertTrue(TopicTrie.matches("orders/#", "orders"));
+        assertTrue(TopicTrie.matches("orders/#", "orders/eu/de"));
+        assertFalse(TopicTrie.matches("orders/eu", "orders"));
+        assertTrue(TopicTrie.isWildcard("orders/#"));
+        assertFalse(TopicTrie.isWildcard("orders/eu"));
+    }
+
+    /**
+     * Compare the cost of matching a topic in a trie of 100k subscriptions
+     * with a scan over all subscriptions.
+     * Runs only with <code>-Dtests.benchmark=true</code>.
+     */
+    @Test
+    public void benchmarkMatch() {
+        assumeTrue(Boolean.getBoolean("tests.benchmark"));
+        int subscriptions = 100000;
+        TopicTrie trie = new TopicTrie();
+        List<Subscriber> all = new ArrayList<Subscriber>(subscriptions);
+        for (int i = 0; i < subscriptions; i++) {
+            String topic;
+            switch (i % 10) {
+                case 0:
+                    topic = "region" + (i % 100) + "/*/item" + (i % 1000);
+                    break;
+                case 1:
+                    topic = "region" + (i % 100) + "/#";
+                    break;
+                default:
+                    topic = "region" + (i % 100) + "/country" + (i % 50) + "/item" + (i % 1000);
+            }
+            Subscriber subscriber = subscriber("s" + i, topic);
+            trie.add(subscriber);
+            all.add(subscriber);
+        }
+        String[] topics = new String[1000];
+        for (int i = 0; i < topics.length; i++) {
+            topics[i] = "region" + (i % 100) + "/country" + (i % 50) + "/item" + i;
+        }
+        int rounds = 20;
+        // warm up
+        long trieHits = 0L;
+        for (String topic : topics) {
+            trieHits += match(trie, topic).size();
+        }
+        long t0 = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (String topic : topics) {
+                List<Subscriber> result = new ArrayList<Subscriber>();
+                trie.match(topic, result);
+            }
+        }
+        long trieNanos = (System.nanoTime() - t0) / (rounds * topics.length);
+        // the scan is slow, so only a sample of the topics is scanned and checked against the trie
+        int sample = 20;
+        long sampleHits = 0L;
+        long scanHits = 0L;
+        t0 = System.nanoTime();
+        for (int i = 0; i < sample; i++) {
+            for (Subscriber subscriber : all) {
+                if (TopicTrie.matches(subscriber.getTopic(), topics[i])) {
+                    scanHits++;
+                }
+            }
+        }
+        long scanNanos = (System.nanoTime() - t0) / sample;
+        for (int i = 0; i < sample; i++) {
+            sampleHits += match(trie, topics[i]).size();
+        }
+        assertEquals(scanHits, sampleHits);
+        logger.info("{} subscriptions: trie match {} ns/topic, scan {} ns/topic, {} matches for {} topics",
+                subscriptions, trieNanos, scanNanos, trieHits, topics.length);
+    }
+
+    private static Subscriber subscriber(String id, String topic) {
+        return new Subscriber(id, topic, "/127.0.0.1:9400", 1);
+    }
+
+    private static Set<String> match(TopicTrie trie, String topic) {
+        List<Subscriber> result = new ArrayList<Subscriber>();
+        trie.match(topic, result);
+        Set<String> ids = new HashSet<String>();
+        for (Subscriber subscriber : result) {
+            ids.add(subscriber.getId());
+        }
+        assertEquals(result.size(), ids.size());
+        return ids;
+    }
+
+    private static Set<String> ids(String... ids) {
+        Set<String> set = new HashSet<String>();
+        for (String id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+}
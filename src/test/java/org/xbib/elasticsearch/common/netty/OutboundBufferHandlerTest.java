@@ -0,0 +1,162 @@
+package org.xbib.elasticsearch.common.netty;
+
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.ExceptionEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pushes to a client which does not read, so the server channel becomes unwritable.
+ */
+public class OutboundBufferHandlerTest {
+
+    private ServerBootstrap server;
+
+    private ClientBootstrap client;
+
+    private Channel serverChannel;
+
+    private Channel clientChannel;
+
+    @After
+    public void tearDown() {
+        if (serverChannel != null) {
+            serverChannel.close().awaitUninterruptibly();
+        }
+        if (clientChannel != null) {
+            clientChannel.close().awaitUninterruptibly();
+        }
+        if (client != null) {
+            client.releaseExternalResources();
+        }
+        if (server != null) {
+            server.releaseExternalResources();
+        }
+    }
+
+    @Test
+    public void testDropNewest() throws Exception {
+        OutboundBufferHandler handler = new OutboundBufferHandler(ESLoggerFactory.getLogger("test"), 10,
+                OutboundBufferHandler.Overflow.DROP_NEWEST);
+        Channel channel = connect(handler);
+        List<ChannelFuture> futures = push(channel, 200, false);
+        assertTrue(handler.dropped() > 0);
+        assertTrue(handler.outboundBytes(channel) > 0);
+        // writes in flight may complete between two reads, the gauges agree once the socket buffers are full
+        for (int i = 0; i < 50 && handler.totalOutboundBytes() != handler.outboundBytes(channel); i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(handler.totalOutboundBytes(), handler.outboundBytes(channel));
+        assertTrue(handler.outboundBytes().containsKey(channel.getId()));
+        // the last message was dropped
+        assertFalse(futures.get(futures.size() - 1).isSuccess());
+        assertTrue(channel.isOpen());
+    }
+
+    @Test
+    public void testDropOldest() throws Exception {
+        OutboundBufferHandler handler = new OutboundBufferHandler(ESLoggerFactory.getLogger("test"), 10,
+                OutboundBufferHandler.Overflow.DROP_OLDEST);
+        Channel channel = connect(handler);
+        List<ChannelFuture> futures = push(channel, 200, false);
+        assertTrue(handler.dropped() > 0);
+        // the last message is waiting
+        assertFalse(futures.get(futures.size() - 1).isDone());
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        OutboundBufferHandler handler = new OutboundBufferHandler(ESLoggerFactory.getLogger("test"), 10,
+                OutboundBufferHandler.Overflow.COALESCE);
+        Channel channel = connect(handler);
+        push(channel, 200, true);
+        assertTrue(handler.coalesced() > 0);
+        assertEquals(0L, handler.dropped());
+    }
+
+    @Test
+    public void testDisconnect() throws Exception {
+        OutboundBufferHandler handler = new OutboundBufferHandler(ESLoggerFactory.getLogger("test"), 10,
+                OutboundBufferHandler.Overflow.DISCONNECT);
+        Channel channel = connect(handler);
+        push(channel, 200, false);
+        assertTrue(handler.disconnected() > 0);
+        assertTrue(channel.getCloseFuture().await(10, TimeUnit.SECONDS));
+    }
+
+    private static List<ChannelFuture> push(Channel channel, int count, boolean sameKey) {
+        List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        for (int i = 0; i < count; i++) {
+            futures.add(OutboundBufferHandler.write(channel, ChannelBuffers.wrappedBuffer(new byte[16 * 1024]),
+                    sameKey ? "topic" : Integer.toString(i)));
+        }
+        return futures;
+    }
+
+    private Channel connect(final OutboundBufferHandler handler) throws Exception {
+        final BlockingQueue<Channel> accepted = new LinkedBlockingQueue<Channel>();
+        server = new ServerBootstrap(new NioServerSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), 1));
+        server.setOption("child.writeBufferHighWaterMark", 32 * 1024);
+        server.setOption("child.writeBufferLowWaterMark", 16 * 1024);
+        server.setOption("child.sendBufferSize", 8 * 1024);
+        server.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(handler, new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) {
+                        accepted.add(e.getChannel());
+                    }
+
+                    @Override
+                    public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) {
+                        // writes after the disconnect fail
+                    }
+                });
+            }
+        });
+        serverChannel = server.bind(new InetSocketAddress("127.0.0.1", 0));
+        client = new ClientBootstrap(new NioClientSocketChannelFactory(
+                Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), 1));
+        client.setOption("receiveBufferSize", 8 * 1024);
+        client.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new SimpleChannelUpstreamHandler());
+            }
+        });
+        clientChannel = client.connect(serverChannel.getLocalAddress()).awaitUninterruptibly().getChannel();
+        // the client does not read, the server channel fills up
+        clientChannel.setReadable(false).awaitUninterruptibly();
+        Channel channel = accepted.poll(10, TimeUnit.SECONDS);
+        assertNotNull(channel);
+        return channel;
+    }
+}
@@ -0,0 +1,102 @@
+package org.xbib.elasticsearch.http.netty;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NettyInteractiveRequestParserTest {
+
+    @Test
+    public void testJsonSlice() throws Exception {
+        String json = "{\"type\":\"index\",\"id\":\"r1\",\"data\":{\"index\":\"test\",\"id\":1,\"refresh\":true,"
+                + "\"data\":{\"name\":\"Hello\",\"tags\":[\"a\",\"b\"]},\"channels\":[1,2]}}";
+        // the content starts in the middle of the array, like a slice of a channel buffer
+        byte[] bytes = ("xxxx" + json + "yyyy").getBytes("UTF-8");
+        BytesReference ref = new BytesArray(bytes, 4, bytes.length - 8);
+        NettyInteractiveRequest request = NettyInteractiveRequestParser.parse(XContentType.JSON, ref);
+        assertEquals("index", request.type());
+        // the request ID is not the ID parameter
+        assertEquals("r1", request.id());
+        assertEquals("test", request.paramAsString("index"));
+        assertEquals(1L, request.paramAsLong("id"));
+        assertTrue(request.hasParam("data"));
+        assertFalse(request.hasParam("type"));
+        BytesReference source = request.paramAsBytes("data");
+        assertEquals("{\"name\":\"Hello\",\"tags\":[\"a\",\"b\"]}", source.toUtf8());
+        assertEquals("[1,2]", request.paramAsBytes("channels").toUtf8());
+        assertNull(request.paramAsBytes("index"));
+        Map<String, Object> map = request.asMap();
+        assertEquals("test", map.get("index"));
+        assertEquals(2, ((List) map.get("channels")).size());
+        assertEquals("Hello", ((Map) request.param("data")).get("name"));
+    }
+
+    @Test
+    public void testSmileCopy() throws Exception {
+        XContentBuilder builder = XContentFactory.smileBuilder().startObject()
+                .field("type", "index")
+                .startObject("data")
+                .field("index", "test")
+                .startObject("data").field("name", "Hello").field("index", "test").endObject()
+                .endObject()
+                .endObject();
+        NettyInteractiveRequest request = NettyInteractiveRequestParser.parse(XContentType.SMILE, builder.bytes());
+        assertEquals("index", request.type());
+        assertEquals("test", request.paramAsString("index"));
+        BytesReference source = request.paramAsBytes("data");
+        assertEquals(XContentType.SMILE, XContentFactory.xContentType(source));
+        Map<String, Object> map = XContentHelper.convertToMap(source, false).v2();
+        assertEquals("Hello", map.get("name"));
+        assertEquals("test", map.get("index"));
+    }
+
+    @Test
+    public void testArray() throws Exception {
+        String json = "[{\"type\":\"index\",\"data\":{\"index\":\"test\",\"id\":\"1\",\"data\":{\"name\":\"a\"}}},"
+                + "{\"type\":\"delete\",\"data\":{\"index\":\"test\",\"id\":\"2\",\"seq\":7}}]";
+        byte[] bytes = ("xx" + json + "yy").getBytes("UTF-8");
+        List<NettyInteractiveRequest> requests = NettyInteractiveRequestParser.parseArray(XContentType.JSON,
+                new BytesArray(bytes, 2, bytes.length - 4));
+        assertEquals(2, requests.size());
+        assertEquals("index", requests.get(0).type());
+        assertEquals("{\"name\":\"a\"}", requests.get(0).paramAsBytes("data").toUtf8());
+        assertEquals("delete", requests.get(1).type());
+        assertEquals(7L, requests.get(1).paramAsLong("seq"));
+        assertEquals("2", requests.get(1).asMap().get("id"));
+
+        XContentBuilder builder = XContentFactory.smileBuilder().startArray()
+                .startObject().field("type", "index").startObject("data").field("index", "test")
+                .startObject("data").field("index", "test").endObject().endObject().endObject()
+                .startObject().field("type", "index").startObject("data").field("index", "test").endObject().endObject()
+                .endArray();
+        requests = NettyInteractiveRequestParser.parseArray(XContentType.SMILE, builder.bytes());
+        assertEquals(2, requests.size());
+        assertEquals("test", requests.get(1).paramAsString("index"));
+        assertEquals("test", XContentHelper.convertToMap(requests.get(0).paramAsBytes("data"), false).v2().get("index"));
+    }
+
+    @Test
+    public void testEnvelopeSeq() throws Exception {
+        String json = "[{\"type\":\"index\",\"seq\":7,\"data\":{\"index\":\"test\",\"data\":{\"seq\":\"doc\"}}},"
+                + "{\"type\":\"index\",\"seq\":8,\"data\":{\"index\":\"test\",\"seq\":9}}]";
+        List<NettyInteractiveRequest> requests = NettyInteractiveRequestParser.parseArray(XContentType.JSON,
+                new BytesArray(json));
+        // the sequence number of the envelope numbers the request, the document is left alone
+        assertEquals(7L, requests.get(0).paramAsLong("seq"));
+        assertEquals("{\"seq\":\"doc\"}", requests.get(0).paramAsBytes("data").toUtf8());
+        // a seq parameter in the data wins
+        assertEquals(9L, requests.get(1).paramAsLong("seq"));
+    }
+}
@@ -0,0 +1,93 @@
+package org.xbib.elasticsearch.websocket;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+import org.xbib.elasticsearch.websocket.client.WebSocketClientFactory;
+import org.xbib.elasticsearch.websocket.helper.AbstractNodeTestHelper;
+import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.smileBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryFrameTest extends AbstractNodeTestHelper {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Send a publish request as SMILE in a binary frame, the response must come back as SMILE.
+     */
+    @Test
+    public void smilePublish() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<WebSocketFrame> response = new AtomicReference<WebSocketFrame>();
+        WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(getAddressOfNode("1"),
+                new WebSocketActionListener() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        try {
+                            XContentBuilder builder = smileBuilder().startObject()
+                                    .field("type", "publish")
+                                    .startObject("data")
+                                    .field("topic", "binary")
+                                    .field("message", "Hello World")
+                                    .endObject()
+                                    .endObject();
+                            BytesReference bytes = builder.bytes();
+                            client.send(new BinaryWebSocketFrame(ChannelBuffers.wrappedBuffer(bytes.toBytes())));
+                        } catch (Exception e) {
+                            logger.error(e.getMessage(), e);
+                        }
+                    }
+
+                    @Override
+                    public void onDisconnect(WebSocketClient client) {
+                        logger.info("web socket disconnected");
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        logger.info("frame received: {}", frame);
+                        response.compareAndSet(null, frame);
+                        latch.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        assertTrue(response.get() instanceof BinaryWebSocketFrame);
+        byte[] bytes = new byte[response.get().getBinaryData().readableBytes()];
+        response.get().getBinaryData().readBytes(bytes);
+        assertEquals(XContentType.SMILE, XContentFactory.xContentType(bytes));
+        Map<String, Object> map = XContentHelper.convertToMap(bytes, false).v2();
+        assertEquals(Boolean.TRUE, map.get("success"));
+        assertEquals("publish", map.get("type"));
+    }
+
+}
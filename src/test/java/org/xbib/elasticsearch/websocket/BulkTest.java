@@ -1,21 +1,38 @@
 
 package org.xbib.elasticsearch.websocket;
 
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.util.CharsetUtil;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import org.junit.Test;
 import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
 import org.xbib.elasticsearch.websocket.client.WebSocketClient;
 import org.xbib.elasticsearch.websocket.client.WebSocketClientFactory;
 import org.xbib.elasticsearch.websocket.helper.AbstractNodeTestHelper;
+import org.xbib.elasticsearch.http.netty.client.NettyBatchingWebSocketClient;
 import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
 
 public class BulkTest extends AbstractNodeTestHelper {
@@ -82,4 +99,316 @@ public class BulkTest extends AbstractNodeTestHelper {
         }
 
     }
+
+    /**
+     * Send index requests with sequence numbers, the acknowledgements must reach the last one.
+     */
+    @Test
+    public void testBulkAcks() throws Exception {
+        final int n = 250;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicLong acked = new AtomicLong(-1L);
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(
+                getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        try {
+                            for (int i = 0; i < n; i++) {
+                                clientFactory.indexRequest()
+                                        .data(jsonBuilder()
+                                        .startObject()
+                                        .field("index", "test")
+                                        .field("type", "test")
+                                        .field("id", Integer.toString(i))
+                                        .field("seq", i)
+                                        .startObject("data")
+                                        .field("field1", "value" + i)
+                                        .endObject()
+                                        .endObject())
+                                        .send(client);
+                            }
+                            clientFactory.flushRequest().send(client);
+                        } catch (Exception e) {
+                            onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        if (!(frame instanceof TextWebSocketFrame)) {
+                            return;
+                        }
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        if (!"ack".equals(map.get("type"))) {
+                            return;
+                        }
+                        Map<String, Object> data = (Map<String, Object>) map.get("data");
+                        logger.info("ack received: {}", data);
+                        long seq = ((Number) data.get("acked")).longValue();
+                        if (seq > acked.get()) {
+                            acked.set(seq);
+                        }
+                        if (seq == n - 1) {
+                            latch.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(n - 1, acked.get());
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * Send create, update, upsert and versioned index requests in one bulk, only the
+     * index request with a stale version must fail.
+     */
+    @Test
+    public void testMixedOperations() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Map<String, Object>> failures = new CopyOnWriteArrayList<Map<String, Object>>();
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(
+                getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        try {
+                            int seq = 0;
+                            for (int i = 0; i < 10; i++) {
+                                clientFactory.createRequest()
+                                        .data(jsonBuilder().startObject()
+                                                .field("index", "test").field("type", "test")
+                                                .field("id", Integer.toString(i)).field("seq", seq++)
+                                                .startObject("data").field("field1", "value" + i).endObject()
+                                                .endObject())
+                                        .send(client);
+                            }
+                            for (int i = 0; i < 5; i++) {
+                                clientFactory.updateRequest()
+                                        .data(jsonBuilder().startObject()
+                                                .field("index", "test").field("type", "test")
+                                                .field("id", Integer.toString(i)).field("seq", seq++)
+                                                .startObject("doc").field("field2", "value" + i).endObject()
+                                                .endObject())
+                                        .send(client);
+                            }
+                            clientFactory.updateRequest()
+                                    .data(jsonBuilder().startObject()
+                                            .field("index", "test").field("type", "test")
+                                            .field("id", "new").field("seq", seq++)
+                                            .startObject("doc").field("field2", "updated").endObject()
+                                            .startObject("upsert").field("field1", "inserted").endObject()
+                                            .endObject())
+                                    .send(client);
+                            clientFactory.indexRequest()
+                                    .data(jsonBuilder().startObject()
+                                            .field("index", "test").field("type", "test")
+                                            .field("id", "0").field("seq", seq)
+                                            .field("version", 1)
+                                            .startObject("data").field("field1", "stale").endObject()
+                                            .endObject())
+                                    .send(client);
+                            clientFactory.flushRequest().send(client);
+                        } catch (Exception e) {
+                            onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        if (!(frame instanceof TextWebSocketFrame)) {
+                            return;
+                        }
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        logger.info("frame received: {}", map);
+                        if ("ack".equals(map.get("type"))) {
+                            // the flush interval may cut the requests into more than one bulk
+                            Map<String, Object> data = (Map<String, Object>) map.get("data");
+                            failures.addAll((List<Map<String, Object>>) data.get("failures"));
+                            if (((Number) data.get("acked")).intValue() == 16) {
+                                latch.countDown();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, failures.size());
+        assertEquals(16, ((Number) failures.get(0).get("seq")).intValue());
+        assertEquals(409, ((Number) failures.get(0).get("status")).intValue());
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * Stream bulk content in frames which are not aligned to lines, the stream
+     * response must count all actions, a document spanning frames must be indexed whole.
+     */
+    @Test
+    public void testBulkStream() throws Exception {
+        final int n = 1000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            sb.append("{\"index\":{\"_id\":\"").append(i).append("\"}}\n")
+                    .append("{\"field1\":\"value").append(i).append("\"}\n");
+        }
+        // a document spanning many frames
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            big.append('x');
+        }
+        sb.append("{\"index\":{\"_id\":\"big\"}}\n")
+                .append("{\"field1\":\"").append(big).append("\"}\n");
+        sb.append("{\"delete\":{\"_id\":\"0\"}}\n");
+        final byte[] content = sb.toString().getBytes(CharsetUtil.UTF_8);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Map<String, Object>> response = new AtomicReference<Map<String, Object>>();
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(
+                getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        try {
+                            clientFactory.newRequest().type("bulkstream")
+                                    .data(jsonBuilder().startObject()
+                                            .field("index", "test").field("type", "test")
+                                            .endObject())
+                                    .send(client);
+                            int chunk = 777;
+                            for (int i = 0; i < content.length; i += chunk) {
+                                client.send(new BinaryWebSocketFrame(ChannelBuffers.wrappedBuffer(content, i,
+                                        Math.min(chunk, content.length - i))));
+                            }
+                            client.send(new TextWebSocketFrame(""));
+                        } catch (Exception e) {
+                            onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        if (!(frame instanceof TextWebSocketFrame)) {
+                            return;
+                        }
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        if ("bulkstream".equals(map.get("type"))) {
+                            logger.info("frame received: {}", map);
+                            response.set(map);
+                            latch.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(Boolean.TRUE, response.get().get("success"));
+        Map<String, Object> data = (Map<String, Object>) response.get().get("data");
+        assertEquals(n + 2, ((Number) data.get("actions")).intValue());
+        // the last bulk of the stream may still be executing
+        client("1").admin().cluster().prepareHealth("test").setWaitForYellowStatus().execute().actionGet();
+        GetResponse get = client("1").prepareGet("test", "test", "big").execute().actionGet();
+        for (int i = 0; i < 50 && !get.isExists(); i++) {
+            Thread.sleep(100);
+            get = client("1").prepareGet("test", "test", "big").execute().actionGet();
+        }
+        assertEquals(big.toString(), get.getSource().get("field1"));
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * Send index requests with sequence numbers through a batching client, they are sent in
+     * multi-document frames and acknowledged like single requests.
+     */
+    @Test
+    public void testBatchedBulkAcks() throws Exception {
+        final int n = 250;
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(1);
+        final NettyWebSocketClientFactory clientFactory = new NettyWebSocketClientFactory(ImmutableSettings.settingsBuilder()
+                .put("websocket.client.batch.actions", 100)
+                .put("websocket.client.batch.linger", "10s")
+                .build());
+        WebSocketClient client = clientFactory.newClient(
+                getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        connected.countDown();
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        if (!"ack".equals(map.get("type"))) {
+                            logger.info("frame received: {}", map);
+                            return;
+                        }
+                        Map<String, Object> data = (Map<String, Object>) map.get("data");
+                        if (((Number) data.get("acked")).longValue() == n - 1) {
+                            latch.countDown();
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        NettyBatchingWebSocketClient batchingClient = clientFactory.batchingClient(client);
+        batchingClient.connect();
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < n; i++) {
+            clientFactory.indexRequest()
+                    .data(jsonBuilder()
+                            .startObject()
+                            .field("index", "batchtest")
+                            .field("type", "test")
+                            .field("id", Integer.toString(i))
+                            .field("seq", i)
+                            .startObject("data")
+                            .field("field1", "value" + i)
+                            .endObject()
+                            .endObject())
+                    .send(batchingClient);
+        }
+        // two full batches, the flush request sends the rest before itself
+        assertEquals(2L, batchingClient.batches());
+        clientFactory.flushRequest().send(batchingClient);
+        assertEquals(3L, batchingClient.batches());
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        client("1").admin().indices().prepareRefresh("batchtest").execute().actionGet();
+        assertEquals(n, client("1").prepareCount("batchtest").execute().actionGet().getCount());
+        batchingClient.disconnect();
+        clientFactory.shutdown();
+    }
 }
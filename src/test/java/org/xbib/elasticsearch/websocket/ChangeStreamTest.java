@@ -0,0 +1,209 @@
+package org.xbib.elasticsearch.websocket;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.routing.ShardRoutingState;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.util.CharsetUtil;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+import org.xbib.elasticsearch.websocket.client.WebSocketClientFactory;
+import org.xbib.elasticsearch.websocket.helper.AbstractNodeTestHelper;
+import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
+
+public class ChangeStreamTest extends AbstractNodeTestHelper {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Watch an index with a query, only the changes of matching documents must arrive.
+     */
+    @Test
+    public void testWatch() throws Exception {
+        final CountDownLatch watching = new CountDownLatch(1);
+        final CountDownLatch deleted = new CountDownLatch(1);
+        final List<Map<String, Object>> changes = new CopyOnWriteArrayList<Map<String, Object>>();
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(
+                getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        try {
+                            client.send(new TextWebSocketFrame(jsonBuilder()
+                                    .startObject()
+                                    .field("type", "watch")
+                                    .startObject("data")
+                                    .field("index", "test")
+                                    .field("type", "test")
+                                    .startObject("query")
+                                    .startObject("term").field("field1", "match").endObject()
+                                    .endObject()
+                                    .endObject()
+                                    .endObject().string()));
+                        } catch (Exception e) {
+                            onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        if (!(frame instanceof TextWebSocketFrame)) {
+                            return;
+                        }
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        logger.info("frame received: {}", map);
+                        if ("watch".equals(map.get("type"))) {
+                            watching.countDown();
+                        } else if ("change".equals(map.get("type"))) {
+                            Map<String, Object> data = (Map<String, Object>) map.get("data");
+                            changes.add(data);
+                            if ("delete".equals(data.get("op"))) {
+                                deleted.countDown();
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(watching.await(10, TimeUnit.SECONDS));
+        client("1").prepareIndex("test", "test", "1").setSource("field1", "other").execute().actionGet();
+        client("1").prepareIndex("test", "test", "2").setSource("field1", "match").execute().actionGet();
+        client("1").prepareIndex("test", "other", "3").setSource("field1", "match").execute().actionGet();
+        client("1").prepareDelete("test", "test", "2").execute().actionGet();
+        assertTrue(deleted.await(10, TimeUnit.SECONDS));
+        assertEquals(2, changes.size());
+        assertEquals("index", changes.get(0).get("op"));
+        assertEquals("2", changes.get(0).get("_id"));
+        assertEquals("match", ((Map<String, Object>) changes.get(0).get("_source")).get("field1"));
+        assertEquals("delete", changes.get(1).get("op"));
+        assertEquals("2", changes.get(1).get("_id"));
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * Watch an index with shards on two nodes, each with a replica on the other node, and an
+     * index with shards only on the other node. The watches on one node must get each change
+     * exactly once, also those of the primaries on the other node.
+     */
+    @Test
+    public void testWatchAcrossNodes() throws Exception {
+        startNode("2");
+        assertEquals(2, client("1").admin().cluster().prepareHealth().setWaitForNodes("2").get().getNumberOfNodes());
+        client("1").admin().indices().prepareCreate("changetest")
+                .setSettings(ImmutableSettings.settingsBuilder()
+                        .put("index.number_of_shards", 4)
+                        .put("index.number_of_replicas", 1))
+                .execute().actionGet();
+        client("1").admin().indices().prepareCreate("changetestremote")
+                .setSettings(ImmutableSettings.settingsBuilder()
+                        .put("index.number_of_shards", 2)
+                        .put("index.number_of_replicas", 0)
+                        .put("index.routing.allocation.include._name", "1"))
+                .execute().actionGet();
+        client("1").admin().cluster().prepareHealth("changetest", "changetestremote")
+                .setWaitForGreenStatus().execute().actionGet();
+        // the primaries are on both nodes
+        Set<String> primaryNodes = new HashSet<String>();
+        for (ShardRouting shard : client("1").admin().cluster().prepareState().execute().actionGet().getState()
+                .routingTable().index("changetest").shardsWithState(ShardRoutingState.STARTED)) {
+            if (shard.primary()) {
+                primaryNodes.add(shard.currentNodeId());
+            }
+        }
+        assertEquals(2, primaryNodes.size());
+        final CountDownLatch watching = new CountDownLatch(2);
+        final List<Map<String, Object>> changes = new CopyOnWriteArrayList<Map<String, Object>>();
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(
+                getAddressOfNode("2"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        try {
+                            for (String index : new String[]{"changetest", "changetestremote"}) {
+                                client.send(new TextWebSocketFrame(jsonBuilder()
+                                        .startObject()
+                                        .field("type", "watch")
+                                        .startObject("data").field("index", index).endObject()
+                                        .endObject().string()));
+                            }
+                        } catch (Exception e) {
+                            onError(e);
+                        }
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        if (!(frame instanceof TextWebSocketFrame)) {
+                            return;
+                        }
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        if ("watch".equals(map.get("type"))) {
+                            watching.countDown();
+                        } else if ("change".equals(map.get("type"))) {
+                            changes.add((Map<String, Object>) map.get("data"));
+                        }
+                    }
+
+                    @Override
+                    public void onError(Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(watching.await(10, TimeUnit.SECONDS));
+        // the watch is announced to the other node
+        Thread.sleep(500);
+        int n = 20;
+        for (int i = 0; i < n; i++) {
+            client("1").prepareIndex(i % 2 == 0 ? "changetest" : "changetestremote", "test", Integer.toString(i))
+                    .setSource("field1", "value" + i).execute().actionGet();
+        }
+        for (int i = 0; i < 100 && changes.size() < n; i++) {
+            Thread.sleep(100);
+        }
+        // duplicates would arrive in the meantime
+        Thread.sleep(500);
+        assertEquals(n, changes.size());
+        Set<Object> ids = new HashSet<Object>();
+        for (Map<String, Object> change : changes) {
+            ids.add(change.get("_id"));
+        }
+        assertEquals(n, ids.size());
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+}
@@ -0,0 +1,84 @@
+package org.xbib.elasticsearch.websocket;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.junit.Test;
+import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
+import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+import org.xbib.elasticsearch.websocket.helper.AbstractNodeTestHelper;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PooledClientTest extends AbstractNodeTestHelper {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * Two listeners share the pooled client of a URI, the idle client is evicted.
+     */
+    @Test
+    public void testPoolAndIdleEviction() throws Exception {
+        NettyWebSocketClientFactory clientFactory = new NettyWebSocketClientFactory(ImmutableSettings.settingsBuilder()
+                .put("websocket.client.worker_count", 1)
+                .put("websocket.client.idle_timeout", "1s")
+                .put("websocket.client.health_check_interval", "200ms")
+                .build());
+        try {
+            URI uri = getAddressOfNode("1");
+            Listener first = new Listener();
+            WebSocketClient client = clientFactory.pooledClient(uri, first);
+            assertTrue(first.connected.await(10, TimeUnit.SECONDS));
+            Listener second = new Listener();
+            assertSame(client, clientFactory.pooledClient(uri, second));
+            // the client is connected already
+            assertEquals(0, second.connected.getCount());
+            assertEquals(1, clientFactory.pooledClients());
+            // nothing is sent, so the client becomes idle
+            assertTrue(first.disconnected.await(10, TimeUnit.SECONDS));
+            assertTrue(second.disconnected.await(10, TimeUnit.SECONDS));
+            assertEquals(0, clientFactory.pooledClients());
+            Listener third = new Listener();
+            assertNotSame(client, clientFactory.pooledClient(uri, third));
+            assertTrue(third.connected.await(10, TimeUnit.SECONDS));
+        } finally {
+            clientFactory.shutdown();
+        }
+    }
+
+    static class Listener implements WebSocketActionListener<WebSocketClient, WebSocketFrame> {
+
+        final CountDownLatch connected = new CountDownLatch(1);
+
+        final CountDownLatch disconnected = new CountDownLatch(1);
+
+        @Override
+        public void onConnect(WebSocketClient client) {
+            connected.countDown();
+        }
+
+        @Override
+        public void onDisconnect(WebSocketClient client) {
+            disconnected.countDown();
+        }
+
+        @Override
+        public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+            logger.info("frame received: {}", frame);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.error(t.getMessage(), t);
+        }
+    }
+}
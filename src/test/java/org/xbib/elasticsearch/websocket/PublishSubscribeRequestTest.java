@@ -2,16 +2,34 @@
 package org.xbib.elasticsearch.websocket;
 
 import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import org.jboss.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
 
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.action.ListenableActionFuture;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.util.CharsetUtil;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
 import org.junit.Test;
 import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
 import org.xbib.elasticsearch.websocket.client.WebSocketClient;
@@ -147,4 +165,237 @@ public class PublishSubscribeRequestTest extends AbstractNodeTestHelper {
         }        
     }
 
+    /**
+     * Subscribe with a query, only the matching message of the topic must arrive.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testQuery() throws Exception {
+        final String topic = "querytest";
+        final CountDownLatch connected = new CountDownLatch(1);
+        final List<Map<String, Object>> messages = new CopyOnWriteArrayList<Map<String, Object>>();
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        final WebSocketClientRequest subscribe = clientFactory.newRequest()
+                .type("subscribe").data(jsonBuilder().startObject()
+                .field("subscriber", "queryclient")
+                .field("topic", topic)
+                .startObject("query")
+                .startObject("range").startObject("price").field("gt", 100).endObject().endObject()
+                .endObject()
+                .endObject());
+        WebSocketClient client = clientFactory.newClient(getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        connected.countDown();
+                    }
+
+                    @Override
+                    public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                        if (!(frame instanceof TextWebSocketFrame)) {
+                            return;
+                        }
+                        Map<String, Object> map = XContentHelper.convertToMap(
+                                frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                        logger.info("frame received: {}", map);
+                        if ("message".equals(map.get("type"))) {
+                            messages.add((Map<String, Object>) ((Map<String, Object>) map.get("data")).get("data"));
+                        }
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        assertEquals("subscribe", subscribe.execute(client).actionGet(10, TimeUnit.SECONDS).get("type"));
+        List<ListenableActionFuture<Map<String, Object>>> published = new ArrayList<ListenableActionFuture<Map<String, Object>>>();
+        for (int price : new int[]{50, 150}) {
+            published.add(clientFactory.newRequest()
+                    .type("publish").data(jsonBuilder().startObject()
+                    .field("topic", topic)
+                    .field("price", price).endObject())
+                    .execute(client));
+        }
+        for (ListenableActionFuture<Map<String, Object>> future : published) {
+            assertEquals("publish", future.actionGet(10, TimeUnit.SECONDS).get("type"));
+        }
+        Thread.sleep(500);
+        assertEquals(1, messages.size());
+        assertEquals(150, ((Number) messages.get(0).get("price")).intValue());
+        client.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * Many requests in flight on one connection, each response completes the future of its request.
+     */
+    @Test
+    public void testPipelinedRequests() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        WebSocketClient client = clientFactory.newClient(getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        connected.countDown();
+                    }
+                });
+        client.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        List<ListenableActionFuture<Map<String, Object>>> futures = new ArrayList<ListenableActionFuture<Map<String, Object>>>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(clientFactory.newRequest()
+                    .type("publish").id("p" + i).data(jsonBuilder().startObject()
+                    .field("topic", "pipelinetest")
+                    .field("n", i).endObject())
+                    .execute(client));
+        }
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> response = futures.get(i).actionGet(10, TimeUnit.SECONDS);
+            assertEquals("p" + i, response.get("id"));
+            assertEquals(Boolean.TRUE, response.get("success"));
+        }
+        // an error response fails the future
+        try {
+            clientFactory.newRequest().type("unknown").execute(client).actionGet(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ElasticsearchException e) {
+            logger.info("expected failure: {}", e.getMessage());
+        }
+        // a flush has no response, the future fails after the timeout
+        try {
+            clientFactory.flushRequest().execute(client, TimeValue.timeValueMillis(200)).actionGet();
+            fail();
+        } catch (ElasticsearchTimeoutException e) {
+            logger.info("expected timeout: {}", e.getMessage());
+        }
+        client.send(new CloseWebSocketFrame());
+        client.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * A subscriber that was disconnected receives the missed message of its topic when it
+     * subscribes again, from its cursor in the sequence log of the topic.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReplay() throws Exception {
+        final String topic = "replaytest";
+        final WebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        final List<Map<String, Object>> messages = new CopyOnWriteArrayList<Map<String, Object>>();
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch replayed = new CountDownLatch(2);
+        WebSocketActionListener listener = new WebSocketActionListener.Adapter() {
+            @Override
+            public void onConnect(WebSocketClient client) throws IOException {
+                clientFactory.newRequest()
+                        .type("subscribe").data(jsonBuilder().startObject()
+                        .field("subscriber", "replayclient")
+                        .field("topic", topic).endObject())
+                        .send(client);
+            }
+
+            @Override
+            public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+                if (!(frame instanceof TextWebSocketFrame)) {
+                    return;
+                }
+                Map<String, Object> map = XContentHelper.convertToMap(
+                        frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+                logger.info("frame received: {}", map);
+                if ("message".equals(map.get("type"))) {
+                    messages.add((Map<String, Object>) map.get("data"));
+                    first.countDown();
+                    replayed.countDown();
+                }
+            }
+        };
+        WebSocketClient subscriber = clientFactory.newClient(getAddressOfNode("1"), listener);
+        subscriber.connect().await(1000, TimeUnit.MILLISECONDS);
+        Thread.sleep(500);
+        final CountDownLatch connected = new CountDownLatch(1);
+        WebSocketClient publisher = clientFactory.newClient(getAddressOfNode("1"),
+                new WebSocketActionListener.Adapter() {
+                    @Override
+                    public void onConnect(WebSocketClient client) {
+                        connected.countDown();
+                    }
+                });
+        publisher.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(connected.await(10, TimeUnit.SECONDS));
+        clientFactory.newRequest().type("publish").data(jsonBuilder().startObject()
+                .field("topic", topic).field("message", "first").endObject()).send(publisher);
+        assertTrue(first.await(10, TimeUnit.SECONDS));
+        subscriber.send(new CloseWebSocketFrame());
+        subscriber.disconnect();
+        Thread.sleep(500);
+        clientFactory.newRequest().type("publish").data(jsonBuilder().startObject()
+                .field("topic", topic).field("message", "second").endObject()).send(publisher);
+        // wait for the checkpoint of the topic
+        Thread.sleep(2000);
+        String nodeId = client("1").admin().cluster().prepareNodesInfo("1").get().getNodes()[0].getNode().id();
+        Map<String, Object> checkpoint = client("1").prepareGet("pubsub", "checkpoint", nodeId + ":" + topic).get()
+                .getSourceAsMap();
+        assertNotNull(checkpoint);
+        // the cursor of the disconnected subscriber has moved from the checkpoint to its subscription
+        assertTrue(((List<Object>) checkpoint.get("cursors")).isEmpty());
+        Map<String, Object> subscription = client("1").prepareGet("pubsub", "subscribe", "replayclient").get()
+                .getSourceAsMap();
+        assertNotNull(subscription.get("disconnected"));
+        assertEquals(1, ((List<Object>) subscription.get("cursors")).size());
+        subscriber = clientFactory.newClient(getAddressOfNode("1"), listener);
+        subscriber.connect().await(1000, TimeUnit.MILLISECONDS);
+        assertTrue(replayed.await(10, TimeUnit.SECONDS));
+        assertEquals(2, messages.size());
+        long firstSeq = ((Number) messages.get(0).get("seq")).longValue();
+        long secondSeq = ((Number) messages.get(1).get("seq")).longValue();
+        assertTrue(secondSeq > firstSeq);
+        assertEquals("second", ((Map<String, Object>) messages.get(1).get("data")).get("message"));
+        subscriber.send(new CloseWebSocketFrame());
+        publisher.send(new CloseWebSocketFrame());
+        Thread.sleep(500);
+        subscriber.disconnect();
+        publisher.disconnect();
+        clientFactory.shutdown();
+    }
+
+    /**
+     * A subscriber connected to another node receives the messages published on this node
+     * right after subscribing, the other node announces the subscription over its node link.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testAnnounce() throws Exception {
+        final String topic = "announcetest";
+        NettyWebSocketClientFactory clientFactory = new NettyWebSocketClientFactory();
+        try {
+            startNode("2");
+            assertEquals(2, client("1").admin().cluster().prepareHealth().setWaitForNodes("2").get().getNumberOfNodes());
+            URI uri = getAddressOfNode("2");
+            ReconnectingClientTest.Listener subscriberListener = new ReconnectingClientTest.Listener();
+            WebSocketClient subscriber = clientFactory.newClient(uri, subscriberListener);
+            subscriber.connect();
+            assertTrue(subscriberListener.connects.tryAcquire(10, TimeUnit.SECONDS));
+            ReconnectingClientTest.Listener publisherListener = new ReconnectingClientTest.Listener();
+            WebSocketClient publisher = clientFactory.newClient(getAddressOfNode("1"), publisherListener);
+            publisher.connect();
+            assertTrue(publisherListener.connects.tryAcquire(10, TimeUnit.SECONDS));
+            assertEquals("subscribe", clientFactory.newRequest().type("subscribe").data(jsonBuilder().startObject()
+                    .field("subscriber", "announceclient")
+                    .field("topic", topic).endObject())
+                    .execute(subscriber).actionGet(10, TimeUnit.SECONDS).get("type"));
+            // well within the recovery interval
+            Thread.sleep(500);
+            clientFactory.newRequest().type("publish").data(jsonBuilder().startObject()
+                    .field("topic", topic).field("message", "announced").endObject()).send(publisher);
+            Map<String, Object> message = subscriberListener.messages.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals("announced", ((Map<String, Object>) message.get("data")).get("message"));
+            subscriber.disconnect();
+            publisher.disconnect();
+        } finally {
+            clientFactory.shutdown();
+        }
+    }
 }
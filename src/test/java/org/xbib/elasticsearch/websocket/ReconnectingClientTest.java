@@ -0,0 +1,174 @@
+package org.xbib.elasticsearch.websocket;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketFrame;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Test;
+import org.xbib.elasticsearch.http.netty.client.NettyBatchingWebSocketClient;
+import org.xbib.elasticsearch.http.netty.client.NettyReconnectingWebSocketClient;
+import org.xbib.elasticsearch.http.netty.client.NettyWebSocketClientFactory;
+import org.xbib.elasticsearch.websocket.client.WebSocketActionListener;
+import org.xbib.elasticsearch.websocket.client.WebSocketClient;
+import org.xbib.elasticsearch.websocket.helper.AbstractNodeTestHelper;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectingClientTest extends AbstractNodeTestHelper {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger("test");
+
+    /**
+     * The client skips an unreachable node, resubscribes after losing its connection and
+     * resends the bulk requests which were not acknowledged.
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReconnect() throws Exception {
+        NettyWebSocketClientFactory clientFactory = new NettyWebSocketClientFactory(ImmutableSettings.settingsBuilder()
+                .put("websocket.client.reconnect.initial_backoff", "200ms")
+                .put("websocket.client.reconnect.max_backoff", "1s")
+                .build());
+        try {
+            URI uri = getAddressOfNode("1");
+            Listener listener = new Listener();
+            NettyReconnectingWebSocketClient client = clientFactory.newReconnectingClient(
+                    Arrays.asList(URI.create("ws://127.0.0.1:1/websocket"), uri), listener);
+            client.connect();
+            assertTrue(listener.connects.tryAcquire(10, TimeUnit.SECONDS));
+
+            Map<String, Object> response = clientFactory.newRequest().type("nodes").execute(client)
+                    .actionGet(10, TimeUnit.SECONDS);
+            List<Map<String, Object>> nodes = (List<Map<String, Object>>) ((Map<String, Object>) response.get("data")).get("nodes");
+            assertEquals(1, nodes.size());
+            assertEquals(uri.getPort(), URI.create(nodes.get(0).get("uri").toString()).getPort());
+
+            client.subscribe("reconnectclient", "reconnecttest", null);
+            publish(clientFactory, client, "first");
+            Map<String, Object> message = listener.messages.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals(((Number) message.get("seq")).longValue(),
+                    client.positions().get("reconnecttest").get(message.get("origin").toString()).longValue());
+
+            // the message published while the client is disconnected is delivered after reconnecting
+            client.channel().close();
+            assertTrue(listener.disconnects.tryAcquire(10, TimeUnit.SECONDS));
+            Listener publisherListener = new Listener();
+            WebSocketClient publisher = clientFactory.newClient(uri, publisherListener);
+            publisher.connect();
+            assertTrue(publisherListener.connects.tryAcquire(10, TimeUnit.SECONDS));
+            publish(clientFactory, publisher, "second");
+            publisher.disconnect();
+            assertTrue(listener.connects.tryAcquire(10, TimeUnit.SECONDS));
+            message = listener.messages.poll(10, TimeUnit.SECONDS);
+            assertNotNull(message);
+            assertEquals("second", ((Map<String, Object>) message.get("data")).get("message"));
+
+            // the connection breaks before the bulk requests are acknowledged
+            int n = 100;
+            for (int i = 0; i < n; i++) {
+                clientFactory.indexRequest()
+                        .data(jsonBuilder().startObject()
+                                .field("index", "reconnecttest").field("type", "test")
+                                .field("id", Integer.toString(i))
+                                .startObject("data").field("field1", "value" + i).endObject()
+                                .endObject())
+                        .send(client);
+            }
+            assertTrue(client.unacked() > 0);
+            client.channel().close();
+            assertTrue(listener.disconnects.tryAcquire(10, TimeUnit.SECONDS));
+            assertTrue(listener.connects.tryAcquire(10, TimeUnit.SECONDS));
+            clientFactory.flushRequest().send(client);
+            for (int i = 0; i < 100 && client.unacked() > 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, client.unacked());
+            client("1").admin().indices().prepareRefresh("reconnecttest").execute().actionGet();
+            assertEquals(n, client("1").prepareCount("reconnecttest").execute().actionGet().getCount());
+
+            // batches are kept in the resend buffer as well
+            NettyBatchingWebSocketClient batchingClient = clientFactory.batchingClient(client);
+            for (int i = n; i < 2 * n; i++) {
+                clientFactory.indexRequest()
+                        .data(jsonBuilder().startObject()
+                                .field("index", "reconnecttest").field("type", "test")
+                                .field("id", Integer.toString(i))
+                                .startObject("data").field("field1", "value" + i).endObject()
+                                .endObject())
+                        .send(batchingClient);
+            }
+            clientFactory.flushRequest().send(batchingClient);
+            for (int i = 0; i < 100 && client.unacked() > 0; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(0, client.unacked());
+            client("1").admin().indices().prepareRefresh("reconnecttest").execute().actionGet();
+            assertEquals(2 * n, client("1").prepareCount("reconnecttest").execute().actionGet().getCount());
+            client.disconnect();
+        } finally {
+            clientFactory.shutdown();
+        }
+    }
+
+    private static void publish(NettyWebSocketClientFactory clientFactory, WebSocketClient client, String message)
+            throws Exception {
+        assertEquals("publish", clientFactory.newRequest()
+                .type("publish").data(jsonBuilder().startObject()
+                        .field("topic", "reconnecttest")
+                        .field("message", message).endObject())
+                .execute(client).actionGet(10, TimeUnit.SECONDS).get("type"));
+    }
+
+    static class Listener implements WebSocketActionListener<WebSocketClient, WebSocketFrame> {
+
+        final Semaphore connects = new Semaphore(0);
+
+        final Semaphore disconnects = new Semaphore(0);
+
+        final BlockingQueue<Map<String, Object>> messages = new LinkedBlockingQueue<Map<String, Object>>();
+
+        @Override
+        public void onConnect(WebSocketClient client) {
+            connects.release();
+        }
+
+        @Override
+        public void onDisconnect(WebSocketClient client) {
+            disconnects.release();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onMessage(WebSocketClient client, WebSocketFrame frame) {
+            if (!(frame instanceof TextWebSocketFrame)) {
+                return;
+            }
+            Map<String, Object> map = XContentHelper.convertToMap(
+                    frame.getBinaryData().toString(CharsetUtil.UTF_8).getBytes(CharsetUtil.UTF_8), false).v2();
+            if ("message".equals(map.get("type"))) {
+                messages.add((Map<String, Object>) map.get("data"));
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            logger.debug(t.getMessage(), t);
+        }
+    }
+}
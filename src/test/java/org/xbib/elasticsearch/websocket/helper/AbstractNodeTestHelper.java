@@ -48,6 +48,12 @@ public abstract class AbstractNodeTestHelper {
 
     protected URI getAddressOfNode(String n) {
         InetSocketTransportAddress address = addresses.get(n);
+        if (address == null) {
+            // a node started by a test
+            address = client(n).admin().cluster().execute(WebsocketInfoAction.INSTANCE, new WebsocketInfoRequest(n))
+                    .actionGet().getAt(0).getAddress();
+            addresses.put(n, address);
+        }
         return URI.create("ws://" + address.address().getHostName() + ":" + address.address().getPort() + "/websocket");
     }
 
@@ -118,6 +124,7 @@ public abstract class AbstractNodeTestHelper {
             }
         }
         nodes.clear();
+        addresses.clear();
     }
 
 }